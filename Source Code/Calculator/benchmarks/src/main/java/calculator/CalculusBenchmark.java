@@ -0,0 +1,48 @@
+// JMH benchmarks of integrate, deriv and root, with a parameter y so nothing is folded at compile time
+// integrateTree is integrate with compiling disabled: the quadrature evaluates the tree of the function
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CalculusBenchmark {
+
+    private static final String F = "exp(-x/y) * sin(x*y)^2 + sqrt(x + y)";
+
+    private CompiledExpression integrate, deriv, root;
+
+    @Setup
+    public void setup() {
+        Evaluator evaluator = new Evaluator(16);
+        integrate = evaluator.compile("integrate(" + F + ", 0, 100)", "y");
+        deriv = evaluator.compile("deriv(" + F + ", 2)", "y");
+        root = evaluator.compile("root(" + F + " - 5, 0, 40)", "y");
+    }
+
+    @Benchmark
+    public double integrate() {
+        return integrate.eval(3);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dcalculator.compileThreshold=0")
+    public double integrateTree() {
+        return integrate.eval(3);
+    }
+
+    @Benchmark
+    public double deriv() {
+        return deriv.eval(3);
+    }
+
+    @Benchmark
+    public double root() {
+        return root.eval(3);
+    }
+}
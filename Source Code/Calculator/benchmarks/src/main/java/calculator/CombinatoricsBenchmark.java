@@ -0,0 +1,57 @@
+// JMH benchmarks of the exact Combinatorics functions and of the display text of their results
+// naiveFactorial is the one-by-one product the product trees replace
+package calculator;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CombinatoricsBenchmark {
+
+    private BigInteger factorial;
+
+    @Setup
+    public void setup() {
+        factorial = Combinatorics.factorial(100_000);
+    }
+
+    @Benchmark
+    public BigInteger factorial() {
+        return Combinatorics.factorial(100_000);
+    }
+
+    @Benchmark
+    public BigInteger naiveFactorial() {
+        BigInteger result = BigInteger.ONE;
+        for (int i = 2; i <= 100_000; i++) {
+            result = result.multiply(BigInteger.valueOf(i));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public BigInteger binomial() {
+        return Combinatorics.binomial(1_000_000, 500_000);
+    }
+
+    @Benchmark
+    public BigInteger fibonacci() {
+        return Combinatorics.fibonacci(1_000_000);
+    }
+
+    @Benchmark
+    public String format() {
+        return Precise.format(factorial);
+    }
+
+    @Benchmark
+    public String toStringFormat() {
+        return factorial.toString();
+    }
+}
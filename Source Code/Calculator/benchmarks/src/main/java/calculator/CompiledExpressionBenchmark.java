@@ -0,0 +1,61 @@
+// JMH benchmarks of compiled expressions evaluated over many variable values
+// The formula repeats a subexpression, as generated formulas often do
+package calculator;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CompiledExpressionBenchmark {
+
+    private static final int ROWS = 1 << 16;
+    private static final String FORMULA = "sqrt(a*a+b*b)/(1+sqrt(a*a+b*b))+sin(a)*sin(a)+b^2";
+
+    private final double[] a = new double[ROWS];
+    private final double[] b = new double[ROWS];
+    private final double[] out = new double[ROWS];
+    private CompiledExpression expression;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < ROWS; i++) {
+            a[i] = random.nextDouble(-100, 100);
+            b[i] = random.nextDouble(-100, 100);
+        }
+        expression = new Evaluator(16).compile(FORMULA, "a", "b");
+    }
+
+    // One call per row, compiled to bytecode after the first CompiledExpression.COMPILE_THRESHOLD rows
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double evalRows() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            sum += expression.eval(a[i], b[i]);
+        }
+        return sum;
+    }
+
+    // One call per row, tree interpreter only
+    @Benchmark
+    @Fork(value = 2, jvmArgsAppend = "-Dcalculator.compileThreshold=0")
+    @OperationsPerInvocation(ROWS)
+    public double evalRowsInterpreted() {
+        return evalRows();
+    }
+
+    // Whole columns, block by block
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] evalColumns() {
+        expression.evalAll(new double[][]{a, b}, out);
+        return out;
+    }
+}
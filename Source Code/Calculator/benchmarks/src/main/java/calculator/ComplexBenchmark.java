@@ -0,0 +1,55 @@
+// JMH benchmarks of the complex mode against the real one, one evaluation with a variable x so nothing
+// is folded. "real" is a real formula, evaluated by both engines; "complex" is a formula with complex
+// values (i, square root of a negative number) and its real analogue, i replaced by 0.5 and sqrt(-x) by
+// sqrt(x), so both modes do the same operations. The real engine runs as a tree (forked with compiling
+// disabled, like the complex program which is interpreted) and compiled to bytecode
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ComplexBenchmark {
+
+    @Param({"real", "complex"})
+    public String shape;
+
+    private CompiledExpression real, complex;
+    private final double[] values = {3.7};
+    private final double[] result = new double[2];
+
+    @Setup
+    public void setup() {
+        Evaluator evaluator = new Evaluator(16);
+        String[] formulas = switch (shape) {
+            case "real" -> new String[]{"sin(x)*exp(-x/10) + sqrt(x^2+1)/(x+3)", "sin(x)*exp(-x/10) + sqrt(x^2+1)/(x+3)"};
+            case "complex" -> new String[]{"exp(0.5*x)*(x+2*0.5)^2/(x-0.5) + sqrt(x) - ln(x)",
+                "exp(i*x)*(x+2i)^2/(x-i) + sqrt(-x) - ln(-x)"};
+            default -> throw new IllegalArgumentException(shape);
+        };
+        real = evaluator.compile(formulas[0], "x");
+        complex = evaluator.compile(formulas[1], "x");
+    }
+
+    @Benchmark
+    public double realCompiled() {
+        return real.eval(values);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dcalculator.compileThreshold=0")
+    public double realTree() {
+        return real.eval(values);
+    }
+
+    @Benchmark
+    public double[] complexProgram() {
+        complex.evalComplex(values, result);
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+// JMH benchmarks of the expression evaluator on representative expression shapes
+// Every shape is measured twice: from the compiled expressions cache (the same expression evaluated
+// again) and compiled from scratch (the first evaluation of an expression, parser included), and from
+// the cache by every core at once (evalAll workers sharing one Evaluator)
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class EvaluatorBenchmark {
+
+    @Param({"flat", "nested", "functions", "avg", "validators"})
+    public String shape;
+
+    private final Evaluator evaluator = new Evaluator(256);
+    private String expression;
+
+    @Setup
+    public void setup() {
+        expression = switch (shape) {
+            // Flat arithmetic, every operator and precedence level
+            case "flat" -> "1+2*3-4/5+6*7-8/9+10*11-12/13+14*15-16/17+18*19-20^2";
+            // Deep nesting, 100 levels of parentheses
+            case "nested" -> "(".repeat(100) + "1" + "+1)".repeat(100);
+            // Many function calls
+            case "functions" -> "sin(30)+cos(60)+tan(45)+sqrt(2)+log(100)+ln(2)+exp(1)+cbrt(27)"
+                    + "+square(3)+cube(2)+round(2.5)+ceil(1.2)+floor(1.8)+asin(0.5)+acos(0.5)+atan(1)";
+            // Long argument list
+            case "avg" -> IntStream.rangeClosed(1, 500).mapToObj(Integer::toString).collect(Collectors.joining(",", "avg(", ")"));
+            // Boolean validators and number theory
+            case "validators" -> "prime(1000003)+palindrome(1234321)+armstrong(9474)+GCD(1071,462)+LCM(21,6)";
+            default -> throw new IllegalArgumentException(shape);
+        };
+    }
+
+    @Benchmark
+    public double cached() {
+        return evaluator.eval(expression);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public double cachedShared() {
+        return evaluator.eval(expression);
+    }
+
+    @Benchmark
+    public double uncached() {
+        evaluator.cache().clear();
+        return evaluator.eval(expression);
+    }
+}
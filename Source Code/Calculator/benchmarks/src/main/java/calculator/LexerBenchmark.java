@@ -0,0 +1,30 @@
+// JMH benchmark of the tokenizer on a number-heavy expression
+// Run with -prof gc: scanning and converting numbers should allocate nothing (gc.alloc.rate.norm ~ 0)
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+
+    private final String expression = "3.14159*2.5e-3+1234567.891/0.0001-6.02214076e23*sqrt(42)+avg(1.5,2.25,3.125,1e-10)";
+
+    @Benchmark
+    public double tokenize() {
+        Lexer lexer = new Lexer(expression);
+        double sum = 0;
+        while (lexer.type != Lexer.END) {
+            if (lexer.type == Lexer.NUMBER) {
+                sum += lexer.number;
+            }
+            lexer.next();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,61 @@
+// JMH benchmarks of the Linear Algebra kernels on dense random matrices
+// multiply is the 1000x1000 product behind "A * B"; the LU-based functions use 500x500 matrices
+package calculator;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatrixBenchmark {
+
+    private Matrix a, b; // 1000 x 1000
+    private Matrix c, rhs; // 500 x 500 and 500 x 1
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        a = random(random, 1000, 1000);
+        b = random(random, 1000, 1000);
+        c = random(random, 500, 500);
+        rhs = random(random, 500, 1);
+    }
+
+    private static Matrix random(SplittableRandom random, int rows, int cols) {
+        double[] data = new double[rows * cols];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextDouble(-1, 1);
+        }
+        return new Matrix(rows, cols, data);
+    }
+
+    @Benchmark
+    public Matrix multiply() {
+        return a.times(b);
+    }
+
+    @Benchmark
+    public Matrix transpose() {
+        return a.transpose();
+    }
+
+    @Benchmark
+    public double determinant() {
+        return c.determinant();
+    }
+
+    @Benchmark
+    public Matrix inverse() {
+        return c.inverse();
+    }
+
+    @Benchmark
+    public Matrix solve() {
+        return c.solve(rhs);
+    }
+}
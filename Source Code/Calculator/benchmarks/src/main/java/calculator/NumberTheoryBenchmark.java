@@ -0,0 +1,129 @@
+// JMH benchmarks of the number-theory functions behind the Validation and GCD/LCM buttons
+// Inputs are fixed pseudo-random tables, so every run measures the same work
+package calculator;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NumberTheoryBenchmark {
+
+    private static final int INPUTS = 1024; // Values per benchmark invocation
+
+    private final long[] small = new long[INPUTS]; // Below the cached sieve limit
+    private final long[] large = new long[INPUTS]; // Odd 62-bit numbers, Miller-Rabin
+    private final long[] pairs = new long[2 * INPUTS]; // GCD operands
+    private final double[] digits = new double[INPUTS]; // 5 to 7 digit numbers for the digit validators
+
+    // The validators through the public expression API, with x as the argument
+    private CompiledExpression palindrome;
+    private CompiledExpression armstrong;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < INPUTS; i++) {
+            small[i] = random.nextLong(2, 1 << 16);
+            large[i] = random.nextLong(1L << 61, 1L << 62) | 1;
+            pairs[2 * i] = random.nextLong(1, Long.MAX_VALUE);
+            pairs[2 * i + 1] = random.nextLong(1, Long.MAX_VALUE);
+            digits[i] = random.nextLong(10_000, 10_000_000);
+        }
+        Evaluator evaluator = new Evaluator(16);
+        palindrome = evaluator.compile("palindrome(x)", "x");
+        armstrong = evaluator.compile("armstrong(x)", "x");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public int isPrimeSmall() {
+        int count = 0;
+        for (long n : small) {
+            count += Primes.isPrime(n) ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public int isPrimeLarge() {
+        int count = 0;
+        for (long n : large) {
+            count += Primes.isPrime(n) ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public long computeGCD() {
+        long sum = 0;
+        for (int i = 0; i < pairs.length; i += 2) {
+            sum += Evaluator.computeGCD(pairs[i], pairs[i + 1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public double isPalindrome() {
+        double count = 0;
+        for (double x : digits) {
+            count += palindrome.eval(x);
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public double isArmstrong() {
+        double count = 0;
+        for (double x : digits) {
+            count += armstrong.eval(x);
+        }
+        return count;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long primePi() {
+        return Primes.primePi(1_000_000_000L);
+    }
+
+    // A million numbers past 10^12, sieved segment by segment instead of two primePi(10^12)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long countPrimesNarrow() {
+        return Primes.countPrimes(1_000_000_000_000L, 1_000_001_000_000L);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long listPrimes() {
+        long[] sum = new long[1];
+        Primes.forEachPrime(1_000_000_000_000L, 1_000_001_000_000L, p -> sum[0] += p);
+        return sum[0];
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public double palindromes() {
+        return RangeQueries.palindromes(new double[]{1, 1e12});
+    }
+
+    // Cached after the first call: measures the lookup over the precomputed lengths
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public double armstrongs() {
+        return RangeQueries.armstrongs(new double[]{0, 1e12});
+    }
+}
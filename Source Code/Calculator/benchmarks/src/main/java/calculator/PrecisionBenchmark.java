@@ -0,0 +1,59 @@
+// JMH benchmarks of the fractions mode (exact rationals) against double and 34-digit evaluation
+// The uncached benchmarks are what the calculator pays for a new expression (parser and optimizer
+// included); the cached ones repeat the evaluation of the same tree. A cached double evaluation is not
+// measured: the whole expression is folded into a constant, while the precision modes walk the tree
+package calculator;
+
+import java.math.MathContext;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PrecisionBenchmark {
+
+    @Param({"decimals", "fractions", "mixed"})
+    public String shape;
+
+    private final Evaluator evaluator = new Evaluator(256);
+    private String expression;
+
+    @Setup
+    public void setup() {
+        expression = switch (shape) {
+            // Prices and quantities, typical calculator input
+            case "decimals" -> "0.1+0.2*3-1/4+2.5/5-0.75*4+12.5*3.2-19.99*3";
+            // Divisions that do not terminate in decimal
+            case "fractions" -> "100/7+200/9-300/11+1/3*(2/3+5/6)";
+            // Powers and a function without an exact form
+            case "mixed" -> "(1.5+2.25)^2/4.2-(2/3)^-2+sqrt(16/9)+round(7/2)";
+            default -> throw new IllegalArgumentException(shape);
+        };
+    }
+
+    @Benchmark
+    public double doubleUncached() {
+        evaluator.cache().clear();
+        return evaluator.eval(expression);
+    }
+
+    @Benchmark
+    public Number fractionsUncached() {
+        evaluator.cache().clear();
+        return evaluator.evalPrecise(expression, Precise.EXACT);
+    }
+
+    @Benchmark
+    public Number fractions() {
+        return evaluator.evalPrecise(expression, Precise.EXACT);
+    }
+
+    @Benchmark
+    public Number decimal34() {
+        return evaluator.evalPrecise(expression, MathContext.DECIMAL128);
+    }
+}
@@ -0,0 +1,32 @@
+#!/bin/sh
+# Build a self-contained runtime of the calculator with jlink, and a CDS archive of the classes it
+# loads up to its first frame. The archive replaces the default one of the image, so every start maps
+# the JDK, JavaFX and calculator classes already parsed and verified, without any option.
+# The class list is recorded by starting the calculator once (a display is needed).
+#   JAVAFX_MODS=<JavaFX jmods or jars directory> ./build-image.sh [output directory]
+# Then start it with <output directory>/bin/calculator (default build/image)
+set -e
+cd "$(dirname "$0")"
+: "${JAVAFX_MODS:?Set JAVAFX_MODS to the directory of the JavaFX jmods (or jars)}"
+JAVA_BIN="${JAVA_HOME:+$JAVA_HOME/bin/}"
+BUILD=build
+IMAGE="${1:-$BUILD/image}"
+
+# Modular jar of the calculator
+rm -rf "$BUILD/classes" "$IMAGE"
+mkdir -p "$BUILD/classes"
+"${JAVA_BIN}javac" --module-path "$JAVAFX_MODS" -d "$BUILD/classes" $(find src -name "*.java")
+cp src/calculator/*.css src/calculator/*.png "$BUILD/classes/calculator/"
+"${JAVA_BIN}jar" --create --file "$BUILD/calculator.jar" --main-class calculator.calculator -C "$BUILD/classes" .
+
+# Runtime image, uncompressed: decompressing lib/modules would slow every start
+"${JAVA_BIN}jlink" --module-path "$JAVAFX_MODS:$BUILD/calculator.jar" --add-modules Calculator \
+    --launcher calculator=Calculator/calculator.calculator \
+    --strip-debug --no-header-files --no-man-pages --output "$IMAGE"
+
+# Classes loaded up to the first frame, archived in the default CDS archive of the image
+"$IMAGE/bin/java" -XX:DumpLoadedClassList="$BUILD/classes.lst" -Dcalculator.exitAfterFirstFrame=true \
+    -m Calculator/calculator.calculator
+"$IMAGE/bin/java" -Xshare:dump -XX:SharedClassListFile="$BUILD/classes.lst" \
+    -XX:SharedArchiveFile="$IMAGE/lib/server/classes.jsa" -m Calculator/calculator.calculator
+echo "Runtime image in $IMAGE, start it with $IMAGE/bin/calculator"
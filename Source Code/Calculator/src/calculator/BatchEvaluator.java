@@ -0,0 +1,186 @@
+// Headless batch evaluation mode
+// Streams newline-delimited expressions (or one CSV column) from a memory-mapped input file,
+// evaluates them in parallel batches with the same semantics as the calculator and writes one result per line.
+// It never boots the JavaFX toolkit, run it with:
+//   java -cp calculator.jar calculator.BatchEvaluator <input> <output> [--column N]
+package calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static java.nio.file.StandardOpenOption.*;
+
+public class BatchEvaluator {
+
+    private static final long WINDOW_SIZE = 64L << 20; // Bytes of the input file mapped at a time
+    private static final int OUTPUT_BUFFER_SIZE = 64 << 10; // Bytes buffered before each write
+    private static final int BATCH_SIZE = 16 << 10; // Expressions evaluated in parallel at a time
+    private static final byte[] ERROR = "Error".getBytes(StandardCharsets.US_ASCII);
+
+    private final Evaluator evaluator;
+    private final int column; // 1-based CSV column holding the expression, 0 = the whole line
+
+    // Reusable buffers, so memory use does not depend on the input size
+    private byte[] line = new byte[256];
+    private final ByteBuffer outBuffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+    private final List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+    public BatchEvaluator(Evaluator evaluator, int column) {
+        this.evaluator = evaluator;
+        this.column = column;
+    }
+
+    // Evaluate every line of the input file and write the results, returns the number of lines
+    public long run(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, READ);
+                FileChannel out = FileChannel.open(output, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            outBuffer.clear();
+            batch.clear();
+            long size = in.size();
+            long count = 0;
+            int length = 0;
+
+            // Map the input window by window; a line crossing two windows simply continues in the line buffer
+            for (long start = 0; start < size; start += WINDOW_SIZE) {
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+                while (window.hasRemaining()) {
+                    byte b = window.get();
+                    if (b == '\n') {
+                        evaluateLine(length, out);
+                        length = 0;
+                        count++;
+                    } else {
+                        if (length == line.length) {
+                            line = Arrays.copyOf(line, length * 2);
+                        }
+                        line[length++] = b;
+                    }
+                }
+            }
+
+            // Last line without a trailing newline
+            if (length > 0) {
+                evaluateLine(length, out);
+                count++;
+            }
+            evaluateBatch(out);
+            flush(out);
+            return count;
+        }
+    }
+
+    // Queue the expression of one input line, evaluating the batch once it is full
+    private void evaluateLine(int length, FileChannel out) throws IOException {
+        // Ignore Windows line endings
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        String expr = column == 0 ? new String(line, 0, length, StandardCharsets.UTF_8) : csvField(length);
+        batch.add(expr == null || expr.isBlank() ? null : expr);
+        if (batch.size() == BATCH_SIZE) {
+            evaluateBatch(out);
+        }
+    }
+
+    // Evaluate the queued expressions across all cores and append their results in input order
+    private void evaluateBatch(FileChannel out) throws IOException {
+        List<Evaluator.Result> results = evaluator.evalAll(batch);
+        for (int i = 0; i < results.size(); i++) {
+            if (batch.get(i) == null) {
+                write(new byte[0], out); // Keep results aligned with the input lines
+            } else {
+                Evaluator.Result result = results.get(i);
+                write(result.ok() ? String.valueOf(result.value()).getBytes(StandardCharsets.US_ASCII) : ERROR, out);
+            }
+        }
+        batch.clear();
+    }
+
+    // Extract the configured column from a CSV line, fields may be quoted to contain commas like avg(1,2)
+    private String csvField(int length) {
+        int current = 1;
+        int i = 0;
+        while (i <= length) {
+            StringBuilder field = current == column ? new StringBuilder() : null;
+            boolean quoted = i < length && line[i] == '"';
+            if (quoted) {
+                i++;
+            }
+            int start = i;
+            while (i < length) {
+                if (quoted && line[i] == '"') {
+                    // A doubled quote is an escaped quote inside a quoted field
+                    if (i + 1 < length && line[i + 1] == '"') {
+                        if (field != null) {
+                            field.append(new String(line, start, i + 1 - start, StandardCharsets.UTF_8));
+                        }
+                        i += 2;
+                        start = i;
+                        continue;
+                    }
+                    quoted = false;
+                    if (field != null) {
+                        field.append(new String(line, start, i - start, StandardCharsets.UTF_8));
+                    }
+                    start = ++i;
+                    continue;
+                }
+                if (!quoted && line[i] == ',') {
+                    break;
+                }
+                i++;
+            }
+            if (field != null) {
+                return field.append(new String(line, start, i - start, StandardCharsets.UTF_8)).toString();
+            }
+            current++;
+            i++; // Skip the comma
+        }
+        return null; // Line has fewer columns
+    }
+
+    // Append one result line to the output buffer, writing it out when full
+    private void write(byte[] result, FileChannel out) throws IOException {
+        if (outBuffer.remaining() < result.length + 1) {
+            flush(out);
+        }
+        if (result.length + 1 > outBuffer.capacity()) {
+            out.write(ByteBuffer.wrap(result));
+        } else {
+            outBuffer.put(result);
+        }
+        outBuffer.put((byte) '\n');
+    }
+
+    private void flush(FileChannel out) throws IOException {
+        outBuffer.flip();
+        while (outBuffer.hasRemaining()) {
+            out.write(outBuffer);
+        }
+        outBuffer.clear();
+    }
+
+    // Entry point of the headless batch mode
+    public static void main(String[] args) throws IOException {
+        int column = 0;
+        if (args.length == 4 && args[2].equals("--column")) {
+            column = Integer.parseInt(args[3]);
+        } else if (args.length != 2) {
+            System.err.println("Usage: java -cp calculator.jar calculator.BatchEvaluator <input> <output> [--column N]");
+            System.exit(2);
+        }
+
+        Evaluator evaluator = new Evaluator(Integer.getInteger("calculator.cacheSize", 256));
+        long count = new BatchEvaluator(evaluator, column).run(Path.of(args[0]), Path.of(args[1]));
+        System.err.println(count + " expressions evaluated");
+        if (Metrics.ENABLED) {
+            System.err.print(Metrics.INSTANCE.dump());
+        }
+    }
+}
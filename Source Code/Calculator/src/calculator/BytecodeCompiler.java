@@ -0,0 +1,453 @@
+// Compiles an expression tree into the bytecode of a hidden class, for formulas evaluated many times
+// The tree interpreter pays a virtual call per node and per evaluation; the generated eval method is
+// one straight-line method the JIT compiles and optimizes as a whole: arithmetic becomes plain dadd,
+// dmul.. instructions, shared subexpressions (see Let) live in local variables, and the functions are
+// invoked through static final fields holding their lambdas, so the JIT inlines Math.sin, Math.sqrt..
+// straight into the formula. Nodes without a bytecode form (statistics over data files) call back
+// into the interpreter. CompiledExpression promotes an expression once it gets hot
+package calculator;
+
+import calculator.Node.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class BytecodeCompiler {
+
+    // Implemented by every generated class
+    interface Formula {
+
+        double eval(double[] vars);
+    }
+
+    private static final int CLASS_VERSION = 61; // Java 17, straight-line code needs no stack map frames
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final String NAME = "calculator/CompiledFormula";
+    private static final String FORMULA = "calculator/BytecodeCompiler$Formula";
+    private static final String NODE = "calculator/Node";
+    private static final String EVAL = "([D)D";
+
+    // Values of the static final fields (function lambdas and interpreted nodes), passed as class data
+    private final List<Object> constants = new ArrayList<>();
+    private final List<String> constantTypes = new ArrayList<>();
+    private final Pool pool = new Pool();
+    private final Code code = new Code();
+    private int tempBase; // Local variable of the first temporary of the enclosing Let
+    private int maxLocals = 2; // this, vars
+
+    private BytecodeCompiler() {
+    }
+
+    // Compile root into a new hidden class, throws UnsupportedOperationException when the expression
+    // can't be compiled (too large, or a shared subexpression used by an interpreted node)
+    static Formula compile(Node root) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        byte[] bytes = compiler.classFile(root);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(bytes, List.copyOf(compiler.constants), true);
+            return (Formula) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // ================== Expression code ===================
+    private void emit(Node node) {
+        switch (node) {
+            case Num n -> push(n.value());
+            case Constant c -> push(c.value());
+            case Var v -> {
+                code.op(0x2b, 1); // aload_1
+                pushInt(v.slot());
+                code.op(0x31, 0); // daload
+            }
+            case Temp t -> code.local(0x18, tempBase + 2 * t.index(), 2); // dload
+            case Let let -> {
+                int saved = tempBase;
+                tempBase = maxLocals;
+                maxLocals += 2 * let.temps().size();
+                for (int t = 0; t < let.temps().size(); t++) {
+                    emit(let.temps().get(t));
+                    code.local(0x39, tempBase + 2 * t, -2); // dstore
+                }
+                emit(let.body());
+                tempBase = saved;
+            }
+            case Negate n -> {
+                emit(n.operand());
+                code.op(0x77, 0); // dneg
+            }
+            case BinaryOp b -> {
+                emit(b.left());
+                emit(b.right());
+                switch (b.op()) {
+                    case '+' -> code.op(0x63, -2); // dadd
+                    case '-' -> code.op(0x67, -2); // dsub
+                    case '*' -> code.op(0x6b, -2); // dmul
+                    case '/' -> code.op(0x6f, -2); // ddiv
+                    default -> code.invoke(0xb8, pool.method("java/lang/Math", "pow", "(DD)D", false), -2);
+                }
+            }
+            case UnaryCall c -> {
+                enterCall(c.name());
+                getConstant(c.op(), "Ljava/util/function/DoubleUnaryOperator;");
+                emit(c.arg());
+                code.invokeInterface(pool.method("java/util/function/DoubleUnaryOperator", "applyAsDouble", "(D)D", true), 3, -1);
+                if (c.roundSmall()) {
+                    code.invoke(0xb8, pool.method("calculator/BytecodeCompiler", "roundSmall", "(D)D", false), 0);
+                }
+            }
+            case MultiCall c -> {
+                enterCall(c.name());
+                getConstant(c.op(), "Ljava/util/function/ToDoubleFunction;");
+                newArray(c.args());
+                code.invokeInterface(pool.method("java/util/function/ToDoubleFunction", "applyAsDouble", "(Ljava/lang/Object;)D", true), 2, 0);
+            }
+            case StatCall c when c.args().stream().noneMatch(arg -> arg instanceof FileArg) -> {
+                enterCall(c.name());
+                getConstant(c, "L" + NODE + "$StatCall;");
+                newArray(c.args());
+                code.invoke(0xb6, pool.method(NODE + "$StatCall", "apply", EVAL, false), 0); // invokevirtual
+            }
+            case BooleanCall c -> {
+                enterCall(c.name());
+                getConstant(c.test(), "Ljava/util/function/DoublePredicate;");
+                emit(c.arg());
+                code.invokeInterface(pool.method("java/util/function/DoublePredicate", "test", "(D)Z", true), 3, -2);
+                code.op(0x87, 1); // i2d, the boolean is already 1 or 0
+            }
+            default -> interpret(node);
+        }
+    }
+
+    // new double[]{args..}
+    private void newArray(List<Node> args) {
+        pushInt(args.size());
+        code.op(0xbc, 0); // newarray double
+        code.u1(7);
+        for (int i = 0; i < args.size(); i++) {
+            code.op(0x59, 1); // dup
+            pushInt(i);
+            emit(args.get(i));
+            code.op(0x52, -4); // dastore
+        }
+    }
+
+    // Evaluate a node with the interpreter, which only sees the variables (not the temporaries)
+    private void interpret(Node node) {
+        if (usesTemps(node)) {
+            throw new UnsupportedOperationException("Shared subexpression in interpreted node " + node);
+        }
+        getConstant(node, "L" + NODE + ";");
+        code.op(0x2b, 1); // aload_1
+        code.invokeInterface(pool.method(NODE, "eval", EVAL, true), 2, 0);
+    }
+
+    private static boolean usesTemps(Node node) {
+        if (node instanceof Temp) {
+            return true;
+        }
+        for (Node child : Optimizer.children(node)) {
+            if (usesTemps(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same entry as the interpreter: call counting and cancellation
+    private void enterCall(String name) {
+        code.ldc(pool.string(name), 1);
+        code.op(0x04, 1); // iconst_1
+        code.invoke(0xb8, pool.method(NODE, "enterCall", "(Ljava/lang/String;I)V", true), -2);
+    }
+
+    private void getConstant(Object value, String type) {
+        constants.add(value);
+        constantTypes.add(type);
+        code.op(0xb2, 1); // getstatic
+        code.u2(pool.field(NAME, "c" + (constants.size() - 1), type));
+    }
+
+    private void push(double value) {
+        if (Double.doubleToRawLongBits(value) == 0) {
+            code.op(0x0e, 2); // dconst_0
+        } else if (value == 1) {
+            code.op(0x0f, 2); // dconst_1
+        } else {
+            code.op(0x14, 2); // ldc2_w
+            code.u2(pool.doubleConstant(value));
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value <= 5) {
+            code.op(0x03 + value, 1); // iconst_<n>
+        } else if (value <= Byte.MAX_VALUE) {
+            code.op(0x10, 1); // bipush
+            code.u1(value);
+        } else {
+            code.op(0x11, 1); // sipush
+            code.u2(value);
+        }
+    }
+
+    // Called by the generated code for functions that round tiny results to zero, like UnaryCall
+    static double roundSmall(double x) {
+        return Math.abs(x) < 1e-10 ? 0 : x;
+    }
+
+    // ================== Class file ===================
+    // final class CompiledFormula implements Formula {
+    //     private static final <type> c0 = classData[0], c1 = ..;
+    //     public double eval(double[] vars) { return <expression>; }
+    // }
+    private byte[] classFile(Node root) {
+        emit(root);
+        code.op(0xaf, -2); // dreturn
+        if (code.length() > MAX_CODE_LENGTH || constants.size() > Short.MAX_VALUE) {
+            throw new UnsupportedOperationException("Expression too large to compile");
+        }
+        Code eval = code;
+        Code init = new Code();
+        init.op(0x2a, 1); // aload_0
+        init.invoke(0xb7, pool.method("java/lang/Object", "<init>", "()V", false), -1);
+        init.op(0xb1, 0); // return
+        Code clinit = staticInitializer();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            int thisClass = pool.classRef(NAME);
+            int superClass = pool.classRef("java/lang/Object");
+            int formula = pool.classRef(FORMULA);
+            List<int[]> fields = new ArrayList<>();
+            for (int i = 0; i < constants.size(); i++) {
+                fields.add(new int[]{pool.utf8("c" + i), pool.utf8(constantTypes.get(i))});
+            }
+            int[][] methods = {
+                {0x0001, pool.utf8("<init>"), pool.utf8("()V"), 1},
+                {0x0008, pool.utf8("<clinit>"), pool.utf8("()V"), 1},
+                {0x0001, pool.utf8("eval"), pool.utf8(EVAL), maxLocals}
+            };
+            Code[] bodies = {init, clinit, eval};
+            int codeName = pool.utf8("Code");
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            pool.write(out);
+            out.writeShort(0x0030); // final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(formula);
+            out.writeShort(fields.size());
+            for (int[] field : fields) {
+                out.writeShort(0x001A); // private static final
+                out.writeShort(field[0]);
+                out.writeShort(field[1]);
+                out.writeShort(0);
+            }
+            out.writeShort(methods.length);
+            for (int m = 0; m < methods.length; m++) {
+                out.writeShort(methods[m][0]);
+                out.writeShort(methods[m][1]);
+                out.writeShort(methods[m][2]);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + bodies[m].length());
+                out.writeShort(bodies[m].maxStack);
+                out.writeShort(methods[m][3]);
+                out.writeInt(bodies[m].length());
+                bodies[m].writeTo(out);
+                out.writeShort(0); // Exception table
+                out.writeShort(0); // Attributes
+            }
+            out.writeShort(0); // Class attributes
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    // List<?> data = MethodHandles.classData(MethodHandles.lookup(), "_", List.class); c<i> = (<type>) data.get(i)..
+    private Code staticInitializer() {
+        Code clinit = new Code();
+        clinit.invoke(0xb8, pool.method("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false), 1);
+        clinit.ldc(pool.string("_"), 1);
+        clinit.ldc(pool.classRef("java/util/List"), 1);
+        clinit.invoke(0xb8, pool.method("java/lang/invoke/MethodHandles", "classData",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;", false), -2);
+        clinit.op(0xc0, 0); // checkcast
+        clinit.u2(pool.classRef("java/util/List"));
+        clinit.op(0x4b, -1); // astore_0
+        for (int i = 0; i < constants.size(); i++) {
+            String type = constantTypes.get(i);
+            clinit.op(0x2a, 1); // aload_0
+            clinit.op(0x11, 1); // sipush
+            clinit.u2(i);
+            clinit.invokeInterface(pool.method("java/util/List", "get", "(I)Ljava/lang/Object;", true), 2, -1);
+            clinit.op(0xc0, 0); // checkcast
+            clinit.u2(pool.classRef(type.substring(1, type.length() - 1)));
+            clinit.op(0xb3, -1); // putstatic
+            clinit.u2(pool.field(NAME, "c" + i, type));
+        }
+        clinit.op(0xb1, 0); // return
+        return clinit;
+    }
+
+    // Bytecode of one method, tracking the operand stack depth (in slots, a double takes two)
+    private static final class Code {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int stack;
+        int maxStack;
+
+        void op(int opcode, int stackChange) {
+            bytes.write(opcode);
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void u1(int value) {
+            bytes.write(value);
+        }
+
+        void u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+        }
+
+        void invoke(int opcode, int method, int stackChange) {
+            op(opcode, stackChange);
+            u2(method);
+        }
+
+        void invokeInterface(int method, int argumentSlots, int stackChange) {
+            invoke(0xb9, method, stackChange);
+            u1(argumentSlots);
+            u1(0);
+        }
+
+        void ldc(int index, int stackChange) {
+            if (index <= 0xFF) {
+                op(0x12, stackChange);
+                u1(index);
+            } else {
+                op(0x13, stackChange); // ldc_w
+                u2(index);
+            }
+        }
+
+        // dload / dstore, wide for locals past 255
+        void local(int opcode, int index, int stackChange) {
+            if (index > 0xFF) {
+                op(0xc4, 0);
+                u1(opcode);
+                u2(index);
+                stack += stackChange;
+            } else {
+                op(opcode, stackChange);
+                u1(index);
+            }
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        int length() {
+            return bytes.size();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            bytes.writeTo(out);
+        }
+    }
+
+    // Constant pool, every entry is added once
+    private static final class Pool {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, 1, () -> out.writeUTF(value));
+        }
+
+        int classRef(String name) {
+            int utf8 = utf8(name);
+            return entry("C" + name, 1, 7, () -> out.writeShort(utf8));
+        }
+
+        int string(String value) {
+            int utf8 = utf8(value);
+            return entry("S" + value, 1, 8, () -> out.writeShort(utf8));
+        }
+
+        int doubleConstant(double value) {
+            return entry("D" + Double.doubleToRawLongBits(value), 2, 6, () -> out.writeDouble(value));
+        }
+
+        int field(String owner, String name, String type) {
+            return member(9, owner, name, type);
+        }
+
+        int method(String owner, String name, String type, boolean isInterface) {
+            return member(isInterface ? 11 : 10, owner, name, type);
+        }
+
+        private int member(int tag, String owner, String name, String type) {
+            int owning = classRef(owner);
+            int utf8Name = utf8(name), utf8Type = utf8(type);
+            int nameAndType = entry("N" + name + ":" + type, 1, 12, () -> {
+                out.writeShort(utf8Name);
+                out.writeShort(utf8Type);
+            });
+            return entry(tag + owner + "." + name + ":" + type, 1, tag, () -> {
+                out.writeShort(owning);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private interface Body {
+
+            void write() throws IOException;
+        }
+
+        // slots is 2 for doubles, which take two constant pool indexes
+        private int entry(String key, int slots, int tag, Body body) {
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            indexes.put(key, count);
+            count += slots;
+            if (count > 0xFFFF) {
+                throw new UnsupportedOperationException("Expression too large to compile");
+            }
+            return count - slots;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            out.flush();
+            bytes.writeTo(target);
+        }
+    }
+}
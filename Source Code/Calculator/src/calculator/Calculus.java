@@ -0,0 +1,368 @@
+// Numerical calculus over a function of x: integrate(f, a, b), deriv(f, at) and root(f, lo, hi)
+// The function is an expression parsed once, with x in its own variable slot (see Node.CalculusCall);
+// integrate and root evaluate it through the bytecode the Optimizer compiled it to, so the thousands
+// of evaluations of one call neither parse nor walk a tree.
+// - integrate: adaptive Gauss-Kronrod quadrature (7-point Gauss, 15-point Kronrod rule), the interval
+//   is halved until the error estimate of every piece is within its share of the tolerance. The halves
+//   of the first PARALLEL_DEPTH levels are integrated in parallel (fork-join common pool). Pieces still
+//   over tolerance when the depth or the piece budget runs out make it fail instead of returning a guess
+// - deriv: forward-mode automatic differentiation, the tree is evaluated on dual numbers (value and
+//   slope with respect to x), so the derivative is exact up to rounding, with no step size to choose
+// - root: Brent's method, inverse quadratic interpolation and secant steps safeguarded by bisection,
+//   over a bracket where f changes sign
+// Trigonometric functions work in degrees, like everywhere else in the calculator
+package calculator;
+
+import calculator.Node.*;
+import java.io.Serial;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+
+final class Calculus {
+
+    private static final double RELATIVE_TOLERANCE = 1e-12;
+    private static final double ABSOLUTE_TOLERANCE = 1e-14;
+    private static final int MAX_DEPTH = 50; // Halvings of the interval
+    private static final int MAX_PIECES = 100_000; // Subdivisions of one integral, for functions that never converge
+    // Error estimate of the pieces left unrefined (depth or budget exhausted), relative to the integral, above
+    // which it is reported as not converging: 1/x over [0, 1] leaves about 4e-2, 1/sqrt(x) about 1e-9
+    private static final double MAX_UNRESOLVED = 1e-4;
+    private static final int PARALLEL_DEPTH = 6; // Levels whose halves are forked: up to 64 parallel tasks
+    private static final int MAX_ITERATIONS = 2000; // Steps of the root finder, at least one bisection every 3
+
+    // Abscissae and weights of the 15-point Kronrod rule on [-1, 1], from the outermost node to the center,
+    // the odd ones are the nodes of the embedded 7-point Gauss rule (weights GAUSS)
+    private static final double[] NODES = {
+            0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+            0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+            0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+            0.207784955007898467600689403773245, 0};
+    private static final double[] KRONROD = {
+            0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+            0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+            0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+            0.204432940075298892414161999234649, 0.209482141084727828012999174891714};
+    private static final double[] GAUSS = {
+            0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+            0.381830050505118944950369775488975, 0.417959183673469387755102040816327};
+
+    private Calculus() {
+    }
+
+    // ================== Integration ===================
+    // Integral of f over [a, b], vars are the values of the enclosing expression, x is variable slot
+    static double integrate(Node f, double[] vars, int slot, double a, double b) {
+        if (!Double.isFinite(a) || !Double.isFinite(b)) {
+            throw new RuntimeException("integrate needs finite bounds");
+        }
+        if (a == b) {
+            return 0;
+        }
+        Piece whole = gaussKronrod(f, vars, slot, a, b);
+        double tolerance = Math.max(ABSOLUTE_TOLERANCE, RELATIVE_TOLERANCE * Math.abs(whole.value));
+        DoubleAdder unresolved = new DoubleAdder();
+        double value = new Subdivision(f, vars, slot, whole, tolerance, 0, new AtomicInteger(MAX_PIECES), unresolved).invoke();
+        if (unresolved.sum() > Math.max(ABSOLUTE_TOLERANCE, MAX_UNRESOLVED * Math.abs(value))) {
+            throw new ArithmeticException("integrate does not converge over [" + a + ", " + b + "], the integral may diverge");
+        }
+        return value;
+    }
+
+    // Estimate of the integral over [a, b] and of its error (difference between the two rules)
+    private record Piece(double a, double b, double value, double error) {
+    }
+
+    private static Piece gaussKronrod(Node f, double[] vars, int slot, double a, double b) {
+        double[] frame = Arrays.copyOf(vars, slot + 1); // One per piece, pieces run on several threads
+        double center = 0.5 * (a + b), half = 0.5 * (b - a);
+        double fc = at(f, frame, slot, center);
+        double kronrod = fc * KRONROD[7], gauss = fc * GAUSS[3];
+        for (int i = 0; i < 7; i++) {
+            double dx = half * NODES[i];
+            double sum = at(f, frame, slot, center - dx) + at(f, frame, slot, center + dx);
+            kronrod += KRONROD[i] * sum;
+            if (i % 2 == 1) {
+                gauss += GAUSS[i / 2] * sum;
+            }
+        }
+        return new Piece(a, b, kronrod * half, Math.abs((kronrod - gauss) * half));
+    }
+
+    private static double at(Node f, double[] frame, int slot, double x) {
+        frame[slot] = x;
+        return f.eval(frame);
+    }
+
+    // Refinement of one piece: kept when its error is within tolerance, otherwise both halves are
+    // refined with half the tolerance each. pieces is the subdivision budget shared by the whole integral,
+    // unresolved adds up the error of the pieces kept over tolerance once the depth or the budget ran out
+    private static final class Subdivision extends RecursiveTask<Double> {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        // Node and Piece are not serializable, a task only lives inside one integral
+        private final transient Node f;
+        private final double[] vars;
+        private final int slot;
+        private final transient Piece piece;
+        private final double tolerance;
+        private final int depth;
+        private final AtomicInteger pieces;
+        private final DoubleAdder unresolved;
+
+        Subdivision(Node f, double[] vars, int slot, Piece piece, double tolerance, int depth, AtomicInteger pieces,
+                DoubleAdder unresolved) {
+            this.f = f;
+            this.vars = vars;
+            this.slot = slot;
+            this.piece = piece;
+            this.tolerance = tolerance;
+            this.depth = depth;
+            this.pieces = pieces;
+            this.unresolved = unresolved;
+        }
+
+        @Override
+        protected Double compute() {
+            Evaluator.checkCancelled();
+            double middle = 0.5 * (piece.a + piece.b);
+            if (piece.error <= tolerance || !Double.isFinite(piece.value)) {
+                return piece.value;
+            }
+            if (depth == MAX_DEPTH || middle <= piece.a || middle >= piece.b || pieces.decrementAndGet() < 0) {
+                unresolved.add(piece.error); // Kept unrefined, its error counts against the whole integral
+                return piece.value;
+            }
+            Subdivision left = half(piece.a, middle);
+            Subdivision right = half(middle, piece.b);
+            if (depth < PARALLEL_DEPTH) {
+                left.fork();
+                double sum = right.compute();
+                return left.join() + sum;
+            }
+            return left.compute() + right.compute();
+        }
+
+        private Subdivision half(double a, double b) {
+            return new Subdivision(f, vars, slot, gaussKronrod(f, vars, slot, a, b), tolerance / 2, depth + 1, pieces, unresolved);
+        }
+    }
+
+    // ================== Differentiation ===================
+    // Derivative of f with respect to x at the given point
+    static double derivative(Node f, double[] vars, int slot, double at) {
+        double[] values = Arrays.copyOf(vars, slot + 1);
+        double[] slopes = new double[slot + 1];
+        values[slot] = at;
+        slopes[slot] = 1;
+        return dual(f, values, slopes).slope;
+    }
+
+    // Value of a node and its derivative with respect to x
+    private record Dual(double value, double slope) {
+    }
+
+    // Evaluate on dual numbers: slopes[s] is the derivative of the value in slot s (x, temporaries)
+    private static Dual dual(Node node, double[] values, double[] slopes) {
+        return switch (node) {
+            case Num n -> new Dual(n.value(), 0);
+            case Constant c -> new Dual(c.value(), 0);
+            case Var v -> new Dual(values[v.slot()], slopes[v.slot()]);
+            case Temp t -> new Dual(values[t.slot()], slopes[t.slot()]);
+            case Compiled c -> dual(c.source(), values, slopes);
+            case Let let -> {
+                int size = let.firstSlot() + let.temps().size();
+                double[] frame = Arrays.copyOf(values, size), frameSlopes = Arrays.copyOf(slopes, size);
+                for (int t = 0; t < let.temps().size(); t++) {
+                    Dual temp = dual(let.temps().get(t), frame, frameSlopes);
+                    frame[let.firstSlot() + t] = temp.value;
+                    frameSlopes[let.firstSlot() + t] = temp.slope;
+                }
+                yield dual(let.body(), frame, frameSlopes);
+            }
+            case Negate n -> {
+                Dual u = dual(n.operand(), values, slopes);
+                yield new Dual(-u.value, -u.slope);
+            }
+            case BinaryOp b -> binary(b.op(), dual(b.left(), values, slopes), dual(b.right(), values, slopes));
+            case UnaryCall c -> unary(c, dual(c.arg(), values, slopes));
+            case StatCall c -> statistics(c, values, slopes);
+            // Integer-valued (piecewise constant) functions
+            case MultiCall c -> new Dual(c.eval(values), 0);
+            case BooleanCall c -> new Dual(c.eval(values), 0);
+            default -> {
+                if (Optimizer.usesVariable(node, s -> s < slopes.length && slopes[s] != 0)) {
+                    throw new RuntimeException("deriv can't differentiate " + describe(node));
+                }
+                yield new Dual(node.eval(values), 0); // Doesn't depend on x
+            }
+        };
+    }
+
+    private static Dual binary(char op, Dual u, Dual v) {
+        return switch (op) {
+            case '+' -> new Dual(u.value + v.value, u.slope + v.slope);
+            case '-' -> new Dual(u.value - v.value, u.slope - v.slope);
+            case '*' -> new Dual(u.value * v.value, u.slope * v.value + u.value * v.slope);
+            case '/' -> new Dual(u.value / v.value, (u.slope * v.value - u.value * v.slope) / (v.value * v.value));
+            default -> { // '^'
+                double value = Math.pow(u.value, v.value);
+                double slope = 0;
+                if (v.slope != 0) { // (u^v)' = u^v * (v' ln u + v u' / u)
+                    slope = value * (v.slope * Math.log(u.value) + (u.slope == 0 ? 0 : v.value * u.slope / u.value));
+                } else if (u.slope != 0) { // Constant exponent: (u^c)' = c u^(c-1) u'
+                    slope = v.value * Math.pow(u.value, v.value - 1) * u.slope;
+                }
+                yield new Dual(value, slope);
+            }
+        };
+    }
+
+    // Chain rule through the built-in functions, the degree-based ones scaled by pi/180
+    private static Dual unary(UnaryCall c, Dual u) {
+        double x = u.value;
+        double value = c.op().applyAsDouble(x);
+        if (c.roundSmall() && Math.abs(value) < 1e-10) {
+            value = 0;
+        }
+        if (u.slope == 0) {
+            return new Dual(value, 0);
+        }
+        double radians = Math.toRadians(x), degree = Math.PI / 180;
+        double derivative = switch (c.name()) {
+            case "sin" -> Math.cos(radians) * degree;
+            case "cos" -> -Math.sin(radians) * degree;
+            case "tan" -> degree / (Math.cos(radians) * Math.cos(radians));
+            case "sqrt" -> 0.5 / Math.sqrt(x);
+            case "log" -> 1 / (x * Math.log(10));
+            case "ln" -> 1 / x;
+            case "exp" -> Math.exp(x);
+            case "cbrt" -> 1 / (3 * Math.cbrt(x) * Math.cbrt(x));
+            case "square" -> 2 * x;
+            case "cube" -> 3 * x * x;
+            case "asin" -> 1 / (degree * Math.sqrt(1 - x * x));
+            case "acos" -> -1 / (degree * Math.sqrt(1 - x * x));
+            case "atan" -> 1 / (degree * (1 + x * x));
+            case "round", "ceil", "floor", "nextprime", "primepi" -> 0; // Piecewise constant
+            default -> throw new RuntimeException("deriv can't differentiate " + c.name());
+        };
+        return new Dual(value, derivative * u.slope);
+    }
+
+    // Sums, means and extremes of the arguments, the other statistics only when they don't depend on x
+    private static Dual statistics(StatCall c, double[] values, double[] slopes) {
+        if (c.args().stream().anyMatch(arg -> arg instanceof FileArg)) {
+            return new Dual(c.eval(values), 0);
+        }
+        Dual[] args = new Dual[c.args().size()];
+        double[] argValues = new double[args.length];
+        boolean constant = true;
+        for (int i = 0; i < args.length; i++) {
+            args[i] = dual(c.args().get(i), values, slopes);
+            argValues[i] = args[i].value;
+            constant &= args[i].slope == 0;
+        }
+        double value = c.apply(argValues);
+        if (constant) {
+            return new Dual(value, 0);
+        }
+        double slope = switch (c.name()) {
+            case "sum" -> Arrays.stream(args).mapToDouble(Dual::slope).sum();
+            case "avg", "mean" -> Arrays.stream(args).mapToDouble(Dual::slope).sum() / args.length;
+            case "count" -> 0;
+            case "min", "max" -> {
+                for (Dual arg : args) {
+                    if (arg.value == value) {
+                        yield arg.slope; // The extreme argument
+                    }
+                }
+                yield Double.NaN;
+            }
+            default -> throw new RuntimeException("deriv can't differentiate " + c.name());
+        };
+        return new Dual(value, slope);
+    }
+
+    private static String describe(Node node) {
+        return switch (node) {
+            case CalculusCall c -> c.name();
+            case MatrixScalarCall c -> c.name();
+            default -> "this expression";
+        };
+    }
+
+    // ================== Root finding ===================
+    // A zero of f in [lo, hi], f(lo) and f(hi) must have opposite signs (Brent's zeroin)
+    static double root(Node f, double[] vars, int slot, double lo, double hi) {
+        double[] frame = Arrays.copyOf(vars, slot + 1);
+        double a = lo, b = hi;
+        double fa = at(f, frame, slot, a), fb = at(f, frame, slot, b);
+        if (fa == 0) {
+            return a;
+        }
+        if (fb == 0) {
+            return b;
+        }
+        if (Double.isNaN(fa) || Double.isNaN(fb) || (fa > 0) == (fb > 0)) {
+            throw new RuntimeException("root needs a function with opposite signs at " + lo + " and " + hi);
+        }
+        // b is the best estimate, a the previous one, [b, c] brackets the root
+        double c = a, fc = fa, d = b - a, e = d;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            if (Math.abs(fc) < Math.abs(fb)) {
+                a = b;
+                b = c;
+                c = a;
+                fa = fb;
+                fb = fc;
+                fc = fa;
+            }
+            double tolerance = 2 * Math.ulp(1.0) * Math.abs(b) + Double.MIN_NORMAL;
+            double m = 0.5 * (c - b);
+            if (Math.abs(m) <= tolerance || fb == 0) {
+                return b;
+            }
+            if (Math.abs(e) >= tolerance && Math.abs(fa) > Math.abs(fb)) {
+                double s = fb / fa, p, q;
+                if (a == c) { // Secant
+                    p = 2 * m * s;
+                    q = 1 - s;
+                } else { // Inverse quadratic interpolation
+                    double r = fb / fc;
+                    q = fa / fc;
+                    p = s * (2 * m * q * (q - r) - (b - a) * (r - 1));
+                    q = (q - 1) * (r - 1) * (s - 1);
+                }
+                if (p > 0) {
+                    q = -q;
+                } else {
+                    p = -p;
+                }
+                if (2 * p < 3 * m * q - Math.abs(tolerance * q) && p < Math.abs(0.5 * e * q)) {
+                    e = d;
+                    d = p / q;
+                } else {
+                    d = m; // Interpolation too slow or out of the bracket: bisect
+                    e = m;
+                }
+            } else {
+                d = m;
+                e = m;
+            }
+            a = b;
+            fa = fb;
+            b += Math.abs(d) > tolerance ? d : Math.copySign(tolerance, m);
+            fb = at(f, frame, slot, b);
+            if ((fb > 0) == (fc > 0)) { // The root is between a and b now
+                c = a;
+                fc = fa;
+                d = b - a;
+                e = d;
+            }
+        }
+        return b;
+    }
+}
@@ -0,0 +1,264 @@
+// Exact big-integer engine of the Combinatorics functions: n! (or factorial(n)), nCr, nPr and fib
+// - factorial: Luschny's prime-swing algorithm. The odd part of n! is oddFactorial(n / 2)^2 times the
+//   odd part of swing(n) = n! / (n / 2)!^2, a product of prime powers read off the primes up to n
+//   (no division at all); the power of two, n - bitCount(n), is one final shift
+// - nCr: the prime factorization of C(n, r), Kummer's theorem gives the exponent of p as the number of
+//   carries when adding r and n - r in base p. Small r (or n past the sieve) divide nPr by r! instead
+// - nPr: the product of n - r + 1 .. n
+// - fib: fast doubling, F(2k) = F(k) (2 F(k+1) - F(k)) and F(2k+1) = F(k)^2 + F(k+1)^2
+// Products are balanced product trees, so both operands of a multiplication grow together and
+// BigInteger's Karatsuba and Toom-Cook algorithms do the heavy lifting; large subtrees run in parallel
+// (fork-join common pool) and large multiplications use BigInteger.parallelMultiply.
+// In double mode a result is rounded from its exact value, and is Infinity beyond the double range
+// without being computed
+package calculator;
+
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.concurrent.ForkJoinTask;
+
+final class Combinatorics {
+
+    private static final long MAX_BITS = 1L << 24; // Refuse results with more bits, like integer powers
+    private static final int DOUBLE_BITS = 1100; // Results with more bits are Infinity in double mode
+    private static final int LEAF = 32; // Factors multiplied one by one at the leaves of a product tree
+    private static final int PARALLEL_FACTORS = 4096; // Subtrees with more factors are split across cores
+    private static final int PARALLEL_BITS = 1 << 20; // Products with more bits use parallelMultiply
+    private static final int SMALL_BINOMIAL = 64; // nCr with a smaller r is computed as nPr / r!
+    private static final int SIEVE_LIMIT = 1 << 27; // Largest n factored with the sieve (see Primes)
+
+    private Combinatorics() {
+    }
+
+    // ================== Evaluator functions ===================
+    // Double and exact forms, the arguments must be non-negative integers
+    static double factorial(double[] args) {
+        long n = natural("factorial", args[0]);
+        return log2Factorial(n) > DOUBLE_BITS ? Double.POSITIVE_INFINITY : factorial(n).doubleValue();
+    }
+
+    static Number factorial(Number[] args, MathContext mc) {
+        long n = natural("factorial", args[0]);
+        checkSize(log2Factorial(n));
+        return Precise.normalize(factorial(n));
+    }
+
+    static double binomial(double[] args) {
+        long n = natural("nCr", args[0]), r = natural("nCr", args[1]);
+        return log2Binomial(n, r) > DOUBLE_BITS ? Double.POSITIVE_INFINITY : binomial(n, r).doubleValue();
+    }
+
+    static Number binomial(Number[] args, MathContext mc) {
+        long n = natural("nCr", args[0]), r = natural("nCr", args[1]);
+        checkSize(log2Binomial(n, r));
+        return Precise.normalize(binomial(n, r));
+    }
+
+    static double permutations(double[] args) {
+        long n = natural("nPr", args[0]), r = natural("nPr", args[1]);
+        return log2Permutations(n, r) > DOUBLE_BITS ? Double.POSITIVE_INFINITY : permutations(n, r).doubleValue();
+    }
+
+    static Number permutations(Number[] args, MathContext mc) {
+        long n = natural("nPr", args[0]), r = natural("nPr", args[1]);
+        checkSize(log2Permutations(n, r));
+        return Precise.normalize(permutations(n, r));
+    }
+
+    static double fibonacci(double[] args) {
+        long n = natural("fib", args[0]);
+        return n > 1476 ? Double.POSITIVE_INFINITY : fibonacci(n).doubleValue(); // fib(1477) > Double.MAX_VALUE
+    }
+
+    static Number fibonacci(Number[] args, MathContext mc) {
+        long n = natural("fib", args[0]);
+        checkSize(n * 0.6943); // log2 of the golden ratio
+        return Precise.normalize(fibonacci(n));
+    }
+
+    private static long natural(String name, double value) {
+        if (value != Math.rint(value) || value < 0 || value >= 0x1p53) {
+            throw new ArithmeticException(name + " needs a non-negative integer, not " + value);
+        }
+        return (long) value;
+    }
+
+    private static long natural(String name, Number value) {
+        if (Precise.isInteger(value) || Precise.toBigDecimal(value).stripTrailingZeros().scale() <= 0) {
+            BigInteger n = Precise.toBigInteger(value);
+            if (n.signum() >= 0 && n.bitLength() <= 53) {
+                return n.longValue();
+            }
+        }
+        throw new ArithmeticException(name + " needs a non-negative integer, not " + Precise.format(value));
+    }
+
+    private static void checkSize(double bits) {
+        if (bits > MAX_BITS) {
+            throw new ArithmeticException("Result too large");
+        }
+    }
+
+    // Stirling estimates of the result sizes, in bits
+    private static double log2Factorial(long n) {
+        if (n < 2) {
+            return 0;
+        }
+        return (n * Math.log(n) - n + 0.5 * Math.log(2 * Math.PI * n)) / Math.log(2);
+    }
+
+    private static double log2Binomial(long n, long r) {
+        return r > n ? 0 : log2Factorial(n) - log2Factorial(r) - log2Factorial(n - r);
+    }
+
+    private static double log2Permutations(long n, long r) {
+        return r > n ? 0 : log2Factorial(n) - log2Factorial(n - r);
+    }
+
+    // ================== Factorial ===================
+    static BigInteger factorial(long n) {
+        if (n < 2) {
+            return BigInteger.ONE;
+        }
+        if (n > SIEVE_LIMIT) {
+            throw new ArithmeticException("Result too large");
+        }
+        int[] primes = Primes.oddPrimesUpTo((int) n);
+        return oddFactorial((int) n, primes).shiftLeft((int) (n - Long.bitCount(n)));
+    }
+
+    // Odd part of n!
+    private static BigInteger oddFactorial(int n, int[] primes) {
+        if (n < 3) {
+            return BigInteger.ONE;
+        }
+        BigInteger half = oddFactorial(n / 2, primes);
+        return multiply(multiply(half, half), swing(n, primes));
+    }
+
+    // Odd part of n! / (n / 2)!^2: p appears once for every odd quotient n / p^k
+    private static BigInteger swing(int n, int[] primes) {
+        Evaluator.checkCancelled();
+        long[] factors = new long[primes.length];
+        int count = 0;
+        for (int i = 0; i < primes.length && primes[i] <= n; i++) {
+            int p = primes[i];
+            long power = 1;
+            for (int q = n / p; q > 0; q /= p) {
+                if ((q & 1) == 1) {
+                    power *= p;
+                }
+            }
+            if (power > 1) {
+                factors[count++] = power;
+            }
+        }
+        return product(factors, 0, count);
+    }
+
+    // ================== Binomials and permutations ===================
+    static BigInteger binomial(long n, long r) {
+        if (r > n) {
+            return BigInteger.ZERO;
+        }
+        r = Math.min(r, n - r);
+        if (r < SMALL_BINOMIAL || n > SIEVE_LIMIT) {
+            return permutations(n, r).divide(factorial(r));
+        }
+        Evaluator.checkCancelled();
+        int[] primes = Primes.oddPrimesUpTo((int) n);
+        long[] factors = new long[primes.length];
+        int count = 0;
+        for (int p : primes) {
+            long power = 1;
+            // One factor p for every carry of r + (n - r) in base p
+            for (long a = r, b = n - r, carry = 0; a > 0 || b > 0 || carry > 0; a /= p, b /= p) {
+                carry = a % p + b % p + carry >= p ? 1 : 0;
+                if (carry == 1) {
+                    power *= p;
+                }
+            }
+            if (power > 1) {
+                factors[count++] = power;
+            }
+        }
+        int twos = Long.bitCount(r) + Long.bitCount(n - r) - Long.bitCount(n); // Carries in base 2
+        return product(factors, 0, count).shiftLeft(twos);
+    }
+
+    static BigInteger permutations(long n, long r) {
+        return r > n ? BigInteger.ZERO : rangeProduct(n - r + 1, n);
+    }
+
+    // ================== Fibonacci ===================
+    static BigInteger fibonacci(long n) {
+        BigInteger a = BigInteger.ZERO, b = BigInteger.ONE; // F(k), F(k+1), k = the bits of n read so far
+        for (int bit = 63 - Long.numberOfLeadingZeros(n); bit >= 0; bit--) {
+            Evaluator.checkCancelled();
+            BigInteger even = multiply(a, b.shiftLeft(1).subtract(a)); // F(2k)
+            BigInteger odd = multiply(a, a).add(multiply(b, b)); // F(2k+1)
+            if ((n >>> bit & 1) == 0) {
+                a = even;
+                b = odd;
+            } else {
+                a = odd;
+                b = even.add(odd);
+            }
+        }
+        return a;
+    }
+
+    // ================== Product trees ===================
+    // Product of factors[from, to), every factor positive
+    private static BigInteger product(long[] factors, int from, int to) {
+        int count = to - from;
+        if (count <= LEAF) {
+            BigInteger result = BigInteger.ONE;
+            long partial = 1;
+            for (int i = from; i < to; i++) {
+                if (partial > Long.MAX_VALUE / factors[i]) {
+                    result = result.multiply(BigInteger.valueOf(partial));
+                    partial = 1;
+                }
+                partial *= factors[i];
+            }
+            return result.multiply(BigInteger.valueOf(partial));
+        }
+        int middle = (from + to) >>> 1;
+        if (count >= PARALLEL_FACTORS) {
+            ForkJoinTask<BigInteger> left = ForkJoinTask.adapt(() -> product(factors, from, middle)).fork();
+            BigInteger right = product(factors, middle, to);
+            return multiply(left.join(), right);
+        }
+        return multiply(product(factors, from, middle), product(factors, middle, to));
+    }
+
+    // Product of the integers in [from, to], split by value instead of over an array
+    private static BigInteger rangeProduct(long from, long to) {
+        long count = to - from + 1;
+        if (count <= LEAF) {
+            BigInteger result = BigInteger.ONE;
+            long partial = 1;
+            for (long i = from; i <= to; i++) {
+                if (partial > Long.MAX_VALUE / i) {
+                    result = result.multiply(BigInteger.valueOf(partial));
+                    partial = 1;
+                }
+                partial *= i;
+            }
+            return result.multiply(BigInteger.valueOf(partial));
+        }
+        long middle = from + count / 2;
+        if (count >= PARALLEL_FACTORS) {
+            ForkJoinTask<BigInteger> left = ForkJoinTask.adapt(() -> rangeProduct(from, middle - 1)).fork();
+            BigInteger right = rangeProduct(middle, to);
+            return multiply(left.join(), right);
+        }
+        Evaluator.checkCancelled();
+        return multiply(rangeProduct(from, middle - 1), rangeProduct(middle, to));
+    }
+
+    private static BigInteger multiply(BigInteger a, BigInteger b) {
+        return (long) a.bitLength() + b.bitLength() > PARALLEL_BITS ? a.parallelMultiply(b) : a.multiply(b);
+    }
+}
@@ -0,0 +1,148 @@
+// An expression compiled once and evaluated many times for different variable values
+// Array evaluation runs block by block: every AST node processes a whole block of values in a
+// tight loop, so there is no per-element dispatch or allocation and the JIT can auto-vectorize
+// the arithmetic loops. Large arrays are split into chunks evaluated in parallel
+// Single evaluations start in the tree interpreter; after COMPILE_THRESHOLD of them the expression is
+// compiled to bytecode (see BytecodeCompiler), and stays interpreted if it can't be compiled
+// Complex evaluations run a register program (see Complex) compiled from the tree the first time
+package calculator;
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class CompiledExpression {
+
+    private static final int PARALLEL_CHUNK = 64 << 10; // Elements per parallel task
+    // Evaluations before compiling to bytecode, -Dcalculator.compileThreshold=0 never compiles
+    static final int COMPILE_THRESHOLD = Integer.getInteger("calculator.compileThreshold", 10_000);
+
+    private final String text;
+    private final List<String> variables;
+    // Replaced by a Node.Compiled once hot, whose final fields make it safe to publish without locking
+    private Node root;
+    private int evaluations; // Counted without synchronization, a lost update only delays the promotion
+    private Complex complex; // Complex program, null until needed (racing threads compile the same one)
+
+    CompiledExpression(String text, List<String> variables, Node root) {
+        this.text = text;
+        this.variables = variables;
+        this.root = root;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    public List<String> variables() {
+        return variables;
+    }
+
+    // Evaluate once, values are given in the order of the declared variables
+    public double eval(double... values) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException("Expected " + variables.size() + " values, got " + values.length);
+        }
+        if (evaluations < COMPILE_THRESHOLD && ++evaluations >= COMPILE_THRESHOLD) {
+            promote();
+        }
+        return root.eval(values);
+    }
+
+    // Evaluate once in complex mode (the variables are real): result[0] is the real part, result[1]
+    // the imaginary part
+    public void evalComplex(double[] values, double[] result) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException("Expected " + variables.size() + " values, got " + values.length);
+        }
+        Complex program = complex;
+        if (program == null) {
+            program = Complex.compile(root);
+            complex = program;
+        }
+        program.eval(values, result);
+    }
+
+    private void promote() {
+        try {
+            root = new Node.Compiled(root, BytecodeCompiler.compile(root));
+        } catch (RuntimeException | LinkageError ex) {
+            // Too large, or rejected by the JVM: keep interpreting
+        }
+    }
+
+    // Evaluate a single-variable expression for every x: out[i] = f(x[i])
+    public void evalAll(double[] x, double[] out) {
+        evalAll(new double[][]{x}, out);
+    }
+
+    // Evaluate for every row: out[i] = f(columns[0][i], columns[1][i], ...), one column per variable
+    public void evalAll(double[][] columns, double[] out) {
+        checkColumns(columns.length);
+        for (double[] column : columns) {
+            if (column.length < out.length) {
+                throw new IllegalArgumentException("Input column shorter than output: " + column.length + " < " + out.length);
+            }
+        }
+        int n = out.length;
+        if (n <= PARALLEL_CHUNK) {
+            evalRange(columns, 0, n, out, new Node.Scratch(columns.length));
+            return;
+        }
+        // Each chunk gets its own scratch blocks, so tasks share nothing but the read-only tree
+        IntStream.range(0, (n + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK).parallel().forEach(chunk -> {
+            int from = chunk * PARALLEL_CHUNK;
+            evalRange(columns, from, Math.min(PARALLEL_CHUNK, n - from), out, new Node.Scratch(columns.length));
+        });
+    }
+
+    // Evaluate a single-variable expression over the remaining values of x into out
+    // Both buffers (heap or direct) advance by the number of values evaluated
+    public void evalAll(DoubleBuffer x, DoubleBuffer out) {
+        checkColumns(1);
+        int n = Math.min(x.remaining(), out.remaining());
+        int xStart = x.position();
+        int outStart = out.position();
+        IntStream chunks = IntStream.range(0, (n + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK);
+        if (n > PARALLEL_CHUNK) {
+            chunks = chunks.parallel();
+        }
+        chunks.forEach(chunk -> {
+            Node.Scratch scratch = new Node.Scratch(1);
+            double[][] columns = {scratch.take()};
+            double[] block = scratch.take();
+            int end = Math.min(n, (chunk + 1) * PARALLEL_CHUNK);
+            for (int from = chunk * PARALLEL_CHUNK; from < end; from += Node.BLOCK_SIZE) {
+                int length = Math.min(Node.BLOCK_SIZE, end - from);
+                // Absolute bulk transfers, the buffers' positions are shared between tasks
+                x.get(xStart + from, columns[0], 0, length);
+                root.evalBlock(columns, 0, length, block, scratch);
+                out.put(outStart + from, block, 0, length);
+            }
+        });
+        x.position(xStart + n);
+        out.position(outStart + n);
+    }
+
+    // Evaluate rows [from, from + length) block by block
+    private void evalRange(double[][] columns, int from, int length, double[] out, Node.Scratch scratch) {
+        double[] block = scratch.take();
+        for (int offset = from; offset < from + length; offset += Node.BLOCK_SIZE) {
+            int count = Math.min(Node.BLOCK_SIZE, from + length - offset);
+            root.evalBlock(columns, offset, count, block, scratch);
+            System.arraycopy(block, 0, out, offset, count);
+        }
+        scratch.release();
+    }
+
+    private void checkColumns(int count) {
+        if (count != variables.size()) {
+            throw new IllegalArgumentException("Expression " + text + " has " + variables.size() + " variables, got " + count);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,558 @@
+// Complex mode of the evaluator: sqrt(-1) = i, ln(-1) = 3.141592653589793i, (1 + 2i)(3 - i) = 5 + 5i
+// A tree is compiled into a small register program instead of being walked with one object per value:
+// register r is the pair of doubles frame[2r] (real part) and frame[2r + 1] (imaginary part), so an
+// evaluation allocates its frame and nothing per operation. Shared subexpressions (see Node.Let) are
+// computed once into registers of their own, folded constants are computed once at compile time.
+// - i is Node.ImaginaryUnit (3i, 2 + 3i), polar(r, angle) gives the rectangular form, variables are real
+// - + - * / ^ are complex. Division is Smith's algorithm (no overflow of c^2 + d^2), integer powers up to
+//   64 are repeated multiplications (exact for small Gaussian integers), other powers exp(w ln z)
+// - sin, cos, tan (degrees, like the real mode), exp, ln, log, sqrt, square and cube use the principal
+//   values (the angle of ln is in (-180, 180] degrees), parts below 1e-10 are rounded to 0 like the real
+//   results. re, im, abs, arg (in degrees) and conj give the parts of a value
+// - every other function takes real arguments: they are computed by the program and checked to be real.
+//   integrate, det and data files, which have no part in the program, are evaluated as real subtrees
+// Real values take the real path of every operation (sqrt(4) stays Math.sqrt), so a real expression
+// gives the same result as the real mode
+package calculator;
+
+import calculator.Node.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class Complex {
+
+    // Opcodes, an instruction is four ints: opcode, destination register, operands a and b
+    // (a register, a constant, a variable slot or a call; b of the functions is 1 to round small parts)
+    private static final int CONST = 0, VAR = 1, MOVE = 2, NEG = 3, ADD = 4, SUB = 5, MUL = 6, DIV = 7, POW = 8,
+            SIN = 9, COS = 10, TAN = 11, EXP = 12, LN = 13, LOG = 14, SQRT = 15, SQUARE = 16, CUBE = 17,
+            RE = 18, IM = 19, ABS = 20, ARG = 21, CONJ = 22, POLAR = 23, CALL = 24, REAL = 25;
+    private static final Map<String, Integer> FUNCTIONS = Map.ofEntries(Map.entry("sin", SIN), Map.entry("cos", COS),
+            Map.entry("tan", TAN), Map.entry("exp", EXP), Map.entry("ln", LN), Map.entry("log", LOG),
+            Map.entry("sqrt", SQRT), Map.entry("square", SQUARE), Map.entry("cube", CUBE), Map.entry("re", RE),
+            Map.entry("im", IM), Map.entry("abs", ABS), Map.entry("arg", ARG), Map.entry("conj", CONJ));
+    private static final int MAX_REPEATED_POWER = 64; // Larger integer exponents go through exp(w ln z)
+    private static final double SMALL = 1e-10; // Parts rounded to zero, like the real functions
+    private static final double LN10 = Math.log(10);
+
+    private final Node source; // Compiled tree, a cached program is only valid for it
+    private final int[] code;
+    private final double[] constants; // Real and imaginary parts, operand a of CONST is the index of the real one
+    private final Node[] calls; // Real functions (arguments in the frame after the registers) and real subtrees
+    private final int[] arities; // Arguments of each real function
+    private final int registers;
+    private final int frameSize; // Registers, then the arguments of the real function with the most
+
+    private Complex(Node source, Compiler compiler) {
+        this.source = source;
+        this.code = Arrays.copyOf(compiler.code, compiler.length);
+        this.constants = Arrays.copyOf(compiler.constants, compiler.constantCount);
+        this.registers = compiler.registers;
+        this.calls = new Node[compiler.calls.size()];
+        this.arities = new int[calls.length];
+        for (int c = 0; c < calls.length; c++) {
+            Node call = compiler.calls.get(c);
+            if (compiler.realSubtrees.contains(c)) {
+                calls[c] = call;
+            } else {
+                // The call with each argument replaced by a slot of the frame
+                int[] next = {2 * registers};
+                calls[c] = Optimizer.withChildren(call, child -> new Var("", next[0]++));
+                arities[c] = next[0] - 2 * registers;
+            }
+        }
+        this.frameSize = 2 * registers + Arrays.stream(arities).max().orElse(0);
+    }
+
+    // Value of the complex mode, a real result has im = 0
+    public record Value(double re, double im) {
+
+        private static final double NOISE = 1e-15; // Relative size of a part printed as 0
+
+        public boolean isReal() {
+            return im == 0;
+        }
+
+        // "3 + 4i", "-i", "0.5 - 0.8660254037844386i"; a real value is printed like the parts ("4", "-1").
+        // A part below 1e-10 and 1e-15 times the other one is the rounding error of an angle ((-1)^0.5
+        // has a real part of 6e-17) and is printed as 0
+        @Override
+        public String toString() {
+            if (Double.isNaN(re) || Double.isNaN(im)) {
+                return "NaN";
+            }
+            double x = isNoise(re, im) ? 0 : re;
+            double y = isNoise(im, re) ? 0 : im;
+            if (y == 0) {
+                return part(x);
+            }
+            String imaginary = (Math.abs(y) == 1 ? "" : part(Math.abs(y))) + "i";
+            if (x == 0) {
+                return y < 0 ? "-" + imaginary : imaginary;
+            }
+            return part(x) + (y < 0 ? " - " : " + ") + imaginary;
+        }
+
+        private static boolean isNoise(double part, double other) {
+            return Math.abs(part) < SMALL && Math.abs(part) < NOISE * Math.abs(other);
+        }
+
+        private static String part(double x) {
+            return x == Math.rint(x) && Math.abs(x) < 1e15 ? Long.toString((long) x) : Double.toString(x);
+        }
+    }
+
+    // ================== Evaluation ===================
+    Node source() {
+        return source;
+    }
+
+    Value eval(double[] vars) {
+        double[] frame = new double[frameSize];
+        run(vars, frame);
+        return new Value(frame[0], frame[1]);
+    }
+
+    // Evaluate into result[0] (real part) and result[1] (imaginary part)
+    void eval(double[] vars, double[] result) {
+        double[] frame = new double[frameSize];
+        run(vars, frame);
+        result[0] = frame[0];
+        result[1] = frame[1];
+    }
+
+    private void run(double[] vars, double[] f) {
+        int[] code = this.code;
+        for (int pc = 0; pc < code.length; pc += 4) {
+            int d = 2 * code[pc + 1], a = 2 * code[pc + 2], b = 2 * code[pc + 3];
+            switch (code[pc]) {
+                case CONST -> {
+                    f[d] = constants[code[pc + 2]];
+                    f[d + 1] = constants[code[pc + 2] + 1];
+                }
+                case VAR -> {
+                    f[d] = vars[code[pc + 2]];
+                    f[d + 1] = 0;
+                }
+                case MOVE -> {
+                    f[d] = f[a];
+                    f[d + 1] = f[a + 1];
+                }
+                case NEG -> {
+                    f[d] = -f[a];
+                    f[d + 1] = -f[a + 1];
+                }
+                case ADD -> {
+                    f[d] = f[a] + f[b];
+                    f[d + 1] = f[a + 1] + f[b + 1];
+                }
+                case SUB -> {
+                    f[d] = f[a] - f[b];
+                    f[d + 1] = f[a + 1] - f[b + 1];
+                }
+                case MUL -> multiply(f, d, f[a], f[a + 1], f[b], f[b + 1]);
+                case DIV -> divide(f, d, f[a], f[a + 1], f[b], f[b + 1]);
+                case POW -> pow(f, d, f[a], f[a + 1], f[b], f[b + 1]);
+                case CALL -> call(f, d, a, code[pc + 3]);
+                case REAL -> {
+                    f[d] = calls[code[pc + 3]].eval(vars);
+                    f[d + 1] = 0;
+                }
+                case POLAR -> polar(f, d, f[a], f[a + 1], f[b], f[b + 1]);
+                default -> {
+                    Evaluator.checkCancelled();
+                    function(code[pc], f, d, f[a], f[a + 1]);
+                    if (code[pc + 3] == 1) {
+                        f[d] = Math.abs(f[d]) < SMALL ? 0 : f[d];
+                        f[d + 1] = Math.abs(f[d + 1]) < SMALL ? 0 : f[d + 1];
+                    }
+                }
+            }
+        }
+    }
+
+    // Real function call, the arguments are the registers from a (a frame index)
+    private void call(double[] f, int d, int a, int index) {
+        for (int k = 0; k < arities[index]; k++) {
+            if (f[a + 2 * k + 1] != 0) {
+                throw new ArithmeticException(name(calls[index]) + " is not defined for complex numbers");
+            }
+            f[2 * registers + k] = f[a + 2 * k];
+        }
+        f[d] = calls[index].eval(f);
+        f[d + 1] = 0;
+    }
+
+    // ================== Operations ===================
+    // Each one writes its result to f[d] and f[d + 1]; the real path of a real operand is the real mode
+    private static void multiply(double[] f, int d, double a, double b, double c, double e) {
+        if (b == 0 && e == 0) {
+            f[d] = a * c; // Infinity * 2 is no NaN
+            f[d + 1] = 0;
+        } else {
+            f[d] = a * c - b * e;
+            f[d + 1] = a * e + b * c;
+        }
+    }
+
+    // Smith's algorithm: (a + bi) / (c + ei) without computing c^2 + e^2
+    private static void divide(double[] f, int d, double a, double b, double c, double e) {
+        if (e == 0) {
+            f[d] = a / c;
+            f[d + 1] = b == 0 ? 0 : b / c;
+        } else if (Math.abs(c) >= Math.abs(e)) {
+            double r = e / c, den = c + e * r;
+            f[d] = (a + b * r) / den;
+            f[d + 1] = (b - a * r) / den;
+        } else {
+            double r = c / e, den = c * r + e;
+            f[d] = (a * r + b) / den;
+            f[d + 1] = (b * r - a) / den;
+        }
+    }
+
+    // (a + bi)^(c + ei), the principal value
+    private static void pow(double[] f, int d, double a, double b, double c, double e) {
+        if (b == 0 && e == 0 && (a >= 0 || c == Math.rint(c))) {
+            f[d] = Math.pow(a, c);
+            f[d + 1] = 0;
+        } else if (e == 0 && c == Math.rint(c) && Math.abs(c) <= MAX_REPEATED_POWER) {
+            // Square and multiply, then the reciprocal for a negative exponent
+            double re = 1, im = 0, baseRe = a, baseIm = b;
+            for (int n = (int) Math.abs(c); n > 0; n >>= 1) {
+                if ((n & 1) == 1) {
+                    double t = re * baseRe - im * baseIm;
+                    im = re * baseIm + im * baseRe;
+                    re = t;
+                }
+                double t = baseRe * baseRe - baseIm * baseIm;
+                baseIm = 2 * baseRe * baseIm;
+                baseRe = t;
+            }
+            if (c < 0) {
+                divide(f, d, 1, 0, re, im);
+            } else {
+                f[d] = re;
+                f[d + 1] = im;
+            }
+        } else if (a == 0 && b == 0) {
+            f[d] = c > 0 ? 0 : Double.NaN;
+            f[d + 1] = c > 0 ? 0 : Double.NaN;
+        } else {
+            // exp(w ln z)
+            double lnRe = Math.log(modulus(a, b)), lnIm = angle(a, b);
+            exp(f, d, c * lnRe - e * lnIm, c * lnIm + e * lnRe);
+        }
+    }
+
+    // polar(r, angle in degrees), r and the angle must be real
+    private static void polar(double[] f, int d, double r, double rIm, double angle, double angleIm) {
+        if (rIm != 0 || angleIm != 0) {
+            throw new ArithmeticException("polar takes a real modulus and a real angle");
+        }
+        f[d] = r * roundSmall(Math.cos(Math.toRadians(angle)));
+        f[d + 1] = r * roundSmall(Math.sin(Math.toRadians(angle)));
+    }
+
+    private static void function(int op, double[] f, int d, double re, double im) {
+        switch (op) {
+            case SIN -> {
+                if (im == 0) {
+                    f[d] = Math.sin(Math.toRadians(re));
+                    f[d + 1] = 0;
+                } else {
+                    // sin(x + iy) = sin x cosh y + i cos x sinh y
+                    double x = Math.toRadians(re), y = Math.toRadians(im);
+                    f[d] = Math.sin(x) * Math.cosh(y);
+                    f[d + 1] = Math.cos(x) * Math.sinh(y);
+                }
+            }
+            case COS -> {
+                if (im == 0) {
+                    f[d] = Math.cos(Math.toRadians(re));
+                    f[d + 1] = 0;
+                } else {
+                    // cos(x + iy) = cos x cosh y - i sin x sinh y
+                    double x = Math.toRadians(re), y = Math.toRadians(im);
+                    f[d] = Math.cos(x) * Math.cosh(y);
+                    f[d + 1] = -Math.sin(x) * Math.sinh(y);
+                }
+            }
+            case TAN -> {
+                if (im == 0) {
+                    f[d] = Math.tan(Math.toRadians(re));
+                    f[d + 1] = 0;
+                } else {
+                    // tan(x + iy) = (sin 2x + i sinh 2y) / (cos 2x + cosh 2y), tends to +-i for a large y
+                    double x = 2 * Math.toRadians(re), y = 2 * Math.toRadians(im);
+                    if (Math.abs(y) > 40) {
+                        f[d] = 0;
+                        f[d + 1] = Math.signum(y);
+                    } else {
+                        double den = Math.cos(x) + Math.cosh(y);
+                        f[d] = Math.sin(x) / den;
+                        f[d + 1] = Math.sinh(y) / den;
+                    }
+                }
+            }
+            case EXP -> exp(f, d, re, im);
+            case LN, LOG -> {
+                double scale = op == LN ? 1 : LN10;
+                if (im == 0 && !(re < 0)) {
+                    f[d] = op == LN ? Math.log(re) : Math.log10(re);
+                    f[d + 1] = 0;
+                } else {
+                    f[d] = Math.log(modulus(re, im)) / scale;
+                    f[d + 1] = angle(re, im) / scale;
+                }
+            }
+            case SQRT -> sqrt(f, d, re, im);
+            case SQUARE -> {
+                if (im == 0) {
+                    f[d] = Math.pow(re, 2);
+                    f[d + 1] = 0;
+                } else {
+                    multiply(f, d, re, im, re, im);
+                }
+            }
+            case CUBE -> {
+                if (im == 0) {
+                    f[d] = Math.pow(re, 3);
+                    f[d + 1] = 0;
+                } else {
+                    multiply(f, d, re, im, re, im);
+                    multiply(f, d, f[d], f[d + 1], re, im);
+                }
+            }
+            case RE -> {
+                f[d] = re;
+                f[d + 1] = 0;
+            }
+            case IM -> {
+                f[d] = im;
+                f[d + 1] = 0;
+            }
+            case ABS -> {
+                f[d] = im == 0 ? Math.abs(re) : modulus(re, im);
+                f[d + 1] = 0;
+            }
+            case ARG -> {
+                f[d] = Math.toDegrees(angle(re, im));
+                f[d + 1] = 0;
+            }
+            default -> { // CONJ
+                f[d] = re;
+                f[d + 1] = -im;
+            }
+        }
+    }
+
+    private static void exp(double[] f, int d, double re, double im) {
+        double scale = Math.exp(re);
+        if (im == 0) {
+            f[d] = scale;
+            f[d + 1] = 0;
+        } else {
+            f[d] = scale * Math.cos(im);
+            f[d + 1] = scale * Math.sin(im);
+        }
+    }
+
+    // Principal square root, computed without cancellation: the larger part is sqrt((|x| + |z|) / 2)
+    private static void sqrt(double[] f, int d, double re, double im) {
+        if (im == 0 && !(re < 0)) {
+            f[d] = Math.sqrt(re);
+            f[d + 1] = 0;
+        } else if (im == 0) {
+            f[d] = 0;
+            f[d + 1] = Math.sqrt(-re);
+        } else {
+            double t = Math.sqrt((Math.abs(re) + modulus(re, im)) / 2);
+            if (re >= 0) {
+                f[d] = t;
+                f[d + 1] = im / (2 * t);
+            } else {
+                f[d] = Math.abs(im) / (2 * t);
+                f[d + 1] = Math.copySign(t, im);
+            }
+        }
+    }
+
+    // Angle in (-pi, pi]: a negative zero imaginary part (-(5) is -5 - 0i) counts as zero, so the angle
+    // of a negative number is pi and not -pi
+    private static double angle(double re, double im) {
+        return Math.atan2(im + 0.0, re);
+    }
+
+    // |z|, the cost of Math.hypot is only paid when re^2 + im^2 would overflow or lose precision
+    private static double modulus(double re, double im) {
+        double sum = re * re + im * im;
+        return sum < Double.MAX_VALUE && sum >= Double.MIN_NORMAL ? Math.sqrt(sum) : Math.hypot(re, im);
+    }
+
+    private static double roundSmall(double x) {
+        return Math.abs(x) < SMALL ? 0 : x;
+    }
+
+    // ================== Real mode versions ===================
+    // re, im, abs, arg, conj and polar of a real number; arg is 180 degrees for a negative number, polar
+    // is NaN when its value is not real (like sqrt(-1)). The parts of NaN (sqrt(-1) in the real mode) are NaN
+    static double realIm(double x) {
+        return Double.isNaN(x) ? x : 0;
+    }
+
+    static double realArg(double x) {
+        return Double.isNaN(x) ? x : x < 0 ? 180 : 0;
+    }
+
+    static double realPolar(double[] args) {
+        double r = args[0], angle = Math.toRadians(args[1]);
+        return r == 0 || roundSmall(Math.sin(angle)) == 0 ? r * roundSmall(Math.cos(angle)) : Double.NaN;
+    }
+
+    // ================== Compilation ===================
+    static Complex compile(Node root) {
+        Compiler compiler = new Compiler();
+        compiler.compile(root, 0, 1);
+        return new Complex(root, compiler);
+    }
+
+    private static final class Compiler {
+
+        int[] code = new int[64];
+        int length;
+        double[] constants = new double[16];
+        int constantCount;
+        final List<Node> calls = new ArrayList<>();
+        final List<Integer> realSubtrees = new ArrayList<>(); // Indexes of the calls evaluated whole
+        int registers = 1;
+        Map<Integer, Integer> temps = new HashMap<>(); // Register of each Temp slot of the enclosing Let
+
+        // Compile node into register target, registers from free on are free for intermediate values
+        void compile(Node node, int target, int free) {
+            registers = Math.max(registers, target + 1);
+            switch (node) {
+                case Num n -> constant(target, n.value(), 0);
+                case ImaginaryUnit unit -> constant(target, 0, 1);
+                case Var v -> emit(VAR, target, v.slot(), 0);
+                case Constant c -> {
+                    // Folded by the real mode, where sqrt(-1) is NaN: its complex value is computed now
+                    Value value = Complex.compile(c.source()).eval(Node.NO_VARS);
+                    constant(target, value.re(), value.im());
+                }
+                case Compiled c -> compile(c.source(), target, free);
+                case Temp t -> emit(MOVE, target, temps.get(t.slot()), 0);
+                case Let let -> {
+                    Map<Integer, Integer> outer = temps;
+                    temps = new HashMap<>();
+                    int count = let.temps().size();
+                    for (int t = 0; t < count; t++) {
+                        compile(let.temps().get(t), free + t, free + t + 1);
+                        temps.put(let.firstSlot() + t, free + t);
+                    }
+                    compile(let.body(), target, free + count);
+                    temps = outer;
+                }
+                case Negate n -> {
+                    compile(n.operand(), target, free);
+                    emit(NEG, target, target, 0);
+                }
+                case BinaryOp b -> {
+                    compile(b.left(), target, free);
+                    compile(b.right(), free, free + 1);
+                    int op = switch (b.op()) {
+                        case '+' -> ADD;
+                        case '-' -> SUB;
+                        case '*' -> MUL;
+                        case '/' -> DIV;
+                        default -> POW;
+                    };
+                    emit(op, target, target, free);
+                }
+                case UnaryCall c when FUNCTIONS.containsKey(c.name()) -> {
+                    compile(c.arg(), target, free);
+                    emit(FUNCTIONS.get(c.name()), target, target, c.roundSmall() ? 1 : 0);
+                }
+                case MultiCall c when c.name().equals("polar") -> {
+                    compile(c.args().get(0), target, free);
+                    compile(c.args().get(1), free, free + 1);
+                    emit(POLAR, target, target, free);
+                }
+                case UnaryCall c -> call(c, target, free);
+                case MultiCall c -> call(c, target, free);
+                case BooleanCall c -> call(c, target, free);
+                case StatCall c when c.args().stream().noneMatch(arg -> arg instanceof FileArg) -> call(c, target, free);
+                default -> {
+                    // No complex form: evaluated as a real subtree, which must not use i
+                    if (hasImaginaryUnit(node)) {
+                        throw new ArithmeticException(name(node) + " is not defined for complex numbers");
+                    }
+                    realSubtrees.add(calls.size());
+                    calls.add(expand(node));
+                    emit(REAL, target, 0, calls.size() - 1);
+                }
+            }
+        }
+
+        // Real function of real arguments, computed into the registers from free on
+        void call(Node node, int target, int free) {
+            Node[] args = Optimizer.children(node);
+            for (int k = 0; k < args.length; k++) {
+                compile(args[k], free + k, free + k + 1);
+            }
+            calls.add(node);
+            emit(CALL, target, free, calls.size() - 1);
+        }
+
+        void constant(int target, double re, double im) {
+            if (constantCount + 2 > constants.length) {
+                constants = Arrays.copyOf(constants, constants.length * 2);
+            }
+            constants[constantCount] = re;
+            constants[constantCount + 1] = im;
+            emit(CONST, target, constantCount, 0);
+            constantCount += 2;
+        }
+
+        void emit(int op, int target, int a, int b) {
+            if (length + 4 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[length++] = op;
+            code[length++] = target;
+            code[length++] = a;
+            code[length++] = b;
+        }
+    }
+
+    // Whether i appears in a tree, shared subexpressions and calculus functions included
+    private static boolean hasImaginaryUnit(Node node) {
+        return switch (node) {
+            case ImaginaryUnit unit -> true;
+            case Temp t -> hasImaginaryUnit(t.value());
+            case Compiled c -> hasImaginaryUnit(c.source());
+            case Let let -> let.temps().stream().anyMatch(Complex::hasImaginaryUnit) || hasImaginaryUnit(let.body());
+            case CalculusCall c -> hasImaginaryUnit(c.body()) || c.args().stream().anyMatch(Complex::hasImaginaryUnit);
+            default -> Arrays.stream(Optimizer.children(node)).anyMatch(Complex::hasImaginaryUnit);
+        };
+    }
+
+    // A real subtree with its shared subexpressions put back in place, so it only reads the variables
+    private static Node expand(Node node) {
+        return node instanceof Temp t ? expand(t.value()) : Optimizer.withChildren(node, Complex::expand);
+    }
+
+    private static String name(Node node) {
+        return switch (node) {
+            case UnaryCall c -> c.name();
+            case MultiCall c -> c.name();
+            case StatCall c -> c.name();
+            case BooleanCall c -> c.name();
+            case CalculusCall c -> c.name();
+            case MatrixScalarCall c -> c.name();
+            default -> "Matrix arithmetic";
+        };
+    }
+}
@@ -0,0 +1,38 @@
+// JDK Flight Recorder event emitted for every evaluation while metrics are enabled
+// Record with: java -Dcalculator.metrics=true -XX:StartFlightRecording=filename=calc.jfr ...
+package calculator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("calculator.Evaluation")
+@Label("Evaluation")
+@Category("Calculator")
+@Description("Evaluation of one expression, with the time spent in each phase")
+final class EvaluationEvent extends jdk.jfr.Event {
+
+    @Label("Expression")
+    String expression;
+
+    @Label("Cache Hit")
+    boolean cacheHit;
+
+    @Label("Normalize Time")
+    @Timespan
+    long normalizeTime;
+
+    @Label("Compile Time")
+    @Description("Time spent in the parser, 0 when the compiled expression came from the cache")
+    @Timespan
+    long compileTime;
+
+    @Label("Evaluate Time")
+    @Timespan
+    long evaluateTime;
+
+    @Label("Error")
+    String error;
+}
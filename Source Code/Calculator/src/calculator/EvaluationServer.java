@@ -0,0 +1,440 @@
+// Headless evaluation service for other processes on the same host
+// Listens on a loopback TCP port or a Unix-domain socket, every connection is served by its own
+// virtual thread. Requests are pipelined: a client may send any number of them without waiting for
+// the answers. Everything received by one read is evaluated as a batch (across all cores when it is
+// large) and the responses are written back in request order with a single write.
+// The protocol of a connection is chosen by its first byte:
+//   text   - one expression or definition per line, answered by one line: the result, the stored
+//            definition or "Error: message". "#stats" is answered by the service statistics, and
+//            "#list primes|palindromes|armstrongs a b" by the numbers of [a, b], one per line as they
+//            are found (see RangeQueries), then an empty line
+//   binary - a first byte 0, then frames of u16 length + UTF-8 expression, each answered by a status
+//            byte followed by a double (VALUE) or a u16 length + UTF-8 text (ERROR, TEXT)
+// The service measures the latency of every request, from its batch being received to its response
+// being written, and reports the throughput and latency percentiles on stderr every 10 seconds.
+// Start it with: java -jar Calculator.jar --server [port | socket path]
+//            or: java -cp Calculator.jar calculator.EvaluationServer [port | socket path]
+package calculator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+public final class EvaluationServer implements AutoCloseable {
+
+    static final int DEFAULT_PORT = 7077;
+    private static final int BUFFER_SIZE = 64 << 10; // Initial bytes buffered per connection and direction
+    private static final int MAX_REQUEST = 1 << 20; // Longest accepted expression, in bytes
+    private static final int PARALLEL_BATCH = 1024; // Batches at least this large are evaluated across all cores
+    private static final long REPORT_SECONDS = Long.getLong("calculator.serverReport", 10);
+
+    // Status byte of a binary response
+    static final byte VALUE = 0;
+    static final byte ERROR = 1;
+    static final byte TEXT = 2;
+    private static final byte LIST = 3; // Not sent: a "#list" answer, streamed while the responses are written
+
+    private final Evaluator evaluator;
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final ScheduledExecutorService reporter;
+
+    // Statistics
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private long reported; // Requests at the previous report
+
+    public EvaluationServer(Evaluator evaluator, SocketAddress address) throws IOException {
+        this.evaluator = evaluator;
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath()); // Left behind by a previous run
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        try {
+            server.bind(address);
+            this.address = server.getLocalAddress();
+        } catch (IOException ex) {
+            server.close();
+            throw ex;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "calculator-server-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Bound address, with the actual port when port 0 was requested
+    public SocketAddress address() {
+        return address;
+    }
+
+    // Accept connections until the server is closed
+    public void serve() throws IOException {
+        reporter.scheduleAtFixedRate(this::report, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException ex) {
+                return;
+            }
+            connections.increment();
+            Thread.ofVirtual().name("calculator-client-", connections.sum()).start(new Connection(channel));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reporter.shutdownNow();
+        server.close();
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+        }
+    }
+
+    // ================== Statistics ===================
+    // Requests served so far and their latency percentiles
+    String stats() {
+        LatencyHistogram h = latency;
+        return String.format("%d requests, %d connections, latency (us) mean %.1f p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f",
+                requests.sum(), connections.sum(), h.mean() / 1000,
+                h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                h.percentile(99.9) / 1000.0, h.max() / 1000.0);
+    }
+
+    // Periodic report, skipped while the service is idle
+    private void report() {
+        long total = requests.sum();
+        if (total != reported) {
+            System.err.printf("%.0f requests/s, %s%n", (double) (total - reported) / REPORT_SECONDS, stats());
+            reported = total;
+        }
+    }
+
+    // ================== Connections ===================
+    // One client, served by its own virtual thread
+    private final class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        private boolean binary;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // Current batch, reused from one read to the next
+        private final List<String> batch = new ArrayList<>();
+        private byte[] status = new byte[256];
+        private double[] values = new double[256];
+        private String[] texts = new String[256];
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try (channel) {
+                if (channel.read(in) < 0) {
+                    return;
+                }
+                binary = in.get(0) == 0;
+                if (binary) {
+                    in.flip().get(); // Skip the protocol byte
+                    in.compact();
+                }
+                boolean closed = false;
+                while (true) {
+                    long start = System.nanoTime();
+                    in.flip();
+                    boolean definitions = binary ? readFrames() : readLines(closed);
+                    in.compact();
+                    if (!batch.isEmpty()) {
+                        evaluate(definitions);
+                        out.clear();
+                        for (int i = 0; i < batch.size(); i++) {
+                            if (binary) {
+                                writeFrame(i);
+                            } else {
+                                writeLine(i);
+                            }
+                        }
+                        flush();
+                        latency.record(System.nanoTime() - start, batch.size());
+                        requests.add(batch.size());
+                        batch.clear();
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    if (!in.hasRemaining()) {
+                        growInput();
+                    }
+                    // One more pass once the client has closed its side, for a last line without a newline
+                    closed = channel.read(in) < 0;
+                }
+            } catch (IOException | UncheckedIOException ex) {
+                // Client gone, nothing to answer
+            }
+        }
+
+        // A request fills the whole buffer: make room for the rest of it
+        private void growInput() throws IOException {
+            if (in.capacity() >= MAX_REQUEST) {
+                throw new IOException("Request longer than " + MAX_REQUEST + " bytes");
+            }
+            in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+        }
+
+        // Queue every complete line, returns whether one of them is a definition or a command
+        // Once the client has closed its side (last), the bytes after the last newline are a line too
+        private boolean readLines(boolean last) {
+            byte[] bytes = in.array();
+            boolean definitions = false;
+            int start = in.position();
+            for (int i = start; i < in.limit(); i++) {
+                if (bytes[i] == '\n') {
+                    int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                    String expr = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                    definitions |= isSequential(expr);
+                    batch.add(expr);
+                    start = i + 1;
+                }
+            }
+            if (last && start < in.limit()) {
+                int end = bytes[in.limit() - 1] == '\r' ? in.limit() - 1 : in.limit();
+                String expr = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                definitions |= isSequential(expr);
+                batch.add(expr);
+                start = in.limit();
+            }
+            in.position(start);
+            return definitions;
+        }
+
+        // Queue every complete frame
+        private boolean readFrames() {
+            boolean definitions = false;
+            while (in.remaining() >= 2) {
+                int length = Short.toUnsignedInt(in.getShort(in.position()));
+                if (in.remaining() < 2 + length) {
+                    break;
+                }
+                String expr = new String(in.array(), in.position() + 2, length, StandardCharsets.UTF_8);
+                definitions |= isSequential(expr);
+                batch.add(expr);
+                in.position(in.position() + 2 + length);
+            }
+            return definitions;
+        }
+
+        // Definitions and commands must run in request order with the expressions around them
+        private static boolean isSequential(String expr) {
+            return Evaluator.isDefinition(expr) || expr.startsWith("#");
+        }
+
+        // Evaluate the batch, in parallel when it is large and only holds expressions
+        private void evaluate(boolean sequential) {
+            int n = batch.size();
+            if (status.length < n) {
+                int size = Math.max(n, status.length * 2);
+                status = new byte[size];
+                values = new double[size];
+                texts = new String[size];
+            }
+            if (n >= PARALLEL_BATCH && !sequential) {
+                IntStream.range(0, n).parallel().forEach(this::evaluate);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    evaluate(i);
+                }
+            }
+        }
+
+        private void evaluate(int i) {
+            String expr = batch.get(i);
+            try {
+                if (expr.isBlank()) {
+                    answer(i, TEXT, ""); // Keeps the answers aligned with the lines
+                } else if (expr.startsWith("#list")) {
+                    listing(expr);
+                    answer(i, LIST, expr);
+                } else if (expr.startsWith("#")) {
+                    answer(i, TEXT, command(expr));
+                } else if (Evaluator.isDefinition(expr)) {
+                    answer(i, TEXT, evaluator.define(expr));
+                } else {
+                    values[i] = evaluator.eval(expr);
+                    answer(i, VALUE, null);
+                }
+            } catch (RuntimeException | StackOverflowError ex) {
+                String message = ex instanceof StackOverflowError ? "Expression too deeply nested" : String.valueOf(ex.getMessage());
+                answer(i, ERROR, message.replace('\n', ' '));
+            }
+        }
+
+        private void answer(int i, byte kind, String text) {
+            status[i] = kind;
+            texts[i] = text;
+        }
+
+        private String command(String expr) {
+            if (expr.strip().equals("#stats")) {
+                return stats();
+            }
+            throw new IllegalArgumentException("Unknown command " + expr.strip());
+        }
+
+        // Check a "#list kind a b" command, the numbers are only produced while writing (see writeList)
+        private String[] listing(String expr) {
+            if (binary) {
+                throw new IllegalArgumentException("#list is only available in the text protocol");
+            }
+            String[] words = expr.strip().split("\\s+");
+            if (words.length != 4) {
+                throw new IllegalArgumentException("Usage: #list primes|palindromes|armstrongs a b");
+            }
+            RangeQueries.checkList(words[1], Long.parseLong(words[2]), Long.parseLong(words[3]));
+            return words;
+        }
+
+        // ================== Responses ===================
+        private void writeLine(int i) throws IOException {
+            if (status[i] == LIST) {
+                writeList(texts[i]);
+                return;
+            }
+            String text = switch (status[i]) {
+                case VALUE -> String.valueOf(values[i]);
+                case ERROR -> "Error: " + texts[i];
+                default -> texts[i];
+            };
+            put(text.getBytes(StandardCharsets.UTF_8), 1);
+            out.put((byte) '\n');
+        }
+
+        // Numbers of a "#list" command, one per line then an empty line. They are sent whenever the
+        // buffer is full, so a long list neither waits for its end nor grows the buffer
+        private void writeList(String expr) throws IOException {
+            String[] words = listing(expr);
+            try {
+                RangeQueries.list(words[1], Long.parseLong(words[2]), Long.parseLong(words[3]), n -> {
+                    if (out.remaining() < 21) { // Longest long and a newline
+                        try {
+                            flush();
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                    putDecimal(n);
+                    out.put((byte) '\n');
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            ensureOutput(1);
+            out.put((byte) '\n');
+        }
+
+        // Digits of n >= 0, written straight into the buffer
+        private void putDecimal(long n) {
+            int start = out.position();
+            do {
+                out.put((byte) ('0' + n % 10));
+                n /= 10;
+            } while (n != 0);
+            for (int i = start, j = out.position() - 1; i < j; i++, j--) {
+                byte digit = out.get(i);
+                out.put(i, out.get(j));
+                out.put(j, digit);
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+
+        private void writeFrame(int i) {
+            if (status[i] == VALUE) {
+                ensureOutput(9);
+                out.put(VALUE).putDouble(values[i]);
+                return;
+            }
+            byte[] text = texts[i].getBytes(StandardCharsets.UTF_8);
+            if (text.length > 0xFFFF) {
+                text = Arrays.copyOf(text, 0xFFFF);
+            }
+            ensureOutput(3);
+            out.put(status[i]).putShort((short) text.length);
+            put(text, 0);
+        }
+
+        // Append bytes, keeping room for the given number of bytes after them
+        private void put(byte[] bytes, int after) {
+            ensureOutput(bytes.length + after);
+            out.put(bytes);
+        }
+
+        private void ensureOutput(int needed) {
+            if (out.remaining() < needed) {
+                out = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed)).put(out.flip());
+            }
+        }
+    }
+
+    // ================== Entry point ===================
+    // A number is a loopback TCP port, anything else the path of a Unix-domain socket
+    static SocketAddress parseAddress(String text) {
+        if (!text.isEmpty() && text.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(text));
+        }
+        return UnixDomainSocketAddress.of(text);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            System.err.println("Usage: java -cp Calculator.jar calculator.EvaluationServer [port | socket path]");
+            System.exit(2);
+        }
+        SocketAddress address = args.length == 0
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT)
+                : parseAddress(args[0]);
+
+        Evaluator evaluator = new Evaluator(Integer.getInteger("calculator.cacheSize", 256));
+        EvaluationServer server = new EvaluationServer(evaluator, address);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException ex) {
+                // Exiting anyway
+            }
+            System.err.println(server.stats());
+        }));
+        System.err.println("Evaluating expressions on " + server.address());
+        server.serve();
+    }
+}
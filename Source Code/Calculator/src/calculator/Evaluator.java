@@ -0,0 +1,874 @@
+// Expression evaluation engine of the calculator
+// Parses expressions into an AST and evaluates them without any JavaFX dependency,
+// so the same semantics are shared by the GUI and the headless batch mode.
+// The engine holds no per-evaluation state: the AST is immutable and the cache is synchronized,
+// so one instance can be shared by any number of threads. User variables and functions live in a
+// SymbolTable, which several evaluators can share
+package calculator;
+
+import calculator.Node.*;
+import java.io.Serial;
+import java.math.MathContext;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.*;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class Evaluator {
+
+    private static final Pattern PERCENTAGE = Pattern.compile("(\\d*\\.?\\d+([eE][+-]?\\d+)?)%");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    // Compiled expressions keyed on normalized text
+    private final ExpressionCache<CachedTree> compiledCache;
+    private final ExpressionCache<Complex> complexCache; // Programs of the complex mode, same keys
+    private final SymbolTable symbols;
+    // Keys of the cached expressions using each user symbol, dropped when the symbol is redefined
+    // Kept in step with the cache: a key is listed while its entry is stored
+    private final Map<String, Set<String>> symbolUsers = new ConcurrentHashMap<>();
+
+    public Evaluator(int cacheSize) {
+        this(cacheSize, new SymbolTable());
+    }
+
+    public Evaluator(int cacheSize, SymbolTable symbols) {
+        this.compiledCache = new ExpressionCache<>(cacheSize, this::register, this::unregister);
+        this.complexCache = new ExpressionCache<>(cacheSize);
+        this.symbols = symbols;
+        symbols.addListener(this::invalidate);
+    }
+
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    // Cache of compiled expressions, exposed for its hit/miss/eviction counters
+    ExpressionCache<?> cache() {
+        return compiledCache;
+    }
+
+    // Raised for input the user should be warned about instead of just seeing "Error"
+    public static class WarningException extends IllegalArgumentException {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        public WarningException(String message) {
+            super(message);
+        }
+    }
+
+    // Outcome of one expression of a batch, error is null when the evaluation succeeded
+    public record Result(double value, String error) {
+
+        public boolean ok() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return ok() ? String.valueOf(value) : "Error";
+        }
+    }
+
+    // Cooperative cancellation: function calls and long loops check whether the evaluating thread
+    // was interrupted (e.g. the user pressed C or the time budget ran out) and stop early
+    static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Evaluation cancelled");
+        }
+    }
+
+    // ================== Parallel batch evaluation ===================
+    // Evaluate one expression, capturing errors in the result instead of throwing
+    public Result tryEval(String expr) {
+        if (expr == null) {
+            return new Result(Double.NaN, "No expression");
+        }
+        try {
+            return new Result(eval(expr), null);
+        } catch (Exception ex) {
+            return new Result(Double.NaN, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    // Evaluate a list of expressions across all cores (fork-join common pool)
+    // Results are returned in the same order as the input
+    public List<Result> evalAll(List<String> expressions) {
+        Result[] results = new Result[expressions.size()];
+        IntStream.range(0, results.length).parallel().forEach(i -> results[i] = tryEval(expressions.get(i)));
+        return Arrays.asList(results);
+    }
+
+    // Evaluate a stream of expressions in parallel, the returned stream keeps the encounter order
+    public Stream<Result> evalAll(Stream<String> expressions) {
+        return expressions.parallel().map(this::tryEval);
+    }
+
+    // ================== Expression Evaluation Functions ===================
+    // Preprocess the expression to convert percentages into valid mathematical expressions
+    private String PreprocessExpression(String expr) {
+        return PERCENTAGE.matcher(expr).replaceAll("($1/100)");
+    }
+
+    // Normalize the expression used as the cache key (whitespace runs collapsed to one space and trimmed,
+    // percentages rewritten). Whitespace is only collapsed, not removed: it still separates tokens, so
+    // "1 2" stays an error instead of becoming 12. Quoted data file paths are kept as they are.
+    // Expressions with nothing to rewrite (the usual case) are their own key, so a cached evaluation
+    // allocates nothing here
+    private String normalize(String expr) {
+        if (isNormalized(expr)) {
+            return expr;
+        }
+        if (expr.indexOf('"') < 0) {
+            return PreprocessExpression(WHITESPACE.matcher(expr.strip()).replaceAll(" "));
+        }
+        StringBuilder sb = new StringBuilder(expr.length());
+        boolean quoted = false, space = false;
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (!quoted && Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            sb.append(c);
+        }
+        return PreprocessExpression(sb.toString());
+    }
+
+    // No percentage, and only single spaces between other characters
+    private static boolean isNormalized(String expr) {
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (c == '%' || c == '"') {
+                return false;
+            }
+            if (Character.isWhitespace(c) && (c != ' ' || i == 0 || i == expr.length() - 1 || expr.charAt(i - 1) == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The main evaluation function for mathematical expressions
+    // The expression is parsed once into an immutable tree (AST) which is then evaluated directly,
+    // so no intermediate strings are built while applying functions.
+    // Parsed trees are cached, so pressing "=" again on the same expression skips parsing
+    public double eval(String expr) {
+        if (Metrics.ENABLED) {
+            return evalMeasured(expr);
+        }
+        return cached(normalize(expr)).eval();
+    }
+
+    // Evaluate an expression whose value is a matrix, e.g. inv([[1,2],[3,4]]) * [[5],[6]]
+    public Matrix evalMatrix(String expr) {
+        if (!(cached(normalize(expr)) instanceof MatrixNode matrix)) {
+            throw new RuntimeException("The result is a number, not a matrix");
+        }
+        return matrix.evalMatrix(Node.NO_VARS);
+    }
+
+    // Whether the value of a (valid) expression is a matrix rather than a number
+    public boolean isMatrix(String expr) {
+        return cached(normalize(expr)) instanceof MatrixNode;
+    }
+
+    // Evaluate in precision mode: integers are exact at any size, fractions are BigDecimal rounded to mc,
+    // or exact Fractions when mc is Precise.EXACT
+    // Functions without an exact form (sin, ln, ...) are computed in double precision
+    public Number evalPrecise(String expr, MathContext mc) {
+        if (Metrics.ENABLED) {
+            return evalPreciseMeasured(expr, mc);
+        }
+        return cached(normalize(expr)).evalPrecise(mc);
+    }
+
+    // Evaluate in complex mode: sqrt(-1) = i, (1 + i)^2 = 2i, variables and user symbols stay real
+    // The tree is the cached one, compiled into a register program (see Complex) which is cached too
+    public Complex.Value evalComplex(String expr) {
+        String key = normalize(expr);
+        Node node = cached(key);
+        Complex program = complexCache.get(key, text -> Complex.compile(node));
+        if (program.source() != node) {
+            // Compiled for a tree replaced since (a symbol it uses was redefined)
+            complexCache.remove(key);
+            program = complexCache.get(key, text -> Complex.compile(node));
+        }
+        return program.eval(Node.NO_VARS);
+    }
+
+    // ================== Instrumented evaluation (-Dcalculator.metrics=true) ===================
+    private double evalMeasured(String expr) {
+        Metrics.Evaluation measure = Metrics.start(expr);
+        try {
+            double value = compileMeasured(expr, measure).eval();
+            measure.evaluated();
+            return value;
+        } catch (RuntimeException | Error ex) {
+            measure.failed(ex);
+            throw ex;
+        } finally {
+            measure.end();
+        }
+    }
+
+    private Number evalPreciseMeasured(String expr, MathContext mc) {
+        Metrics.Evaluation measure = Metrics.start(expr);
+        try {
+            Number value = compileMeasured(expr, measure).evalPrecise(mc);
+            measure.evaluated();
+            return value;
+        } catch (RuntimeException | Error ex) {
+            measure.failed(ex);
+            throw ex;
+        } finally {
+            measure.end();
+        }
+    }
+
+    // Normalize and fetch (or compile) the expression, marking both phases
+    private Node compileMeasured(String expr, Metrics.Evaluation measure) {
+        String key = normalize(expr);
+        measure.normalized();
+        boolean[] compiled = new boolean[1];
+        Node node = cached(key, text -> {
+            compiled[0] = true;
+            return compileCached(text);
+        });
+        measure.compiled(compiled[0]);
+        return node;
+    }
+
+    // Compile an expression once for repeated evaluation with the given variables, e.g. compile("sin(x)*sqrt(x)", "x")
+    public CompiledExpression compile(String expr, String... variables) {
+        List<String> names = List.of(variables);
+        return new CompiledExpression(expr, names, compileTree(normalize(expr), names, new HashSet<>()));
+    }
+
+    // Parse an expression and optimize the tree (constant folding, shared subexpressions, see Optimizer)
+    // The user symbols it refers to are added to uses
+    private Node compileTree(String text, List<String> variables, Set<String> uses) {
+        return Optimizer.optimize(parse(text, variables, uses), variables.size());
+    }
+
+    // Tree of an expression in the cache with the user symbols it depends on
+    private record CachedTree(Node node, Set<String> uses) {
+    }
+
+    // Cached tree of a normalized expression, compiled on a miss
+    // A symbol redefined while the tree was compiled may have dropped its users before the tree was
+    // stored, so the stored tree could be outdated: it is dropped again and compiled anew
+    private Node cached(String key) {
+        return cached(key, this::compileCached);
+    }
+
+    private Node cached(String key, Function<String, CachedTree> compiler) {
+        while (true) {
+            long version = symbols.version();
+            Node node = compiledCache.get(key, compiler).node();
+            if (symbols.version() == version) {
+                return node;
+            }
+            compiledCache.remove(key);
+        }
+    }
+
+    // Compile an expression for the cache, recording which user symbols it depends on
+    private CachedTree compileCached(String text) {
+        Set<String> uses = new HashSet<>();
+        Node node = compileTree(text, List.of(), uses);
+        return new CachedTree(node, Set.copyOf(uses));
+    }
+
+    // List a stored expression under the symbols it uses (called by the cache, under its lock)
+    private void register(String key, CachedTree tree) {
+        for (String name : tree.uses()) {
+            symbolUsers.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    // Unlist an evicted or removed expression, so evicted keys don't pile up in symbolUsers
+    private void unregister(String key, CachedTree tree) {
+        for (String name : tree.uses()) {
+            Set<String> keys = symbolUsers.get(name);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    // Drop the cached expressions using any of the redefined symbols
+    private void invalidate(Set<String> names) {
+        for (String name : names) {
+            Set<String> keys = symbolUsers.remove(name);
+            if (keys != null) {
+                keys.forEach(compiledCache::remove);
+            }
+        }
+    }
+
+    // ================== User variables and functions ===================
+    // Whether the input is a definition (r = 5, f(x) = x^2 + 3x) rather than an expression
+    public static boolean isDefinition(String input) {
+        return input.indexOf('=') >= 0;
+    }
+
+    // Define (or redefine) a variable or a function, returns the definition as stored
+    // Functions depending on the symbol are compiled again, a definition that can't be compiled
+    // (or that would break a dependent function) leaves every symbol as it was
+    public String define(String input) {
+        String text = normalize(input);
+        int equals = text.indexOf('=');
+        Lexer lexer = new Lexer(text.substring(0, equals));
+        if (lexer.type != Lexer.NAME) {
+            throw new RuntimeException("Expected a name before =");
+        }
+        String name = lexer.text(List.of());
+        lexer.next();
+        List<String> params = new ArrayList<>();
+        if (lexer.type == Lexer.SYMBOL && lexer.symbol == '(') {
+            do {
+                lexer.next();
+                if (lexer.type != Lexer.NAME) {
+                    throw new RuntimeException("Expected a parameter name, got " + lexer.describe());
+                }
+                String param = lexer.text(List.of());
+                if (params.contains(param)) {
+                    throw new RuntimeException("Duplicate parameter " + param);
+                }
+                params.add(param);
+                lexer.next();
+            } while (lexer.type == Lexer.SYMBOL && lexer.symbol == ',');
+            if (lexer.type != Lexer.SYMBOL || lexer.symbol != ')') {
+                throw new RuntimeException("Expected ) after the parameters of " + name);
+            }
+            lexer.next();
+        }
+        if (lexer.type != Lexer.END) {
+            throw new RuntimeException("Unexpected: " + lexer.describe());
+        }
+        if (FUNCTION_NAMES.contains(name)) {
+            throw new RuntimeException(name + " is a built-in function");
+        }
+        String definition = text.substring(equals + 1).strip();
+
+        synchronized (symbols) {
+            SymbolTable.Symbol symbol = compileSymbol(name, params, definition);
+            if (symbols.reaches(symbol.uses(), name)) {
+                throw new RuntimeException("Circular definition of " + name);
+            }
+            List<SymbolTable.Symbol> dependents = symbols.dependents(name);
+            SymbolTable.Symbol previous = symbols.put(symbol);
+            Map<String, SymbolTable.Symbol> replaced = new LinkedHashMap<>();
+            try {
+                for (SymbolTable.Symbol dependent : dependents) {
+                    replaced.put(dependent.name(), symbols.put(compileSymbol(dependent.name(), dependent.params(), dependent.definition())));
+                }
+            } catch (RuntimeException ex) {
+                replaced.forEach(symbols::restore);
+                symbols.restore(name, previous);
+                throw new RuntimeException("Can't redefine " + name + ", " + ex.getMessage(), ex);
+            }
+            Set<String> changed = new HashSet<>(replaced.keySet());
+            changed.add(name);
+            symbols.changed(changed);
+            return symbol.toString();
+        }
+    }
+
+    // A variable is evaluated now, a function body is only parsed (it is optimized once inlined)
+    private SymbolTable.Symbol compileSymbol(String name, List<String> params, String definition) {
+        Set<String> uses = new HashSet<>();
+        if (params.isEmpty()) {
+            Node tree = compileTree(definition, List.of(), uses);
+            if (tree instanceof MatrixNode matrix) {
+                return new SymbolTable.Symbol(name, params, definition, new MatrixValue(matrix.evalMatrix(Node.NO_VARS)), Double.NaN, Set.of());
+            }
+            return new SymbolTable.Symbol(name, params, definition, tree, tree.eval(), Set.of());
+        }
+        Node body = parse(definition, params, uses);
+        return new SymbolTable.Symbol(name, List.copyOf(params), definition, body, Double.NaN, Set.copyOf(uses));
+    }
+
+    // Single-pass recursive-descent parser producing an AST
+    // Function calls such as sin(..), avg(..,..) or prime(..) are grammar nodes (statistics functions
+    // also take quoted data file paths as arguments),
+    // which also makes nested calls like sqrt(square(..)) work without matching parentheses by hand.
+    // Any other name must be one of the given variables, resolved to its slot, or a user symbol
+    // (see SymbolTable), whose name is added to uses; i is the imaginary unit unless the user defined it.
+    // A number followed by a name or a parenthesis multiplies it (3x, 2i, 2(x + 1)), a postfix ! is the
+    // factorial (5!).
+    // Matrix literals [[1,2],[3,4]] (or a single row [1,2]) make matrix-valued nodes: the operators
+    // pick the matrix form of their operation when an operand is a matrix (see Node.MatrixNode).
+    // The first argument of integrate, deriv and root(f, lo, hi) is parsed with x as one more variable.
+    // Tokens come from the Lexer, which reads numbers (including scientific notation like 1e-10)
+    // in place without creating substrings
+    private Node parse(String finalExpr, List<String> variables, Set<String> uses) {
+        return new Object() {
+            final Lexer lexer = new Lexer(finalExpr);
+            final List<String> scope = new ArrayList<>(variables); // Variable of every slot, x of calculus calls included
+
+            // Consume the current token if it is the expected symbol
+            boolean eat(char symbol) {
+                if (lexer.type == Lexer.SYMBOL && lexer.symbol == symbol) {
+                    lexer.next();
+                    return true;
+                }
+                return false;
+            }
+
+            // Entry point for parsing
+            Node parse() {
+                Node x = parseExpression();
+                if (lexer.type != Lexer.END) {
+                    throw new RuntimeException("Unexpected: " + lexer.describe());
+                }
+                return x;
+            }
+
+            // Parse expressions with '+' and '-'
+            Node parseExpression() {
+                Node x = parseTerm();
+                while (true) {
+                    if (eat('+')) {
+                        x = binary('+', x, parseTerm());
+                    } else if (eat('-')) {
+                        x = binary('-', x, parseTerm());
+                    } else {
+                        return x;
+                    }
+                }
+            }
+
+            // Parse terms with '*' and '/'
+            Node parseTerm() {
+                Node x = parseFactor();
+                while (true) {
+                    if (eat('*')) {
+                        x = binary('*', x, parseFactor());
+                    } else if (eat('/')) {
+                        x = binary('/', x, parseFactor());
+                    } else {
+                        return x;
+                    }
+                }
+            }
+
+            // Parse numbers, parenthesis, function calls, variables, unary signs, and power '^'
+            Node parseFactor() {
+                checkCancelled();
+                // Parse unary signs
+                if (eat('+')) {
+                    return parseFactor();
+                }
+                if (eat('-')) {
+                    Node operand = parseFactor();
+                    return operand instanceof MatrixNode ? new MatrixOp('*', new Num(-1), operand) : new Negate(operand);
+                }
+                Node x;
+
+                // Parse parenthesis
+                if (eat('(')) {
+                    x = parseExpression();
+                    eat(')');
+
+                    // Parse matrix literals
+                } else if (eat('[')) {
+                    x = parseMatrix();
+
+                    // Parse numbers
+                } else if (lexer.type == Lexer.NUMBER) {
+                    x = new Num(lexer.number, lexer.exactText());
+                    lexer.next();
+                    // A number followed by a name or a parenthesis multiplies it (3x, 2i, 2(x + 1)) as one
+                    // factor, so -3x is -(3x), 2^3i is 2^(3i) and 1/2i is 1/(2i)
+                    if (lexer.type == Lexer.NAME || lexer.type == Lexer.SYMBOL && lexer.symbol == '(') {
+                        return binary('*', x, parseFactor());
+                    }
+
+                    // Parse function calls (the name is followed by a comma-separated argument list) and variables
+                } else if (lexer.type == Lexer.NAME) {
+                    String name = lexer.text(FUNCTION_NAMES);
+                    lexer.next();
+                    if (eat('(')) {
+                        List<Node> args = new ArrayList<>();
+                        int x0 = scope.size(); // Slot of x in the function of a calculus call
+                        if (!eat(')')) {
+                            do {
+                                args.add(lexer.type == Lexer.STRING ? parseFileArg()
+                                        : args.isEmpty() && CALCULUS_NAMES.contains(name) ? parseFunctionOfX() : parseExpression());
+                            } while (eat(','));
+                            eat(')');
+                        }
+                        if (CALCULUS_NAMES.contains(name)) {
+                            x = calculus(name, args, x0);
+                        } else {
+                            x = FUNCTION_NAMES.contains(name) ? call(name, args) : userCall(name, args);
+                        }
+                    } else {
+                        int slot = scope.lastIndexOf(name);
+                        if (slot >= 0) {
+                            x = new Var(name, slot);
+                        } else if (name.equals("i") && symbols.get(name) == null) {
+                            uses.add(name); // Compiled again if the user defines a variable i
+                            x = new ImaginaryUnit();
+                        } else {
+                            x = userVariable(name);
+                        }
+                    }
+                } else {
+                    throw new RuntimeException("Unexpected: " + lexer.describe());
+                }
+
+                // Postfix factorial, binds tighter than '^' and the signs: -3!^2 is -((3!)^2)
+                while (eat('!')) {
+                    x = call("factorial", List.of(x));
+                }
+
+                // Handle exponentiation
+                if (eat('^')) {
+                    x = binary('^', x, parseFactor());
+                }
+                return x;
+            }
+
+            // Operator node, the matrix operation when an operand is a matrix
+            Node binary(char op, Node left, Node right) {
+                boolean leftMatrix = left instanceof MatrixNode, rightMatrix = right instanceof MatrixNode;
+                if (!leftMatrix && !rightMatrix) {
+                    return new BinaryOp(op, left, right);
+                }
+                boolean valid = switch (op) {
+                    case '+', '-' -> leftMatrix && rightMatrix;
+                    case '*' -> true;
+                    case '/' -> !rightMatrix; // Divide by a matrix with inv
+                    default -> false;
+                };
+                if (!valid) {
+                    throw new RuntimeException("Can't apply " + op + " to " + (leftMatrix ? "a matrix" : "a number")
+                            + " and " + (rightMatrix ? "a matrix" : "a number"));
+                }
+                return new MatrixOp(op, left, right);
+            }
+
+            // Parse the rest of a matrix literal after its '[': rows [..],[..] then ']', or a single row
+            Node parseMatrix() {
+                List<Node> entries = new ArrayList<>();
+                int rows = 0, cols = -1;
+                boolean nested = lexer.type == Lexer.SYMBOL && lexer.symbol == '[';
+                do {
+                    if (nested && !eat('[')) {
+                        throw new RuntimeException("Expected [ at the start of a matrix row, got " + lexer.describe());
+                    }
+                    int count = 0;
+                    do {
+                        Node entry = parseExpression();
+                        if (entry instanceof MatrixNode) {
+                            throw new RuntimeException("A matrix entry must be a number");
+                        }
+                        entries.add(entry);
+                        count++;
+                    } while (eat(','));
+                    if (cols >= 0 && count != cols) {
+                        throw new RuntimeException("Every row of a matrix must have " + cols + " entries");
+                    }
+                    cols = count;
+                    rows++;
+                    if (nested) {
+                        expect(']');
+                    }
+                } while (nested && eat(','));
+                expect(']');
+                return new MatrixLiteral(rows, cols, List.copyOf(entries));
+            }
+
+            void expect(char symbol) {
+                if (!eat(symbol)) {
+                    throw new RuntimeException("Expected " + symbol + ", got " + lexer.describe());
+                }
+            }
+
+            // Function of x of a calculus call, x is the next slot (it hides a variable of the same name)
+            Node parseFunctionOfX() {
+                scope.add("x");
+                try {
+                    return parseExpression();
+                } finally {
+                    scope.remove(scope.size() - 1);
+                }
+            }
+
+            // Call of a user function, expanded inline
+            Node userCall(String name, List<Node> args) {
+                SymbolTable.Symbol function = symbols.get(name);
+                if (function == null || !function.isFunction()) {
+                    throw new RuntimeException("Unknown function: " + name);
+                }
+                if (args.size() != function.params().size()) {
+                    throw new RuntimeException(name + " takes " + function.params().size() + " arguments");
+                }
+                uses.add(name);
+                return Optimizer.inline(function.tree(), args, scope.size());
+            }
+
+            // User variable, its value (precision mode evaluates its expression)
+            Node userVariable(String name) {
+                SymbolTable.Symbol variable = symbols.get(name);
+                if (variable == null || variable.isFunction()) {
+                    throw new RuntimeException("Unknown variable: " + name);
+                }
+                uses.add(name);
+                if (variable.tree() instanceof MatrixValue matrix) {
+                    return matrix;
+                }
+                return new Constant(variable.value(), variable.tree());
+            }
+
+            // Parse a quoted data file path
+            Node parseFileArg() {
+                Node file = new FileArg(lexer.text(List.of()));
+                lexer.next();
+                return file;
+            }
+
+        }.parse();
+    }
+
+    // Names of the built-in functions, matched by the lexer without copying them out of the expression
+    private static final List<String> FUNCTION_NAMES = List.of(
+            "sin", "cos", "tan", "sqrt", "log", "ln", "exp", "cbrt", "square", "cube", "round", "ceil", "floor",
+            "asin", "acos", "atan", "avg", "mean", "min", "max", "sum", "count", "var", "stddev", "median",
+            "percentile", "GCD", "LCM", "palindrome", "armstrong", "prime", "nextprime", "primepi", "primes",
+            "countprime", "armstrongs", "palindromes", "det", "inv", "transpose", "solve", "integrate", "deriv", "root", "factorial", "nCr", "nPr", "fib",
+            "re", "im", "abs", "arg", "conj", "polar");
+
+    // Functions whose first argument is a function of x: integrate(f, a, b), deriv(f, at), root(f, lo, hi)
+    private static final Set<String> CALCULUS_NAMES = Set.of("integrate", "deriv", "root");
+
+    // Resolve a function name to its AST node while parsing
+    private Node call(String name, List<Node> args) {
+        return switch (name) {
+            // Unary functions like sin, cos, log, etc.
+            case "sin" -> new UnaryCall(name, x -> Math.sin(Math.toRadians(x)), null, single(name, args), true);
+            case "cos" -> new UnaryCall(name, x -> Math.cos(Math.toRadians(x)), null, single(name, args), true);
+            case "tan" -> new UnaryCall(name, x -> Math.tan(Math.toRadians(x)), null, single(name, args), true);
+            case "sqrt" -> new UnaryCall(name, Math::sqrt, Precise::sqrt, single(name, args), true);
+            case "log" -> new UnaryCall(name, Math::log10, null, single(name, args), true);
+            case "ln" -> new UnaryCall(name, Math::log, null, single(name, args), true);
+            case "exp" -> new UnaryCall(name, Math::exp, null, single(name, args), true);
+            case "cbrt" -> new UnaryCall(name, Math::cbrt, null, single(name, args), true);
+            case "square" -> new UnaryCall(name, x -> Math.pow(x, 2), Precise::square, single(name, args), true);
+            case "cube" -> new UnaryCall(name, x -> Math.pow(x, 3), Precise::cube, single(name, args), true);
+            case "round" -> new UnaryCall(name, x -> (double) Math.round(x), Precise::round, single(name, args), true);
+            case "ceil" -> new UnaryCall(name, Math::ceil, Precise::ceil, single(name, args), true);
+            case "floor" -> new UnaryCall(name, Math::floor, Precise::floor, single(name, args), true);
+
+            // Inverse trigonometric functions return their result in degrees
+            case "asin" -> new UnaryCall(name, x -> Math.toDegrees(Math.asin(x)), null, single(name, args), false);
+            case "acos" -> new UnaryCall(name, x -> Math.toDegrees(Math.acos(x)), null, single(name, args), false);
+            case "atan" -> new UnaryCall(name, x -> Math.toDegrees(Math.atan(x)), null, single(name, args), false);
+
+            // Statistics functions, computed in one pass over their arguments (numbers or "data files")
+            case "avg", "mean" -> new StatCall(name, Statistics::mean, Precise::average, Double.NaN, false, List.copyOf(args));
+            case "min" -> new StatCall(name, Statistics::min, Precise::min, Double.NaN, false, List.copyOf(args));
+            case "max" -> new StatCall(name, Statistics::max, Precise::max, Double.NaN, false, List.copyOf(args));
+            case "sum" -> new StatCall(name, Statistics::sum, Precise::sum, Double.NaN, false, List.copyOf(args));
+            case "count" -> new StatCall(name, stats -> stats.count(), null, Double.NaN, false, List.copyOf(args));
+            case "var" -> new StatCall(name, Statistics::variance, null, Double.NaN, false, List.copyOf(args));
+            case "stddev" -> new StatCall(name, Statistics::stddev, null, Double.NaN, false, List.copyOf(args));
+            case "median" -> new StatCall(name, Statistics::quantile, null, 0.5, false, List.copyOf(args));
+            case "percentile" -> new StatCall(name, Statistics::quantile, null, Double.NaN, true, List.copyOf(args));
+
+            // Multi-value functions like GCD, LCM
+            case "GCD" -> new MultiCall(name, Evaluator::GCD, Precise::gcd, List.copyOf(args));
+            case "LCM" -> new MultiCall(name, Evaluator::LCM, Precise::lcm, List.copyOf(args));
+
+            // Boolean functions returning true/false
+            case "palindrome" -> new BooleanCall(name, Evaluator::isPalindrome, null, single(name, args));
+            case "armstrong" -> new BooleanCall(name, Evaluator::isArmstrong, null, single(name, args));
+            case "prime" -> new BooleanCall(name, Evaluator::isPrime,
+                    x -> Primes.isPrime(Precise.toBigDecimal(x).toBigInteger()), single(name, args));
+
+            // Prime number functions
+            case "nextprime" -> new UnaryCall(name, Evaluator::nextPrime, null, single(name, args), false);
+            case "primepi" -> new UnaryCall(name, Evaluator::primePi, null, single(name, args), false);
+            case "primes", "countprime" -> new MultiCall(name, Evaluator::countPrimes, null, arguments(name, args, 2));
+
+            // Counts over a range [a, b] (see RangeQueries)
+            case "armstrongs" -> new MultiCall(name, RangeQueries::armstrongs, null, arguments(name, args, 2));
+            case "palindromes" -> new MultiCall(name, RangeQueries::palindromes, null, arguments(name, args, 2));
+
+            // Linear algebra, over matrices (see Matrix)
+            case "det" -> new MatrixScalarCall(name, Matrix::determinant, matrices(name, args, 1).get(0));
+            case "inv" -> new MatrixCall(name, m -> m[0].inverse(), matrices(name, args, 1));
+            case "transpose" -> new MatrixCall(name, m -> m[0].transpose(), matrices(name, args, 1));
+            case "solve" -> new MatrixCall(name, m -> m[0].solve(m[1]), matrices(name, args, 2));
+
+            // Combinatorics, exact big integers in precision mode (see Combinatorics)
+            case "factorial" -> new MultiCall(name, Combinatorics::factorial, Combinatorics::factorial, arguments(name, args, 1));
+            case "nCr" -> new MultiCall(name, Combinatorics::binomial, Combinatorics::binomial, arguments(name, args, 2));
+            case "nPr" -> new MultiCall(name, Combinatorics::permutations, Combinatorics::permutations, arguments(name, args, 2));
+            case "fib" -> new MultiCall(name, Combinatorics::fibonacci, Combinatorics::fibonacci, arguments(name, args, 1));
+
+            // Parts of complex numbers (see Complex), a real number x is x + 0i at the angle 0 or 180 degrees
+            case "re", "conj" -> new UnaryCall(name, x -> x, (x, mc) -> x[0], single(name, args), false);
+            case "im" -> new UnaryCall(name, Complex::realIm, null, single(name, args), false);
+            case "abs" -> new UnaryCall(name, Math::abs, (x, mc) -> Precise.max(new Number[]{x[0], Precise.negate(x[0])}, mc),
+                    single(name, args), false);
+            case "arg" -> new UnaryCall(name, Complex::realArg, null, single(name, args), false);
+            case "polar" -> new MultiCall(name, Complex::realPolar, null, arguments(name, args, 2));
+
+            default -> throw new RuntimeException("Unknown function: " + name);
+        };
+    }
+
+    // Functions with a fixed number of arguments
+    private static List<Node> arguments(String name, List<Node> args, int count) {
+        if (args.size() != count) {
+            throw new RuntimeException(name + " takes " + (count == 1 ? "exactly one argument" : count + " arguments"));
+        }
+        return List.copyOf(args);
+    }
+
+    // Unary and boolean functions take exactly one argument
+    private Node single(String name, List<Node> args) {
+        if (args.size() != 1) {
+            throw new RuntimeException(name + " takes exactly one argument");
+        }
+        return args.get(0);
+    }
+
+    // Calculus call, f is the function of x (variable slot x) and the bounds or the point follow it
+    private static Node calculus(String name, List<Node> args, int x) {
+        int count = name.equals("deriv") ? 2 : 3;
+        if (args.size() != count) {
+            throw new RuntimeException(name + " takes a function of x and " + (count == 2 ? "the point" : "two bounds")
+                    + ", e.g. " + name + (count == 2 ? "(x^2, 3)" : "(x^2, 0, 1)"));
+        }
+        if (args.stream().anyMatch(arg -> arg instanceof MatrixNode || arg instanceof FileArg)) {
+            throw new RuntimeException("The arguments of " + name + " must be numbers");
+        }
+        return new CalculusCall(name, args.get(0), x, List.copyOf(args.subList(1, count)));
+    }
+
+    // Arguments of the matrix functions, which are all matrices
+    private static List<Node> matrices(String name, List<Node> args, int count) {
+        if (args.size() != count || !args.stream().allMatch(arg -> arg instanceof MatrixNode)) {
+            throw new RuntimeException(name + " takes " + (count == 1 ? "a matrix" : count + " matrices"));
+        }
+        return List.copyOf(args);
+    }
+
+    // ================== Scientific Operation Functions ===================
+    // Calculate the Greatest Common Divisor (GCD) of any number of values
+    private static double GCD(double[] values) {
+        long result = 0;
+        for (int i = 0; i < values.length; i++) {
+            result = computeGCD(result, integerArg(values, i));
+        }
+        return result;
+    }
+
+    // Calculate the Least Common Multiple (LCM) of any number of values
+    private static double LCM(double[] values) {
+        long result = values.length == 0 ? 0 : 1;
+        for (int i = 0; i < values.length; i++) {
+            result = computeLCM(result, integerArg(values, i));
+        }
+        return result;
+    }
+
+    // GCD and LCM only accept whole numbers
+    private static long integerArg(double[] values, int index) {
+        double value = values[index];
+        if (value != Math.rint(value) || Math.abs(value) >= 0x1p63) {
+            throw new NumberFormatException("Not an integer: " + value);
+        }
+        return (long) value;
+    }
+
+    // Binary (Stein's) algorithm for computing GCD, only shifts and subtractions
+    // Magnitudes are read as unsigned, so Long.MIN_VALUE (2^63) works too: once its factors of two are
+    // shifted out every operand is a positive odd long. Only a GCD of 2^63 does not fit and throws
+    static long computeGCD(long a, long b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        if (a == 0 || b == 0) {
+            return checkGCD(a | b);
+        }
+        int shift = Long.numberOfTrailingZeros(a | b); // Common factors of two
+        a >>>= Long.numberOfTrailingZeros(a);
+        do {
+            b >>>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long temp = a;
+                a = b;
+                b = temp;
+            }
+            b -= a;
+        } while (b != 0);
+        return checkGCD(a << shift);
+    }
+
+    private static long checkGCD(long gcd) {
+        if (gcd < 0) {
+            throw new ArithmeticException("GCD 2^63 does not fit a long");
+        }
+        return gcd;
+    }
+
+    // Compute LCM using GCD, overflow is an error instead of a wrong result
+    private static long computeLCM(long a, long b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return Math.multiplyExact(Math.absExact(a) / computeGCD(a, b), Math.absExact(b));
+    }
+
+    // Check if a number is a Palindrome (reads the same forward and backward)
+    private static boolean isPalindrome(double number) {
+        long n = (long) number;
+        if (n > -10 && n < 100) {
+
+            // Warn the user if number has less than 3 digits (the sign counts as one)
+            throw new WarningException("A number of 3 or more digits must be entered for the Palindrome operation");
+        }
+        return RangeQueries.isPalindrome(n);
+    }
+
+    // Check if number is Armstrong number (each digit raised to the number of digits, see RangeQueries)
+    private static boolean isArmstrong(double number) {
+        return RangeQueries.isArmstrong((long) number);
+    }
+
+    // Check if number is Prime (deterministic for the full 64-bit range, see Primes)
+    private static boolean isPrime(double number) {
+        return Primes.isPrime((long) number);
+    }
+
+    // Smallest prime greater than the number
+    private static double nextPrime(double number) {
+        return Primes.nextPrime((long) number);
+    }
+
+    // Count the primes less than or equal to the number
+    private static double primePi(double number) {
+        return Primes.primePi((long) number);
+    }
+
+    // Count the primes in the range [a, b]
+    private static double countPrimes(double[] values) {
+        return Primes.countPrimes((long) values[0], (long) values[1]);
+    }
+}
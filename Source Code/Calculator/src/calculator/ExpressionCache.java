@@ -0,0 +1,161 @@
+// Bounded cache of compiled expressions
+// Maps normalized expression text to its compiled (parsed) form so that
+// repeated evaluations of the same expression skip parsing entirely
+// Hits take no lock: evalAll workers looking up the same expressions don't serialize on the cache.
+// The least recently used entry is approximated with the CLOCK policy: a hit marks its entry used,
+// an insertion into the full cache sweeps the ring of entries, clearing the marks it passes, and
+// evicts the first entry not used since the previous sweep. Insertions, evictions and removals
+// (and the listeners) run under the cache lock
+package calculator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+public class ExpressionCache<V> {
+
+    private final int capacity; // Maximum number of compiled expressions kept
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    // Told about every entry stored and every entry dropped (evicted, removed or cleared), under the cache lock
+    private final BiConsumer<String, V> onAdd;
+    private final BiConsumer<String, V> onDrop;
+
+    // Replacement ring, guarded by the cache lock: entries by slot, slots emptied by remove, clock hand
+    private final List<Entry<V>> ring = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand;
+
+    // Usage counters
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry<V> {
+        final String key;
+        final V value;
+        final int slot;
+        volatile boolean used; // Hit since it was stored or since the clock hand last passed
+
+        Entry(String key, V value, int slot) {
+            this.key = key;
+            this.value = value;
+            this.slot = slot;
+        }
+    }
+
+    public ExpressionCache(int capacity) {
+        this(capacity, (key, value) -> { }, (key, value) -> { });
+    }
+
+    public ExpressionCache(int capacity, BiConsumer<String, V> onAdd, BiConsumer<String, V> onDrop) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.onAdd = onAdd;
+        this.onDrop = onDrop;
+    }
+
+    // Return the compiled form of the normalized expression, compiling and caching it on a miss
+    // Compilation runs outside the lock so that threads parsing different expressions don't wait on each other
+    public V get(String normalizedExpr, Function<String, V> compiler) {
+        Entry<V> entry = entries.get(normalizedExpr);
+        if (entry != null) {
+            if (!entry.used) {
+                entry.used = true; // Only written when it changes, a hot entry stays read-only
+            }
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        // Compilation errors propagate and nothing is cached for invalid input
+        V value = compiler.apply(normalizedExpr);
+        synchronized (this) {
+            // Another thread may have compiled the same expression meanwhile, keep the first one
+            Entry<V> existing = entries.get(normalizedExpr);
+            if (existing != null) {
+                return existing.value;
+            }
+            onAdd.accept(normalizedExpr, value);
+            int slot;
+            if (!freeSlots.isEmpty()) {
+                slot = freeSlots.pop();
+            } else if (ring.size() < capacity) {
+                slot = ring.size();
+                ring.add(null);
+            } else {
+                slot = evict();
+            }
+            entry = new Entry<>(normalizedExpr, value, slot);
+            ring.set(slot, entry);
+            entries.put(normalizedExpr, entry);
+            return value;
+        }
+    }
+
+    // Drop the first entry of the full ring not used since the hand last passed it, return its slot
+    private int evict() {
+        while (true) {
+            Entry<V> entry = ring.get(hand);
+            int slot = hand;
+            hand = (hand + 1) % ring.size();
+            if (entry.used) {
+                entry.used = false;
+            } else {
+                entries.remove(entry.key);
+                evictions.increment();
+                onDrop.accept(entry.key, entry.value);
+                return slot;
+            }
+        }
+    }
+
+    // Drop one cached expression, if present
+    public synchronized void remove(String normalizedExpr) {
+        Entry<V> entry = entries.remove(normalizedExpr);
+        if (entry != null) {
+            ring.set(entry.slot, null);
+            freeSlots.push(entry.slot);
+            onDrop.accept(normalizedExpr, entry.value);
+        }
+    }
+
+    // Drop every cached expression (counters are kept)
+    public synchronized void clear() {
+        entries.forEach((key, entry) -> onDrop.accept(key, entry.value));
+        entries.clear();
+        ring.clear();
+        freeSlots.clear();
+        hand = 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache[size=" + entries.size() + "/" + capacity
+                + ", hits=" + hits.sum() + ", misses=" + misses.sum() + ", evictions=" + evictions.sum() + "]";
+    }
+}
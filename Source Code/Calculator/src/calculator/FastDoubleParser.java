@@ -0,0 +1,169 @@
+// Decimal text to double conversion without building a String
+// Numbers are read straight from the expression: up to 19 significant digits are accumulated in a
+// long, then converted with Clinger's exact fast path (small exponents) or the Eisel-Lemire algorithm,
+// both correctly rounded. The rare inputs they can't decide (more than 19 digits, halfway cases,
+// subnormals) fall back to Double.parseDouble
+package calculator;
+
+import java.math.BigInteger;
+
+final class FastDoubleParser {
+
+    private static final int MAX_DIGITS = 19; // Significant digits that always fit in a long (as unsigned)
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // Powers of ten exactly representable as doubles
+    private static final double[] EXACT_POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private FastDoubleParser() {
+    }
+
+    // Parse text[start, end), which must match digits [. digits] [(e|E) [+|-] digits] with at least one digit
+    static double parse(CharSequence text, int start, int end) {
+        long mantissa = 0;
+        int digits = 0; // Significant digits accumulated in mantissa
+        int exponent = 0; // Decimal exponent applied to mantissa
+        boolean truncated = false;
+        int i = start;
+
+        // Integer and fraction digits, leading zeros are not significant
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                break;
+            }
+            if (digits < MAX_DIGITS) {
+                if (mantissa != 0 || c != '0') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                }
+                if (fraction) {
+                    exponent--;
+                }
+            } else {
+                truncated |= c != '0';
+                if (!fraction) {
+                    exponent++;
+                }
+            }
+        }
+
+        // Exponent part
+        if (i < end) {
+            i++; // 'e' or 'E'
+            boolean negative = text.charAt(i) == '-';
+            if (text.charAt(i) == '-' || text.charAt(i) == '+') {
+                i++;
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                value = Math.min(value * 10 + (text.charAt(i) - '0'), 100_000); // Far beyond any double
+            }
+            exponent += negative ? -value : value;
+        }
+
+        if (!truncated) {
+            if (mantissa == 0) {
+                return 0;
+            }
+            // Clinger: both operands are exact, so the single rounding of * or / is the correct one
+            if (Long.compareUnsigned(mantissa, MAX_EXACT_MANTISSA) <= 0 && exponent >= -22 && exponent <= 22) {
+                return exponent < 0 ? mantissa / EXACT_POWERS[-exponent] : mantissa * EXACT_POWERS[exponent];
+            }
+            if (exponent < -342) {
+                return 0; // Below half of the smallest subnormal even with 19 digits
+            }
+            if (exponent > 308) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double value = eiselLemire(mantissa, exponent);
+            if (!Double.isNaN(value)) {
+                return value;
+            }
+        }
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+
+    // Eisel-Lemire: multiply the normalized mantissa by a 128-bit approximation of 10^exponent and keep
+    // the top 54 bits. NaN when the truncated product can't determine the rounding
+    private static double eiselLemire(long mantissa, int exponent) {
+        int shift = Long.numberOfLeadingZeros(mantissa);
+        mantissa <<= shift;
+        long binaryExponent = ((217706L * exponent) >> 16) + 64 + 1023 - shift; // 217706 / 2^16 ~ log2(10)
+
+        int index = 2 * (exponent - PowersOfTen.MIN_EXPONENT);
+        long high = PowersOfTen.MANTISSAS[index];
+        long low = PowersOfTen.MANTISSAS[index + 1];
+        long xHi = Math.unsignedMultiplyHigh(mantissa, high);
+        long xLo = mantissa * high;
+
+        // The product is too close to a rounding boundary, refine it with the low 64 bits of the power
+        if ((xHi & 0x1FF) == 0x1FF && Long.compareUnsigned(xLo + mantissa, mantissa) < 0) {
+            long yHi = Math.unsignedMultiplyHigh(mantissa, low);
+            long yLo = mantissa * low;
+            long mergedHi = xHi;
+            long mergedLo = xLo + yHi;
+            if (Long.compareUnsigned(mergedLo, xLo) < 0) {
+                mergedHi++;
+            }
+            if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0 && Long.compareUnsigned(yLo + mantissa, mantissa) < 0) {
+                return Double.NaN;
+            }
+            xHi = mergedHi;
+            xLo = mergedLo;
+        }
+
+        // Keep 54 bits, then round to 53 (ties to even)
+        long msb = xHi >>> 63;
+        long result = xHi >>> (msb + 9);
+        binaryExponent -= 1 ^ msb;
+        if (xLo == 0 && (xHi & 0x1FF) == 0 && (result & 3) == 1) {
+            return Double.NaN; // Exactly halfway, the truncated bits are needed to break the tie
+        }
+        result += result & 1;
+        result >>>= 1;
+        if ((result >>> 53) > 0) {
+            result >>>= 1;
+            binaryExponent++;
+        }
+        if (binaryExponent < 1 || binaryExponent >= 0x7FF) {
+            return Double.NaN; // Subnormal or infinite
+        }
+        return Double.longBitsToDouble(binaryExponent << 52 | (result & 0x000FFFFFFFFFFFFFL));
+    }
+
+    // 128-bit mantissas of 10^q (rounded down, top bit set) for MIN_EXPONENT <= q <= MAX_EXPONENT,
+    // stored as high, low pairs. Computed on first use, literals with small exponents never need them
+    private static final class PowersOfTen {
+
+        static final int MIN_EXPONENT = -348;
+        static final int MAX_EXPONENT = 347;
+        static final long[] MANTISSAS = new long[2 * (MAX_EXPONENT - MIN_EXPONENT + 1)];
+
+        static {
+            for (int q = MIN_EXPONENT; q <= MAX_EXPONENT; q++) {
+                BigInteger m;
+                if (q >= 0) {
+                    m = BigInteger.TEN.pow(q);
+                    int bits = m.bitLength();
+                    m = bits > 128 ? m.shiftRight(bits - 128) : m.shiftLeft(128 - bits);
+                } else {
+                    BigInteger power = BigInteger.TEN.pow(-q);
+                    m = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+                    m = m.bitLength() > 128 ? m.shiftRight(m.bitLength() - 128) : m;
+                }
+                int i = 2 * (q - MIN_EXPONENT);
+                MANTISSAS[i] = m.shiftRight(64).longValue();
+                MANTISSAS[i + 1] = m.longValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+// Exact fraction of the fractions mode of the evaluator (see Precise.EXACT)
+// A Fraction is always in lowest terms with a denominator above 1: whole results are Long or
+// BigInteger, like in the other precision modes. Numerator and denominator are primitive longs
+// while they fit; every step uses overflow-checked long arithmetic and the binary GCD of the
+// Evaluator (Knuth's reductions keep the intermediate products small), and only a step that
+// overflows moves to BigInteger. Results that fit again come back to longs.
+// The operations take any exact value: Long, BigInteger or Fraction
+package calculator;
+
+import java.io.Serial;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+final class Fraction extends Number {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private static final long[] TENS = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+        100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L,
+        100_000_000_000_000L, 1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L,
+        1_000_000_000_000_000_000L};
+
+    private final long num, den; // Used when bigNum is null
+    private final BigInteger bigNum, bigDen; // Only for values that do not fit longs
+
+    private Fraction(long num, long den) {
+        this.num = num;
+        this.den = den;
+        this.bigNum = null;
+        this.bigDen = null;
+    }
+
+    private Fraction(BigInteger num, BigInteger den) {
+        this.num = 0;
+        this.den = 0;
+        this.bigNum = num;
+        this.bigDen = den;
+    }
+
+    // ================== Construction ===================
+    // num / den reduced to lowest terms
+    static Number of(long num, long den) {
+        if (den == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        long g = Evaluator.computeGCD(num, den);
+        num /= g;
+        den /= g;
+        if (den < 0) {
+            if (num == Long.MIN_VALUE || den == Long.MIN_VALUE) {
+                return of(BigInteger.valueOf(num), BigInteger.valueOf(den));
+            }
+            num = -num;
+            den = -den;
+        }
+        return reduced(num, den);
+    }
+
+    static Number of(BigInteger num, BigInteger den) {
+        if (den.signum() == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        BigInteger g = num.gcd(den);
+        if (!g.equals(BigInteger.ONE)) {
+            num = num.divide(g);
+            den = den.divide(g);
+        }
+        if (den.signum() < 0) {
+            num = num.negate();
+            den = den.negate();
+        }
+        return reduced(num, den);
+    }
+
+    // A decimal is the fraction unscaled / 10^scale
+    static Number valueOf(BigDecimal x) {
+        BigInteger unscaled = x.unscaledValue();
+        int scale = x.scale();
+        if (scale <= 0) {
+            return Precise.normalize(unscaled.multiply(BigInteger.TEN.pow(-scale)));
+        }
+        if (scale < TENS.length && unscaled.bitLength() < 64) {
+            return of(unscaled.longValue(), TENS[scale]);
+        }
+        return of(unscaled, BigInteger.TEN.pow(scale));
+    }
+
+    // Already in lowest terms, den > 0
+    private static Number reduced(long num, long den) {
+        if (den == 1) {
+            return num;
+        }
+        return num == 0 ? (Number) 0L : new Fraction(num, den);
+    }
+
+    private static Number reduced(BigInteger num, BigInteger den) {
+        if (den.equals(BigInteger.ONE)) {
+            return Precise.normalize(num);
+        }
+        if (num.bitLength() < 64 && den.bitLength() < 64) {
+            return reduced(num.longValue(), den.longValue()); // Back to the fast path
+        }
+        return new Fraction(num, den);
+    }
+
+    // ================== Operators ===================
+    static Number add(Number a, Number b) {
+        if (isSmall(a) && isSmall(b)) {
+            long an = numerator(a), ad = denominator(a), bn = numerator(b), bd = denominator(b);
+            try {
+                // a/b + c/d = (a d/g + c b/g) / (b d/g), g = gcd(b, d); only the gcd with g can remain
+                long g = Evaluator.computeGCD(ad, bd);
+                long t = Math.addExact(Math.multiplyExact(an, bd / g), Math.multiplyExact(bn, ad / g));
+                long g2 = Evaluator.computeGCD(t, g);
+                return reduced(t / g2, Math.multiplyExact(ad / g, bd / g2));
+            } catch (ArithmeticException overflow) {
+                // Continue with BigInteger
+            }
+        }
+        BigInteger ad = bigDenominator(a), bd = bigDenominator(b);
+        return of(bigNumerator(a).multiply(bd).add(bigNumerator(b).multiply(ad)), ad.multiply(bd));
+    }
+
+    static Number subtract(Number a, Number b) {
+        return add(a, negate(b));
+    }
+
+    static Number multiply(Number a, Number b) {
+        if (isSmall(a) && isSmall(b)) {
+            long an = numerator(a), ad = denominator(a), bn = numerator(b), bd = denominator(b);
+            try {
+                // Cross reductions first: the result is then in lowest terms
+                long g1 = Evaluator.computeGCD(an, bd), g2 = Evaluator.computeGCD(bn, ad);
+                return reduced(Math.multiplyExact(an / g1, bn / g2), Math.multiplyExact(ad / g2, bd / g1));
+            } catch (ArithmeticException overflow) {
+                // Continue with BigInteger
+            }
+        }
+        return of(bigNumerator(a).multiply(bigNumerator(b)), bigDenominator(a).multiply(bigDenominator(b)));
+    }
+
+    static Number divide(Number a, Number b) {
+        return multiply(a, reciprocal(b));
+    }
+
+    static Number negate(Number x) {
+        if (x instanceof Fraction f) {
+            if (f.bigNum == null && f.num != Long.MIN_VALUE) {
+                return new Fraction(-f.num, f.den);
+            }
+            return new Fraction(bigNumerator(f).negate(), bigDenominator(f));
+        }
+        return Precise.negate(x);
+    }
+
+    static Number reciprocal(Number x) {
+        if (isSmall(x)) {
+            return of(denominator(x), numerator(x));
+        }
+        return of(bigDenominator(x), bigNumerator(x));
+    }
+
+    // x^n, n >= 0; numerator and denominator stay coprime
+    static Number pow(Number x, int n) {
+        if (x instanceof Fraction f) {
+            return reduced(bigNumerator(f).pow(n), bigDenominator(f).pow(n));
+        }
+        return Precise.normalize(Precise.toBigInteger(x).pow(n));
+    }
+
+    // Largest integer not above x
+    static Number floor(Number x) {
+        if (!(x instanceof Fraction f)) {
+            return x;
+        }
+        if (f.bigNum == null) {
+            return Math.floorDiv(f.num, f.den);
+        }
+        BigInteger[] qr = f.bigNum.divideAndRemainder(f.bigDen);
+        return Precise.normalize(f.bigNum.signum() < 0 ? qr[0].subtract(BigInteger.ONE) : qr[0]);
+    }
+
+    // Exact square root when numerator and denominator are both perfect squares, null otherwise
+    static Number sqrt(Fraction f) {
+        BigInteger num = bigNumerator(f), den = bigDenominator(f);
+        if (num.signum() < 0) {
+            return null;
+        }
+        BigInteger rootNum = num.sqrt(), rootDen = den.sqrt();
+        if (!rootNum.multiply(rootNum).equals(num) || !rootDen.multiply(rootDen).equals(den)) {
+            return null;
+        }
+        return reduced(rootNum, rootDen);
+    }
+
+    // Exact n-th root of an exact value when numerator and denominator are both perfect n-th powers
+    // (negative values only for odd n), null otherwise or when n is too large to try
+    static Number root(Number x, BigInteger n) {
+        if (n.bitLength() > 16) {
+            return null;
+        }
+        int degree = n.intValue();
+        BigInteger num = bigNumerator(x), den = bigDenominator(x);
+        if (num.signum() < 0 && degree % 2 == 0) {
+            return null;
+        }
+        BigInteger rootNum = wholeRoot(num.abs(), degree), rootDen = wholeRoot(den, degree);
+        if (rootNum == null || rootDen == null) {
+            return null;
+        }
+        return reduced(num.signum() < 0 ? rootNum.negate() : rootNum, rootDen);
+    }
+
+    // Integer n-th root of x >= 0 by Newton's iteration from above, null when x is not a perfect n-th power
+    private static BigInteger wholeRoot(BigInteger x, int n) {
+        if (x.signum() == 0 || n == 1) {
+            return x;
+        }
+        BigInteger degree = BigInteger.valueOf(n), below = BigInteger.valueOf(n - 1);
+        BigInteger r = BigInteger.ONE.shiftLeft(x.bitLength() / n + 1);
+        while (true) {
+            BigInteger next = r.multiply(below).add(x.divide(r.pow(n - 1))).divide(degree);
+            if (next.compareTo(r) >= 0) {
+                break;
+            }
+            r = next;
+        }
+        return r.pow(n).equals(x) ? r : null;
+    }
+
+    static int compare(Number a, Number b) {
+        return bigNumerator(a).multiply(bigDenominator(b)).compareTo(bigNumerator(b).multiply(bigDenominator(a)));
+    }
+
+    BigInteger numerator() {
+        return bigNumerator(this);
+    }
+
+    BigInteger denominator() {
+        return bigDenominator(this);
+    }
+
+    // Bits of the numerator and the denominator together
+    long bits() {
+        return bigNum == null ? 128 - Long.numberOfLeadingZeros(Math.abs(num)) - Long.numberOfLeadingZeros(den)
+                : (long) bigNum.bitLength() + bigDen.bitLength();
+    }
+
+    // Approximation to mc digits, where a decimal is needed
+    BigDecimal toBigDecimal(MathContext mc) {
+        return new BigDecimal(bigNumerator(this)).divide(new BigDecimal(bigDenominator(this)), mc);
+    }
+
+    // ================== Parts ===================
+    private static boolean isSmall(Number x) {
+        return x instanceof Long || (x instanceof Fraction f && f.bigNum == null);
+    }
+
+    private static long numerator(Number x) {
+        return x instanceof Fraction f ? f.num : (Long) x;
+    }
+
+    private static long denominator(Number x) {
+        return x instanceof Fraction f ? f.den : 1;
+    }
+
+    private static BigInteger bigNumerator(Number x) {
+        if (x instanceof Fraction f) {
+            return f.bigNum != null ? f.bigNum : BigInteger.valueOf(f.num);
+        }
+        return Precise.toBigInteger(x);
+    }
+
+    private static BigInteger bigDenominator(Number x) {
+        if (x instanceof Fraction f) {
+            return f.bigDen != null ? f.bigDen : BigInteger.valueOf(f.den);
+        }
+        return BigInteger.ONE;
+    }
+
+    // ================== Number ===================
+    @Override
+    public double doubleValue() {
+        if (bigNum == null && Math.abs(num) < 1L << 53 && den < 1L << 53) {
+            return num / (double) den; // Both exact, one correctly rounded division
+        }
+        return toBigDecimal(MathContext.DECIMAL128).doubleValue();
+    }
+
+    @Override
+    public float floatValue() {
+        return (float) doubleValue();
+    }
+
+    // Truncated towards zero, like the other Number types
+    @Override
+    public long longValue() {
+        return bigNum == null ? num / den : bigNum.divide(bigDen).longValue();
+    }
+
+    @Override
+    public int intValue() {
+        return (int) longValue();
+    }
+
+    @Override
+    public String toString() {
+        return Precise.format(Precise.normalize(bigNumerator(this))) + "/" + Precise.format(Precise.normalize(bigDenominator(this)));
+    }
+}
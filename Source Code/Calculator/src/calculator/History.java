@@ -0,0 +1,336 @@
+// Persistent calculation history: an append-only log of expression, result, timestamp and duration
+// Records are copied into a memory-mapped file, which is forced to disk every second and on close,
+// so recording a calculation makes no system call. The log is scanned once when opened, afterwards
+// queries use a compact index kept in memory, three primitive columns (record offset, first 8 bytes
+// of the expression, result value: 20 bytes per entry) scanned for prefix and result-range searches
+// in a few milliseconds per million entries. Entries are numbered from 1, Ans[n] is the result of entry n
+// Record: int length of the rest (0 marks the end of the log), long timestamp (epoch millis),
+// long duration (nanos), double value (NaN when there is none), short expression length, byte kind,
+// expression, result (UTF-8)
+package calculator;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class History implements AutoCloseable {
+
+    private static final int INITIAL_SIZE = 1 << 20;
+    private static final int HEADER = 4 + 8 + 8 + 8 + 2 + 1; // Bytes before the expression
+    private static final long FLUSH_MILLIS = 1000;
+    private static final Pattern ANS = Pattern.compile("Ans\\[(\\d+)]");
+    private static final Pattern NON_FINITE = Pattern.compile("-?Infinity|NaN");
+
+    // What the result of an entry is, and what its value holds
+    enum Kind {
+        NUMBER, // The value is the number (infinite or NaN too), the result may be exact (fraction, big digits)
+        COMPLEX, // The value is the real part
+        TEXT, // Definition or matrix, no value
+        ERROR // Failed calculation, no value
+    }
+
+    // Raised by expand for an Ans[n] that can't be replaced, the message tells the user why
+    static final class ReferenceException extends IllegalArgumentException {
+
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        ReferenceException(String message) {
+            super(message);
+        }
+    }
+
+    // One recorded calculation
+    record Entry(int number, String expression, String result, Kind kind, double value, long timestamp, long durationNanos) {
+    }
+
+    private final FileChannel channel; // null when the history is not persisted
+    private final FileLock lock;
+    private final ScheduledExecutorService flusher;
+    private ByteBuffer log; // Mapped file, or a heap buffer
+    private int end; // Offset of the next record
+    private boolean dirty; // Appended since the last force
+
+    // Index, entry n is at n - 1
+    private int count;
+    private int[] offsets = new int[1024];
+    private long[] prefixes = new long[1024];
+    private double[] values = new double[1024];
+
+    private History(FileChannel channel, FileLock lock, ByteBuffer log) {
+        this.channel = channel;
+        this.lock = lock;
+        this.log = log;
+        scan();
+        if (channel != null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "calculator-history");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    // Open (or create) the history file, only one process can use it at a time
+    static History open(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                lock = null; // Already open in this process
+            }
+            if (lock == null) {
+                throw new IOException("History " + file + " is used by another calculator");
+            }
+            long size = Math.max(channel.size(), INITIAL_SIZE);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("History " + file + " is too large");
+            }
+            return new History(channel, lock, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // History kept in memory only, for when the file can't be used
+    static History inMemory() {
+        return new History(null, null, ByteBuffer.allocate(INITIAL_SIZE));
+    }
+
+    // Index the records of an existing log, a torn last record ends it
+    private void scan() {
+        int position = 0;
+        while (position + 4 <= log.capacity()) {
+            int length = log.getInt(position);
+            if (length < HEADER - 4 || length > log.capacity() - position - 4) {
+                break;
+            }
+            int expressionLength = log.getShort(position + 28);
+            if (expressionLength < 0 || expressionLength > length - (HEADER - 4)) {
+                break;
+            }
+            index(position, log.getDouble(position + 20), expressionLength);
+            position += 4 + length;
+        }
+        end = position;
+    }
+
+    private void index(int offset, double value, int expressionLength) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            prefixes = Arrays.copyOf(prefixes, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+        }
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = prefix << 8 | (i < expressionLength ? log.get(offset + HEADER + i) & 0xFF : 0);
+        }
+        offsets[count] = offset;
+        prefixes[count] = prefix;
+        values[count] = value;
+        count++;
+    }
+
+    // ================== Recording ===================
+    // Record a calculation and return its entry number
+    synchronized int append(String expression, String result, Kind kind, double value, long durationNanos) {
+        byte[] text = expression.getBytes(StandardCharsets.UTF_8);
+        byte[] resultText = result.getBytes(StandardCharsets.UTF_8);
+        if (text.length > Short.MAX_VALUE) {
+            text = Arrays.copyOf(text, Short.MAX_VALUE); // Very long expressions are kept truncated
+        }
+        int length = HEADER - 4 + text.length + resultText.length;
+        ensureCapacity(end + 4 + length + 4); // Room for the end marker too
+        int offset = end;
+        log.putLong(offset + 4, System.currentTimeMillis());
+        log.putLong(offset + 12, durationNanos);
+        log.putDouble(offset + 20, value);
+        log.putShort(offset + 28, (short) text.length);
+        log.put(offset + 30, (byte) kind.ordinal());
+        log.put(offset + HEADER, text);
+        log.put(offset + HEADER + text.length, resultText);
+        log.putInt(offset + 4 + length, 0); // End marker, the file may hold a torn record there
+        log.putInt(offset, length); // Last, so a record interrupted halfway is not part of the log
+        end += 4 + length;
+        dirty = true;
+        index(offset, value, text.length);
+        return count;
+    }
+
+    // Grow the mapping (doubling the file) when a record doesn't fit
+    private void ensureCapacity(long needed) {
+        if (needed <= log.capacity()) {
+            return;
+        }
+        long size = Math.max(needed, 2L * log.capacity());
+        if (size > Integer.MAX_VALUE) {
+            size = Integer.MAX_VALUE;
+            if (needed > size) {
+                throw new IllegalStateException("History is full");
+            }
+        }
+        if (channel == null) {
+            log = ByteBuffer.allocate((int) size).put(log.clear());
+            return;
+        }
+        try {
+            log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            throw new IllegalStateException("History can't grow: " + ex.getMessage(), ex);
+        }
+    }
+
+    // Write the appended records to disk
+    void flush() {
+        MappedByteBuffer mapped;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            mapped = (MappedByteBuffer) log;
+        }
+        mapped.force(); // Outside the lock, appending goes on meanwhile
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            flusher.shutdownNow();
+            flush();
+            lock.release();
+            channel.close();
+        }
+    }
+
+    // ================== Queries ===================
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized Entry get(int number) {
+        int offset = offsets[checkNumber(number) - 1];
+        int length = log.getInt(offset);
+        int expressionLength = log.getShort(offset + 28);
+        return new Entry(number,
+                string(offset + HEADER, expressionLength),
+                string(offset + HEADER + expressionLength, length - (HEADER - 4) - expressionLength),
+                kind(log.get(offset + 30)), log.getDouble(offset + 20), log.getLong(offset + 4), log.getLong(offset + 12));
+    }
+
+    synchronized double value(int number) {
+        return values[checkNumber(number) - 1];
+    }
+
+    private static Kind kind(byte ordinal) {
+        Kind[] kinds = Kind.values();
+        return ordinal >= 0 && ordinal < kinds.length ? kinds[ordinal] : Kind.ERROR;
+    }
+
+    private int checkNumber(int number) {
+        if (number < 1 || number > count) {
+            throw new IllegalArgumentException("No history entry " + number);
+        }
+        return number;
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        log.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Numbers of the entries whose expression starts with prefix and whose result is in [min, max]
+    // An infinite range on both sides doesn't filter on the result (failed calculations included)
+    synchronized int[] search(String prefix, double min, double max) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        long key = 0, mask = 0;
+        for (int i = 0; i < 8; i++) {
+            key = key << 8 | (i < bytes.length ? bytes[i] & 0xFF : 0);
+            mask = mask << 8 | (i < bytes.length ? 0xFF : 0);
+        }
+        boolean anyValue = min == Double.NEGATIVE_INFINITY && max == Double.POSITIVE_INFINITY;
+        int[] matches = new int[16];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if ((prefixes[i] & mask) == key && (anyValue || values[i] >= min && values[i] <= max)
+                    && (bytes.length <= 8 || startsWith(offsets[i], bytes))) {
+                if (found == matches.length) {
+                    matches = Arrays.copyOf(matches, found * 2);
+                }
+                matches[found++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(matches, found);
+    }
+
+    // Compare the rest of a long prefix with the expression of the record at offset
+    private boolean startsWith(int offset, byte[] prefix) {
+        if (log.getShort(offset + 28) < prefix.length) {
+            return false;
+        }
+        for (int i = 8; i < prefix.length; i++) {
+            if (log.get(offset + HEADER + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Replace every Ans[n] of an expression by the result of entry n, as shown (exact digits, fraction
+    // or complex number). Entries without a finite result can't be used
+    String expand(String expression) {
+        if (!expression.contains("Ans[")) {
+            return expression;
+        }
+        Matcher m = ANS.matcher(expression);
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            int number;
+            try {
+                number = Integer.parseInt(m.group(1));
+            } catch (NumberFormatException ex) {
+                number = 0;
+            }
+            if (number < 1 || number > size()) {
+                throw new ReferenceException("No history entry " + m.group(1));
+            }
+            Entry entry = get(number);
+            switch (entry.kind()) {
+                case ERROR -> throw new ReferenceException("History entry " + number + " failed, it has no result");
+                case TEXT -> throw new ReferenceException("History entry " + number + " is not a number: " + entry.result());
+                default -> {
+                    if (NON_FINITE.matcher(entry.result()).matches()) {
+                        throw new ReferenceException("History entry " + number + " is " + entry.result()
+                                + ", Ans[" + number + "] needs a finite result");
+                    }
+                }
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement("(" + entry.result() + ")"));
+        }
+        return m.appendTail(sb).toString();
+    }
+}
@@ -0,0 +1,198 @@
+// Window listing the calculation history, filtered by expression prefix and result range
+// The ListView only creates cells for the visible rows, with a fixed height so it never measures
+// the others, and its items are a view over entry numbers (no object per entry): a row reads its
+// entry from the History when it is shown, so scrolling stays smooth with millions of entries
+package calculator;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableListBase;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.input.MouseButton;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+final class HistoryView {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final History history;
+    private final Stage stage = new Stage();
+    private final ListView<Integer> list = new ListView<>();
+    private final TextField prefix = new TextField();
+    private final TextField min = new TextField();
+    private final TextField max = new TextField();
+    private final Label status = new Label();
+    private Entries entries;
+
+    // replay receives the expression of the selected entry, reference its Ans[n]
+    HistoryView(History history, Scene owner, Consumer<String> replay, Consumer<String> reference) {
+        this.history = history;
+
+        prefix.setPromptText("Expression starts with");
+        min.setPromptText("Min result");
+        max.setPromptText("Max result");
+        min.setPrefWidth(90);
+        max.setPrefWidth(90);
+        HBox.setHgrow(prefix, Priority.ALWAYS);
+        prefix.textProperty().addListener((obs, oldText, newText) -> filter());
+        min.textProperty().addListener((obs, oldText, newText) -> filter());
+        max.textProperty().addListener((obs, oldText, newText) -> filter());
+
+        list.setFixedCellSize(26);
+        list.setCellFactory(view -> new EntryCell());
+        VBox.setVgrow(list, Priority.ALWAYS);
+        // Double click replays the calculation
+        list.setOnMouseClicked(event -> {
+            if (event.getButton() == MouseButton.PRIMARY && event.getClickCount() == 2 && selected() != null) {
+                replay.accept(selected().expression());
+            }
+        });
+
+        Button replayButton = new Button("Replay");
+        replayButton.setOnAction(e -> {
+            if (selected() != null) {
+                replay.accept(selected().expression());
+            }
+        });
+        Button ansButton = new Button("Insert Ans[n]");
+        ansButton.setOnAction(e -> {
+            if (selected() != null) {
+                reference.accept("Ans[" + selected().number() + "]");
+            }
+        });
+        HBox actions = new HBox(5, replayButton, ansButton, status);
+        actions.setAlignment(Pos.CENTER_LEFT);
+
+        VBox layout = new VBox(8, new HBox(5, prefix, min, max), list, actions);
+        layout.setPadding(new Insets(10));
+        Scene scene = new Scene(layout, 520, 600);
+        scene.getStylesheets().setAll(owner.getStylesheets());
+        // Follow the theme of the calculator
+        owner.getStylesheets().addListener((ListChangeListener<String>) change -> scene.getStylesheets().setAll(owner.getStylesheets()));
+        stage.setTitle("History");
+        stage.setScene(scene);
+        filter();
+    }
+
+    void show() {
+        stage.show();
+        stage.toFront();
+        scrollToEnd();
+    }
+
+    // A calculation was recorded (FX thread)
+    void added() {
+        if (entries.numbers == null) {
+            entries.grow(history.size());
+            status.setText(entries.size() + " entries");
+        } else {
+            filter();
+        }
+        if (stage.isShowing()) {
+            scrollToEnd();
+        }
+    }
+
+    private void scrollToEnd() {
+        if (!entries.isEmpty()) {
+            list.scrollTo(entries.size() - 1);
+        }
+    }
+
+    private History.Entry selected() {
+        Integer number = list.getSelectionModel().getSelectedItem();
+        return number == null ? null : history.get(number);
+    }
+
+    // Show the entries matching the search fields, all of them when they are empty
+    private void filter() {
+        double low = bound(min, Double.NEGATIVE_INFINITY);
+        double high = bound(max, Double.POSITIVE_INFINITY);
+        if (Double.isNaN(low) || Double.isNaN(high)) {
+            status.setText("Invalid result range");
+            return;
+        }
+        if (prefix.getText().isEmpty() && low == Double.NEGATIVE_INFINITY && high == Double.POSITIVE_INFINITY) {
+            entries = new Entries(null, history.size());
+        } else {
+            int[] numbers = history.search(prefix.getText(), low, high);
+            entries = new Entries(numbers, numbers.length);
+        }
+        list.setItems(entries);
+        status.setText(entries.size() + " entries");
+    }
+
+    // Value of a range field, NaN when it isn't a number
+    private static double bound(TextField field, double empty) {
+        String text = field.getText().trim();
+        if (text.isEmpty()) {
+            return empty;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    // Entry numbers shown by the list: the given ones, or 1..size when numbers is null
+    private static final class Entries extends ObservableListBase<Integer> {
+
+        private final int[] numbers;
+        private int size;
+
+        Entries(int[] numbers, int size) {
+            this.numbers = numbers;
+            this.size = size;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return numbers == null ? index + 1 : numbers[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        // New entries at the end of the full history
+        void grow(int newSize) {
+            if (newSize > size) {
+                beginChange();
+                nextAdd(size, newSize);
+                size = newSize;
+                endChange();
+            }
+        }
+    }
+
+    // Row of the list: number, expression, result, then when and how long it took
+    private final class EntryCell extends ListCell<Integer> {
+
+        @Override
+        protected void updateItem(Integer number, boolean empty) {
+            super.updateItem(number, empty);
+            if (empty || number == null) {
+                setText(null);
+                return;
+            }
+            History.Entry entry = history.get(number);
+            setText(String.format("%d   %s = %s   (%s, %.2f ms)", number, entry.expression(), entry.result(),
+                    TIME.format(Instant.ofEpochMilli(entry.timestamp())), entry.durationNanos() / 1e6));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+// Incremental evaluation behind the live result preview
+// The expression is evaluated as a chain of top-level terms (t0 + t1 - t2 ...), exactly like the
+// parser folds them from left to right. The running total before every top-level '+' or '-' is kept
+// as a checkpoint, so typing at the end of the expression only parses and evaluates the last term
+// again, and editing earlier only drops the checkpoints after the edit.
+// Not thread-safe: used by the single preview worker thread
+package calculator;
+
+import java.util.Arrays;
+
+final class IncrementalPreview {
+
+    private final Evaluator evaluator;
+    private String text = "";
+    private long symbolsVersion; // Checkpoints are dropped when a user symbol is redefined
+
+    // Checkpoint i: top-level operator at operators[i], totals[i] = value of the text before it
+    private int[] operators = new int[16];
+    private double[] totals = new double[16];
+    private int checkpoints;
+
+    IncrementalPreview(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    // Value of the new expression text, throws when it cannot be evaluated (yet)
+    double update(String newText) {
+        int common = 0;
+        int max = Math.min(text.length(), newText.length());
+        while (common < max && text.charAt(common) == newText.charAt(common)) {
+            common++;
+        }
+        text = newText;
+        if (symbolsVersion != evaluator.symbols().version()) {
+            symbolsVersion = evaluator.symbols().version();
+            common = 0;
+        }
+
+        // Keep only checkpoints whose operator (and everything before it) is unchanged
+        while (checkpoints > 0 && operators[checkpoints - 1] >= common) {
+            checkpoints--;
+        }
+
+        // Resume after the last valid checkpoint
+        boolean first = checkpoints == 0;
+        double total = first ? 0 : totals[checkpoints - 1];
+        char sign = first ? '+' : newText.charAt(operators[checkpoints - 1]);
+        int termStart = first ? 0 : operators[checkpoints - 1] + 1;
+        int depth = 0;
+
+        for (int i = termStart; i < newText.length(); i++) {
+            char c = newText.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && (c == '+' || c == '-') && isBinary(newText, i)) {
+                // A term is complete, fold it into the total and remember the checkpoint
+                total = combine(first, total, sign, evaluator.eval(newText.substring(termStart, i)));
+                first = false;
+                addCheckpoint(i, total);
+                sign = c;
+                termStart = i + 1;
+            }
+        }
+        return combine(first, total, sign, evaluator.eval(newText.substring(termStart)));
+    }
+
+    private static double combine(boolean first, double total, char sign, double term) {
+        if (first) {
+            return term;
+        }
+        return sign == '+' ? total + term : total - term;
+    }
+
+    // A sign is a binary operator when it follows the end of an operand (otherwise it is unary, e.g. 2*-3)
+    // The sign of an exponent (1e-10) is part of the number
+    private static boolean isBinary(String expr, int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            char c = expr.charAt(i);
+            if (c != ' ') {
+                if ((c == 'e' || c == 'E') && i > 0 && (Character.isDigit(expr.charAt(i - 1)) || expr.charAt(i - 1) == '.')) {
+                    return false;
+                }
+                return Character.isLetterOrDigit(c) || c == '.' || c == ')' || c == '%';
+            }
+        }
+        return false;
+    }
+
+    private void addCheckpoint(int operator, double total) {
+        if (checkpoints == operators.length) {
+            operators = Arrays.copyOf(operators, checkpoints * 2);
+            totals = Arrays.copyOf(totals, checkpoints * 2);
+        }
+        operators[checkpoints] = operator;
+        totals[checkpoints] = total;
+        checkpoints++;
+    }
+}
@@ -0,0 +1,93 @@
+// Concurrent latency histogram with logarithmic buckets (HdrHistogram style)
+// Every power of two is split into SUB_BUCKETS linear buckets, so any recorded value is known
+// within ~3% using a fixed array of counters, whatever the range of values (1 ns to 292 years).
+// Recording is lock-free and allocation-free
+package calculator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    // Record the same value several times, e.g. the latency of every request of a batch
+    public void record(long nanos, long times) {
+        long value = Math.max(0, nanos);
+        counts.addAndGet(index(value), times);
+        count.add(times);
+        total.add(value * times);
+        max.accumulate(value);
+    }
+
+    // Values below SUB_BUCKETS have their own bucket, larger ones keep their SUB_BUCKET_BITS + 1 top bits
+    static int index(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        if (highestBit < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // Largest value that falls in the bucket
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    // ================== Results (nanoseconds) ===================
+    public long count() {
+        return count.sum();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    // Value below which the given percentage of the recorded values fall, e.g. percentile(99)
+    public long percentile(double percentage) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentage / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+}
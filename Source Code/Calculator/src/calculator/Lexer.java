@@ -0,0 +1,143 @@
+// Tokenizer of the expression parser
+// Works directly over the expression text: a token is a type and a [start, end) range, numbers are
+// converted in place by FastDoubleParser and function names are matched against the known names,
+// so scanning allocates nothing (only variable names, data file paths and literals with more than
+// 15 significant digits, kept for precision mode, are copied out)
+package calculator;
+
+import java.util.List;
+
+final class Lexer {
+
+    // Token types, any other character is a SYMBOL token
+    static final int END = 0, NUMBER = 1, NAME = 2, STRING = 3, SYMBOL = 4;
+
+    private static final int EXACT_DIGITS = 15; // Decimal literals up to 15 digits survive the double round-trip
+
+    private final CharSequence text;
+    private int pos; // Next character to scan
+
+    // Current token
+    int type;
+    char symbol; // SYMBOL tokens
+    int start, end; // Token range, without the quotes for STRING tokens
+    double number; // NUMBER tokens
+    private int significantDigits;
+
+    Lexer(CharSequence text) {
+        this.text = text;
+        next();
+    }
+
+    // Advance to the next token
+    void next() {
+        int length = text.length();
+        while (pos < length && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        start = pos;
+        if (pos == length) {
+            type = END;
+            end = pos;
+            return;
+        }
+        char c = text.charAt(pos);
+        if (isDigit(c) || c == '.') {
+            scanNumber();
+        } else if (Character.isLetter(c)) {
+            while (pos < length && Character.isLetter(text.charAt(pos))) {
+                pos++;
+            }
+            type = NAME;
+            end = pos;
+        } else if (c == '"') {
+            int close = pos + 1;
+            while (close < length && text.charAt(close) != '"') {
+                close++;
+            }
+            if (close == length) {
+                throw new RuntimeException("Missing closing quote after " + text.subSequence(pos + 1, length));
+            }
+            type = STRING;
+            start = pos + 1;
+            end = close;
+            pos = close + 1;
+        } else {
+            type = SYMBOL;
+            symbol = c;
+            end = ++pos;
+        }
+    }
+
+    // digits [. digits] [(e|E) [+|-] digits], the exponent only when digits follow (2e alone is 2 then e)
+    private void scanNumber() {
+        int length = text.length();
+        significantDigits = 0;
+        boolean leading = true;
+        int dots = 0;
+        while (pos < length && (isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+            char c = text.charAt(pos++);
+            if (c == '.') {
+                dots++;
+            } else if (c != '0' || !leading) {
+                leading = false;
+                significantDigits++;
+            }
+        }
+        if (pos < length && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+            int exponent = pos + 1;
+            if (exponent < length && (text.charAt(exponent) == '+' || text.charAt(exponent) == '-')) {
+                exponent++;
+            }
+            if (exponent < length && isDigit(text.charAt(exponent))) {
+                pos = exponent;
+                while (pos < length && isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+        }
+        type = NUMBER;
+        end = pos;
+        if (dots > 1 || end - start == dots) {
+            throw new NumberFormatException("Malformed number: " + text.subSequence(start, end));
+        }
+        number = FastDoubleParser.parse(text, start, end);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Digits of the current NUMBER token when its double value may not be the exact decimal typed,
+    // null when the double is exact enough to stand for the literal in precision mode. Outside the
+    // normal double range (1e400 overflows, 1e-400 underflows to 0 or a subnormal) the text is kept too
+    String exactText() {
+        boolean outOfRange = Double.isInfinite(number) || significantDigits > 0 && Math.abs(number) < Double.MIN_NORMAL;
+        return significantDigits > EXACT_DIGITS || outOfRange ? text.subSequence(start, end).toString() : null;
+    }
+
+    // Text of the current token, one of the known names (no copy) if it matches
+    String text(List<String> known) {
+        int length = end - start;
+        for (String name : known) {
+            if (name.length() == length && regionEquals(name)) {
+                return name;
+            }
+        }
+        return text.subSequence(start, end).toString();
+    }
+
+    private boolean regionEquals(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (text.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Description of the current token for error messages
+    String describe() {
+        return type == END ? "end of expression" : text.subSequence(start, end).toString();
+    }
+}
@@ -0,0 +1,309 @@
+// Dense matrix of the Linear Algebra functions: [[1,2],[3,4]] * [[5],[6]], det, inv, transpose, solve
+// Entries are stored in one flat double[] in row-major order (entry (i, j) at i * cols + j), so rows
+// are contiguous and the inner loops of the kernels run over consecutive memory, which the JIT turns
+// into SIMD instructions. Multiplication works on blocks small enough to stay in the CPU cache;
+// multiplication, elimination and substitution run their independent rows (or columns) on all cores
+// (fork-join common pool) once a kernel has more than PARALLEL_WORK multiply-adds.
+// Matrices are immutable, every operation returns a new one
+package calculator;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public final class Matrix {
+
+    private static final int BLOCK = 64; // Rows (and inner dimension) of a multiplication block
+    private static final int COLUMN_BLOCK = 256; // Columns of a multiplication block: 64 x 256 doubles = 128 KB
+    private static final long PARALLEL_WORK = 1 << 20; // Multiply-adds below which a kernel stays on one thread
+    private static final int SOLVE_CHUNK = 64; // Right-hand side columns per parallel substitution task
+
+    final int rows;
+    final int cols;
+    final double[] data;
+
+    Matrix(int rows, int cols, double[] data) {
+        if (rows < 1 || cols < 1 || data.length != rows * cols) {
+            throw new IllegalArgumentException("Invalid matrix size " + rows + "x" + cols);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.data = data;
+    }
+
+    double get(int row, int col) {
+        return data[row * cols + col];
+    }
+
+    // Written like a literal, so a result can be used again in an expression
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < cols; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append(data[i * cols + j]);
+            }
+            sb.append(']');
+        }
+        return sb.append(']').toString();
+    }
+
+    // ================== Element-wise operations ===================
+    Matrix plus(Matrix other) {
+        requireSameSize(other, "+");
+        double[] result = data.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] += other.data[i];
+        }
+        return new Matrix(rows, cols, result);
+    }
+
+    Matrix minus(Matrix other) {
+        requireSameSize(other, "-");
+        double[] result = data.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] -= other.data[i];
+        }
+        return new Matrix(rows, cols, result);
+    }
+
+    Matrix scale(double factor) {
+        double[] result = data.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] *= factor;
+        }
+        return new Matrix(rows, cols, result);
+    }
+
+    private void requireSameSize(Matrix other, String op) {
+        if (rows != other.rows || cols != other.cols) {
+            throw new RuntimeException("Can't apply " + op + " to a " + size() + " and a " + other.size() + " matrix");
+        }
+    }
+
+    private String size() {
+        return rows + "x" + cols;
+    }
+
+    // ================== Multiplication and transposition ===================
+    // Product with other, blocks of BLOCK rows of the result are computed in parallel
+    Matrix times(Matrix other) {
+        if (cols != other.rows) {
+            throw new RuntimeException("Can't multiply a " + size() + " by a " + other.size() + " matrix");
+        }
+        double[] result = new double[rows * other.cols];
+        IntStream blocks = IntStream.range(0, (rows + BLOCK - 1) / BLOCK);
+        if ((long) rows * cols * other.cols > PARALLEL_WORK) {
+            blocks = blocks.parallel();
+        }
+        blocks.forEach(block -> multiplyRows(other, result, block * BLOCK, Math.min(rows, (block + 1) * BLOCK)));
+        return new Matrix(rows, other.cols, result);
+    }
+
+    // Rows [from, to) of this * other: the inner dimension and the columns are walked block by block,
+    // so the block of other stays in cache while every row of the block accumulates into the result.
+    // Four rows of other are added at once, which quarters the loads and stores of the result row
+    private void multiplyRows(Matrix other, double[] result, int from, int to) {
+        Evaluator.checkCancelled();
+        int n = other.cols;
+        double[] b = other.data;
+        for (int kk = 0; kk < cols; kk += BLOCK) {
+            int kEnd = Math.min(cols, kk + BLOCK);
+            for (int jj = 0; jj < n; jj += COLUMN_BLOCK) {
+                int jEnd = Math.min(n, jj + COLUMN_BLOCK);
+                for (int i = from; i < to; i++) {
+                    int row = i * n, a = i * cols;
+                    int k = kk;
+                    for (; k + 3 < kEnd; k += 4) {
+                        double a0 = data[a + k], a1 = data[a + k + 1], a2 = data[a + k + 2], a3 = data[a + k + 3];
+                        int b0 = k * n, b1 = b0 + n, b2 = b1 + n, b3 = b2 + n;
+                        for (int j = jj; j < jEnd; j++) {
+                            result[row + j] += a0 * b[b0 + j] + a1 * b[b1 + j] + a2 * b[b2 + j] + a3 * b[b3 + j];
+                        }
+                    }
+                    for (; k < kEnd; k++) {
+                        double ak = data[a + k];
+                        int bk = k * n;
+                        for (int j = jj; j < jEnd; j++) {
+                            result[row + j] += ak * b[bk + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Transposed copy, tile by tile so both the reads and the writes stay in cache
+    Matrix transpose() {
+        double[] result = new double[data.length];
+        int tile = 32;
+        for (int ii = 0; ii < rows; ii += tile) {
+            int iEnd = Math.min(rows, ii + tile);
+            for (int jj = 0; jj < cols; jj += tile) {
+                int jEnd = Math.min(cols, jj + tile);
+                for (int i = ii; i < iEnd; i++) {
+                    for (int j = jj; j < jEnd; j++) {
+                        result[j * rows + i] = data[i * cols + j];
+                    }
+                }
+            }
+        }
+        return new Matrix(cols, rows, result);
+    }
+
+    // ================== Determinant, inverse and linear systems ===================
+    double determinant() {
+        Decomposition lu = decompose("det");
+        if (lu.singular) {
+            return 0;
+        }
+        double det = lu.oddSwaps ? -1 : 1;
+        for (int i = 0; i < rows; i++) {
+            det *= lu.lu[i * rows + i];
+        }
+        return det;
+    }
+
+    Matrix inverse() {
+        double[] identity = new double[rows * rows];
+        for (int i = 0; i < rows; i++) {
+            identity[i * rows + i] = 1;
+        }
+        return decompose("inv").solve(new Matrix(rows, rows, identity));
+    }
+
+    // Solution x of this * x = b, b holds one right-hand side per column (a single row is taken as a column)
+    Matrix solve(Matrix b) {
+        Decomposition lu = decompose("solve");
+        if (b.rows == 1 && b.cols == rows && rows > 1) {
+            b = new Matrix(rows, 1, b.data);
+        }
+        if (b.rows != rows) {
+            throw new RuntimeException("Can't solve a " + size() + " system with a " + b.size() + " right-hand side");
+        }
+        return lu.solve(b);
+    }
+
+    // LU decomposition with partial pivoting: P * this = L * U, L (unit diagonal, below it) and U
+    // (diagonal and above) share one array. At every step the rows below the pivot are eliminated
+    // independently, in parallel while the remaining block is large
+    private Decomposition decompose(String function) {
+        if (rows != cols) {
+            throw new RuntimeException(function + " needs a square matrix, not " + size());
+        }
+        int n = rows;
+        double[] lu = data.clone();
+        int[] permutation = new int[n];
+        Arrays.setAll(permutation, i -> i);
+        boolean oddSwaps = false;
+        boolean singular = false;
+        // A pivot within rounding error of the largest entry is taken as 0: [[1,2,3],[4,5,6],[7,8,9]] leaves
+        // a pivot of about 1e-16 instead of an exact 0, and its inverse would be noise around 1e15
+        double largest = 0;
+        for (double value : data) {
+            largest = Math.max(largest, Math.abs(value));
+        }
+        double negligible = n * Math.ulp(largest);
+        for (int k = 0; k < n; k++) {
+            Evaluator.checkCancelled();
+            int pivot = k;
+            for (int i = k + 1; i < n; i++) {
+                if (Math.abs(lu[i * n + k]) > Math.abs(lu[pivot * n + k])) {
+                    pivot = i;
+                }
+            }
+            if (Math.abs(lu[pivot * n + k]) <= negligible) {
+                singular = true; // Nothing left to eliminate in this column
+                continue;
+            }
+            if (pivot != k) {
+                swapRows(lu, n, pivot, k);
+                int p = permutation[pivot];
+                permutation[pivot] = permutation[k];
+                permutation[k] = p;
+                oddSwaps = !oddSwaps;
+            }
+            int step = k;
+            IntStream below = IntStream.range(k + 1, n);
+            if ((long) (n - k) * (n - k) > PARALLEL_WORK) {
+                below = below.parallel();
+            }
+            below.forEach(i -> eliminate(lu, n, step, i));
+        }
+        return new Decomposition(n, lu, permutation, oddSwaps, singular);
+    }
+
+    private static void swapRows(double[] values, int n, int a, int b) {
+        for (int j = 0; j < n; j++) {
+            double t = values[a * n + j];
+            values[a * n + j] = values[b * n + j];
+            values[b * n + j] = t;
+        }
+    }
+
+    // Subtract the multiple of pivot row k that zeroes column k of row i, keep the factor in L
+    private static void eliminate(double[] lu, int n, int k, int i) {
+        double factor = lu[i * n + k] / lu[k * n + k];
+        lu[i * n + k] = factor;
+        if (factor == 0) {
+            return;
+        }
+        int row = i * n, pivotRow = k * n;
+        for (int j = k + 1; j < n; j++) {
+            lu[row + j] -= factor * lu[pivotRow + j];
+        }
+    }
+
+    private record Decomposition(int n, double[] lu, int[] permutation, boolean oddSwaps, boolean singular) {
+
+        // Forward then back substitution for every column of b, chunks of columns in parallel
+        Matrix solve(Matrix b) {
+            if (singular) {
+                throw new RuntimeException("Matrix is singular");
+            }
+            int m = b.cols;
+            double[] x = new double[n * m];
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(b.data, permutation[i] * m, x, i * m, m);
+            }
+            IntStream chunks = IntStream.range(0, (m + SOLVE_CHUNK - 1) / SOLVE_CHUNK);
+            if ((long) n * n * m > PARALLEL_WORK) {
+                chunks = chunks.parallel();
+            }
+            chunks.forEach(chunk -> substitute(x, m, chunk * SOLVE_CHUNK, Math.min(m, (chunk + 1) * SOLVE_CHUNK)));
+            return new Matrix(n, m, x);
+        }
+
+        // Columns [from, to) of x: L * y = x, then U * x = y, row operations over the column range
+        private void substitute(double[] x, int m, int from, int to) {
+            Evaluator.checkCancelled();
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < i; j++) {
+                    axpy(x, m, lu[i * n + j], j, i, from, to);
+                }
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                for (int j = i + 1; j < n; j++) {
+                    axpy(x, m, lu[i * n + j], j, i, from, to);
+                }
+                double diagonal = lu[i * n + i];
+                for (int c = from; c < to; c++) {
+                    x[i * m + c] /= diagonal;
+                }
+            }
+        }
+
+        // Row target -= factor * row source, over columns [from, to)
+        private static void axpy(double[] x, int m, double factor, int source, int target, int from, int to) {
+            if (factor == 0) {
+                return;
+            }
+            for (int c = from; c < to; c++) {
+                x[target * m + c] -= factor * x[source * m + c];
+            }
+        }
+    }
+}
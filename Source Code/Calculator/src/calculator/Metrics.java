@@ -0,0 +1,213 @@
+// Built-in instrumentation of the evaluator, enabled with -Dcalculator.metrics=true
+// Records a latency histogram per evaluation phase, counters of evaluations, errors, cache hits and
+// function calls, and emits a JFR EvaluationEvent per evaluation. Everything is published through
+// the calculator:type=Metrics MBean. When disabled, ENABLED is a constant false the JIT folds away,
+// so the evaluator runs exactly the uninstrumented code.
+// Headless dump of a running calculator: java -cp calculator.jar calculator.Metrics <pid>
+package calculator;
+
+import com.sun.tools.attach.VirtualMachine;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+public final class Metrics implements MetricsMXBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("calculator.metrics");
+    static final String OBJECT_NAME = "calculator:type=Metrics";
+
+    // Phases of an evaluation, TOTAL covers all of them
+    enum Phase {
+        NORMALIZE, COMPILE, EVALUATE, TOTAL;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private static final LongAdder evaluations = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final ConcurrentHashMap<String, LongAdder> functionCalls = new ConcurrentHashMap<>();
+
+    static final Metrics INSTANCE = new Metrics();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            } catch (Exception ex) {
+                System.err.println("Metrics MBean not registered: " + ex);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // ================== Recording ===================
+    static void countCall(String function, int times) {
+        functionCalls.computeIfAbsent(function, name -> new LongAdder()).add(times);
+    }
+
+    // Start measuring one evaluation, the phases are then marked in order
+    static Evaluation start(String expression) {
+        return new Evaluation(expression);
+    }
+
+    // Timing of one evaluation: every mark records the time since the previous one
+    static final class Evaluation {
+
+        private final EvaluationEvent event = new EvaluationEvent();
+        private final long start;
+        private long last;
+
+        private Evaluation(String expression) {
+            event.begin();
+            event.expression = expression;
+            start = last = System.nanoTime();
+        }
+
+        private long lap() {
+            long now = System.nanoTime();
+            long elapsed = now - last;
+            last = now;
+            return elapsed;
+        }
+
+        void normalized() {
+            event.normalizeTime = lap();
+            Phase.NORMALIZE.latency.record(event.normalizeTime);
+        }
+
+        // compiled is false when the compiled expression came from the cache
+        void compiled(boolean compiled) {
+            long elapsed = lap();
+            event.cacheHit = !compiled;
+            if (compiled) {
+                cacheMisses.increment();
+                event.compileTime = elapsed;
+                Phase.COMPILE.latency.record(elapsed);
+            } else {
+                cacheHits.increment();
+            }
+        }
+
+        void evaluated() {
+            event.evaluateTime = lap();
+            Phase.EVALUATE.latency.record(event.evaluateTime);
+        }
+
+        void failed(Throwable error) {
+            errors.increment();
+            event.error = error.getClass().getSimpleName() + ": " + error.getMessage();
+        }
+
+        void end() {
+            evaluations.increment();
+            Phase.TOTAL.latency.record(System.nanoTime() - start);
+            event.commit(); // Only written when a recording enables calculator.Evaluation
+        }
+    }
+
+    // ================== MBean ===================
+    @Override
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFunctionCalls() {
+        Map<String, Long> calls = new TreeMap<>();
+        functionCalls.forEach((name, count) -> calls.put(name, count.sum()));
+        return calls;
+    }
+
+    @Override
+    public double getMeanMicros(String phase) {
+        return phase(phase).latency.mean() / 1000;
+    }
+
+    @Override
+    public double getPercentileMicros(String phase, double percentage) {
+        return phase(phase).latency.percentile(percentage) / 1000.0;
+    }
+
+    private static Phase phase(String name) {
+        return Phase.valueOf(name.toUpperCase());
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("evaluations %d, errors %d, cache hits %d, cache misses %d%n",
+                getEvaluations(), getErrors(), getCacheHits(), getCacheMisses()));
+        sb.append(String.format("%-10s %10s %10s %10s %10s %10s %10s %10s%n",
+                "phase (us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = phase.latency;
+            sb.append(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    phase.name().toLowerCase(), h.count(), h.mean() / 1000,
+                    h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                    h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+        }
+        sb.append("function calls");
+        getFunctionCalls().forEach((name, count) -> sb.append(' ').append(name).append('=').append(count));
+        return sb.append(System.lineSeparator()).toString();
+    }
+
+    @Override
+    public void reset() {
+        evaluations.reset();
+        errors.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        functionCalls.clear();
+        for (Phase phase : Phase.values()) {
+            phase.latency.reset();
+        }
+    }
+
+    // ================== Headless dump ===================
+    // Attach to a running calculator (started with -Dcalculator.metrics=true) and print its metrics
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp calculator.jar calculator.Metrics <pid>");
+            System.exit(2);
+        }
+        VirtualMachine vm = VirtualMachine.attach(args[0]);
+        try (JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(vm.startLocalManagementAgent()))) {
+            MBeanServerConnection connection = connector.getMBeanServerConnection();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!connection.isRegistered(name)) {
+                System.err.println("Metrics are not enabled in process " + args[0] + " (-Dcalculator.metrics=true)");
+                System.exit(1);
+            }
+            System.out.print(JMX.newMXBeanProxy(connection, name, MetricsMXBean.class).dump());
+        } finally {
+            vm.detach();
+        }
+    }
+}
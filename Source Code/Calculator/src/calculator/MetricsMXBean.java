@@ -0,0 +1,28 @@
+// JMX view of the evaluation metrics, registered as calculator:type=Metrics
+// Latencies are in microseconds, phases are the ones of Metrics.Phase (normalize, compile, evaluate, total)
+package calculator;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+    long getEvaluations();
+
+    long getErrors();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    // Number of calls of every function, e.g. sin -> 12
+    Map<String, Long> getFunctionCalls();
+
+    double getMeanMicros(String phase);
+
+    double getPercentileMicros(String phase, double percentage);
+
+    // All metrics as a text report
+    String dump();
+
+    void reset();
+}
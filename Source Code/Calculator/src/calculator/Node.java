@@ -0,0 +1,584 @@
+// Expression tree (AST) nodes produced by the Evaluator's parser
+// Every node is immutable (a folded Constant only remembers its value once computed) and evaluates
+// itself recursively, function calls check for cancellation (and are counted when metrics are enabled).
+// Variables are resolved to slots while parsing, their values are passed in the vars array
+package calculator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.MathContext;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoublePredicate;
+import java.util.function.Predicate;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+interface Node {
+
+    int BLOCK_SIZE = 1024; // Values processed per evalBlock call
+    double[] NO_VARS = new double[0];
+    // Scratch of the row by row evaluation on each thread, holds the frames of the Lets
+    ThreadLocal<Scratch> ROW_SCRATCH = ThreadLocal.withInitial(() -> new Scratch(0));
+
+    double eval(double[] vars);
+
+    // Evaluate an expression without variables
+    default double eval() {
+        return eval(NO_VARS);
+    }
+
+    // Evaluate in precision mode, the result is a Long, BigInteger, BigDecimal or Fraction (see Precise)
+    // Nodes without an exact form fall back to double precision
+    default Number evalPrecise(MathContext mc) {
+        return Precise.fromDouble(eval());
+    }
+
+    // Evaluate this node for a block of rows: out[i] = value at row offset + i, for i < length
+    // columns[v] holds the values of variable slot v. Nodes override this with tight loops over
+    // the whole block, the default falls back to evaluating row by row
+    default void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+        double[] vars = scratch.vars;
+        double[][] temps = scratch.temps;
+        for (int i = 0; i < length; i++) {
+            for (int v = 0; v < columns.length; v++) {
+                vars[v] = columns[v][offset + i];
+            }
+            // Shared subexpressions computed so far (see Let), their slots follow the variables
+            for (int t = 0; temps != null && t < temps.length && temps[t] != null; t++) {
+                vars[columns.length + t] = temps[t][i];
+            }
+            out[i] = eval(vars);
+        }
+    }
+
+    // Entry of a function call node: counts the call when metrics are enabled and checks for cancellation
+    // (also called by the code generated by BytecodeCompiler)
+    static void enterCall(String name, int times) {
+        if (Metrics.ENABLED) {
+            Metrics.countCall(name, times);
+        }
+        Evaluator.checkCancelled();
+    }
+
+    // Pool of temporary blocks for evalBlock, reused from block to block so evaluation over
+    // large arrays allocates nothing once it is warmed up (one instance per thread).
+    // Also keeps the frames and block tables of the Lets, one per nesting level (a Let inside
+    // the body of a calculus call), grown once and reused by every evaluation
+    final class Scratch {
+
+        double[] vars; // Values of one row: variables, then shared subexpressions
+        double[][] temps; // Blocks of the shared subexpressions of the current Let, null if none
+        private final List<double[]> blocks = new ArrayList<>();
+        private int used;
+        private final List<double[]> frames = new ArrayList<>();
+        private int frameDepth;
+        private final List<double[][]> tables = new ArrayList<>();
+        private int tableDepth;
+
+        Scratch(int variableCount) {
+            vars = new double[variableCount];
+        }
+
+        double[] take() {
+            if (used == blocks.size()) {
+                blocks.add(new double[BLOCK_SIZE]);
+            }
+            return blocks.get(used++);
+        }
+
+        void release() {
+            used--;
+        }
+
+        // Row frame of a Let evaluated row by row, of at least length values, until leaveFrame
+        double[] enterFrame(int length) {
+            if (frameDepth == frames.size()) {
+                frames.add(new double[length]);
+            } else if (frames.get(frameDepth).length < length) {
+                frames.set(frameDepth, new double[length]);
+            }
+            return frames.get(frameDepth++);
+        }
+
+        void leaveFrame() {
+            frameDepth--;
+        }
+
+        // Table of the temp blocks of a Let evaluated by blocks, of at least count entries, until leaveTable
+        double[][] enterTable(int count) {
+            if (tableDepth == tables.size()) {
+                tables.add(new double[count][]);
+            } else if (tables.get(tableDepth).length < count) {
+                tables.set(tableDepth, new double[count][]);
+            }
+            return tables.get(tableDepth++);
+        }
+
+        void leaveTable() {
+            tableDepth--;
+        }
+    }
+
+    // Numeric literal, text keeps the digits as typed for precision mode when the double value may
+    // differ from them (more than 15 significant digits, or beyond the normal double range), null when
+    // the double stands for the literal
+    record Num(double value, String text) implements Node {
+        Num(double value) {
+            this(value, null);
+        }
+
+        public double eval(double[] vars) {
+            return value;
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return text != null ? Precise.literal(text, mc) : Precise.literal(value, mc);
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            Arrays.fill(out, 0, length, value);
+        }
+    }
+
+    // Variable reference, slot is the index of the variable's value
+    record Var(String name, int slot) implements Node {
+        public double eval(double[] vars) {
+            return vars[slot];
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            System.arraycopy(columns[slot], offset, out, 0, length);
+        }
+    }
+
+    // Constant subtree folded by the Optimizer, source is still evaluated in precision mode.
+    // The double value is computed by the first evaluation that needs it, not while compiling: the
+    // precision and complex modes never pay for it, and a heavy call such as primepi(1e11) runs once.
+    // A failing source is not remembered, it fails (and is reported) at every evaluation
+    static final class Constant implements Node {
+
+        private final Node source;
+        private double value;
+        private volatile boolean known; // value is set, published by this write
+
+        Constant(Node source) {
+            this.source = source;
+        }
+
+        Constant(double value, Node source) {
+            this.source = source;
+            this.value = value;
+            this.known = true;
+        }
+
+        Node source() {
+            return source;
+        }
+
+        double value() {
+            if (!known) {
+                value = source.eval(NO_VARS); // Benign race: every thread computes the same value
+                known = true;
+            }
+            return value;
+        }
+
+        public double eval(double[] vars) {
+            return value();
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return source.evalPrecise(mc);
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            Arrays.fill(out, 0, length, value());
+        }
+    }
+
+    // The imaginary unit i, only has a value in the complex mode (see Complex)
+    record ImaginaryUnit() implements Node {
+        public double eval(double[] vars) {
+            throw new ArithmeticException("i is only defined in the complex mode");
+        }
+    }
+
+    // Root compiled to bytecode by the BytecodeCompiler once the expression got hot,
+    // precision mode and block evaluation keep using the tree
+    record Compiled(Node source, BytecodeCompiler.Formula code) implements Node {
+        public double eval(double[] vars) {
+            return code.eval(vars);
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return source.evalPrecise(mc);
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            source.evalBlock(columns, offset, length, out, scratch);
+        }
+    }
+
+    // Use of a shared subexpression computed once per evaluation by the enclosing Let,
+    // slot is its place in the row values (after the variables), index its number in the Let
+    record Temp(int slot, int index, Node value) implements Node {
+        public double eval(double[] vars) {
+            return vars[slot];
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return value.evalPrecise(mc);
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            System.arraycopy(scratch.temps[index], 0, out, 0, length);
+        }
+    }
+
+    // Root of an expression with shared subexpressions: temps are computed first, in order (a temp may
+    // use the previous ones), into the slots following the variables, then the body uses them
+    record Let(int firstSlot, List<Node> temps, Node body) implements Node {
+        public double eval(double[] vars) {
+            Scratch scratch = ROW_SCRATCH.get();
+            double[] frame = scratch.enterFrame(firstSlot + temps.size());
+            try {
+                System.arraycopy(vars, 0, frame, 0, Math.min(vars.length, firstSlot));
+                for (int t = 0; t < temps.size(); t++) {
+                    frame[firstSlot + t] = temps.get(t).eval(frame);
+                }
+                return body.eval(frame);
+            } finally {
+                scratch.leaveFrame();
+            }
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return body.evalPrecise(mc);
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            if (scratch.vars.length < firstSlot + temps.size()) {
+                scratch.vars = Arrays.copyOf(scratch.vars, firstSlot + temps.size());
+            }
+            double[][] saved = scratch.temps;
+            double[][] table = scratch.enterTable(temps.size());
+            Arrays.fill(table, null); // The row fallback stops at the first temp not computed yet
+            scratch.temps = table;
+            for (int t = 0; t < temps.size(); t++) {
+                double[] block = scratch.take();
+                temps.get(t).evalBlock(columns, offset, length, block, scratch);
+                table[t] = block;
+            }
+            body.evalBlock(columns, offset, length, out, scratch);
+            for (int t = 0; t < temps.size(); t++) {
+                scratch.release();
+            }
+            scratch.leaveTable();
+            scratch.temps = saved;
+        }
+    }
+
+    // Unary minus
+    record Negate(Node operand) implements Node {
+        public double eval(double[] vars) {
+            return -operand.eval(vars);
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return Precise.negate(operand.evalPrecise(mc));
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            operand.evalBlock(columns, offset, length, out, scratch);
+            for (int i = 0; i < length; i++) {
+                out[i] = -out[i];
+            }
+        }
+    }
+
+    // Binary operators '+', '-', '*', '/' and '^'
+    record BinaryOp(char op, Node left, Node right) implements Node {
+        public double eval(double[] vars) {
+            double a = left.eval(vars);
+            double b = right.eval(vars);
+            return switch (op) {
+                case '+' -> a + b;
+                case '-' -> a - b;
+                case '*' -> a * b;
+                case '/' -> a / b;
+                default -> Math.pow(a, b);
+            };
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            return Precise.binary(op, left.evalPrecise(mc), right.evalPrecise(mc), mc);
+        }
+
+        // One simple loop per operator, which the JIT compiles to SIMD instructions
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            left.evalBlock(columns, offset, length, out, scratch);
+            double[] b = scratch.take();
+            right.evalBlock(columns, offset, length, b, scratch);
+            switch (op) {
+                case '+' -> {
+                    for (int i = 0; i < length; i++) {
+                        out[i] += b[i];
+                    }
+                }
+                case '-' -> {
+                    for (int i = 0; i < length; i++) {
+                        out[i] -= b[i];
+                    }
+                }
+                case '*' -> {
+                    for (int i = 0; i < length; i++) {
+                        out[i] *= b[i];
+                    }
+                }
+                case '/' -> {
+                    for (int i = 0; i < length; i++) {
+                        out[i] /= b[i];
+                    }
+                }
+                default -> {
+                    for (int i = 0; i < length; i++) {
+                        out[i] = Math.pow(out[i], b[i]);
+                    }
+                }
+            }
+            scratch.release();
+        }
+    }
+
+    // Single-argument functions such as sin, cos, sqrt..
+    // exact is the precision mode version, null when the function only has a double form
+    record UnaryCall(String name, DoubleUnaryOperator op, Precise.Function exact, Node arg, boolean roundSmall) implements Node {
+        public double eval(double[] vars) {
+            enterCall(name, 1);
+            return apply(arg.eval(vars));
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            enterCall(name, 1);
+            Number x = arg.evalPrecise(mc);
+            if (exact != null) {
+                return exact.apply(new Number[]{x}, mc);
+            }
+            return Precise.fromDouble(apply(x.doubleValue()));
+        }
+
+        public void evalBlock(double[][] columns, int offset, int length, double[] out, Scratch scratch) {
+            enterCall(name, length);
+            arg.evalBlock(columns, offset, length, out, scratch);
+            for (int i = 0; i < length; i++) {
+                out[i] = apply(out[i]);
+            }
+        }
+
+        private double apply(double x) {
+            double res = op.applyAsDouble(x);// Apply the mathematical function
+
+            // Round very small results to zero
+            if (roundSmall && Math.abs(res) < 1e-10) {
+                res = 0;
+            }
+            return res;
+        }
+    }
+
+    // Multi-argument functions (comma-separated) such as avg, min, max
+    record MultiCall(String name, ToDoubleFunction<double[]> op, Precise.Function exact, List<Node> args) implements Node {
+        public double eval(double[] vars) {
+            enterCall(name, 1);
+            double[] values = new double[args.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = args.get(i).eval(vars);
+            }
+            return op.applyAsDouble(values);
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            enterCall(name, 1);
+            Number[] values = new Number[args.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = args.get(i).evalPrecise(mc);
+            }
+            if (exact != null) {
+                return exact.apply(values, mc);
+            }
+            double[] doubles = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                doubles[i] = values[i].doubleValue();
+            }
+            return Precise.fromDouble(op.applyAsDouble(doubles));
+        }
+    }
+
+    // Quoted data file argument of the statistics functions, e.g. avg("data.txt")
+    record FileArg(String path) implements Node {
+        public double eval(double[] vars) {
+            throw new RuntimeException("A data file can only be used in a statistics function");
+        }
+    }
+
+    // Statistics functions, every argument (number, expression or data file) is streamed into one
+    // accumulator. quantile is the tracked quantile (NaN if none); with percentileArg the first
+    // argument gives it as a percentage instead. exact is the precision mode version, if any
+    record StatCall(String name, ToDoubleFunction<Statistics> result, Precise.Function exact,
+            double quantile, boolean percentileArg, List<Node> args) implements Node {
+        public double eval(double[] vars) {
+            enterCall(name, 1);
+            int first = percentileArg ? 1 : 0;
+            if (args.size() < first) {
+                throw new RuntimeException(name + " needs the percentage as first argument");
+            }
+            Statistics stats = new Statistics(percentileArg ? args.get(0).eval(vars) / 100 : quantile);
+            for (int i = first; i < args.size(); i++) {
+                if (args.get(i) instanceof FileArg file) {
+                    try {
+                        stats.addFile(Path.of(file.path()));
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                } else {
+                    stats.add(args.get(i).eval(vars));
+                }
+            }
+            return result.applyAsDouble(stats);
+        }
+
+        // Result for argument values already computed (no data file), used by the BytecodeCompiler
+        double apply(double[] values) {
+            int first = percentileArg ? 1 : 0;
+            if (values.length < first) {
+                throw new RuntimeException(name + " needs the percentage as first argument");
+            }
+            Statistics stats = new Statistics(percentileArg ? values[0] / 100 : quantile);
+            for (int i = first; i < values.length; i++) {
+                stats.add(values[i]);
+            }
+            return result.applyAsDouble(stats);
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            if (exact == null || args.stream().anyMatch(arg -> arg instanceof FileArg)) {
+                return Precise.fromDouble(eval());
+            }
+            enterCall(name, 1);
+            Number[] values = new Number[args.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = args.get(i).evalPrecise(mc);
+            }
+            return exact.apply(values, mc);
+        }
+    }
+
+    // ================== Calculus ===================
+    // integrate(f, a, b), deriv(f, at) and root(f, lo, hi) over a function of x (see Calculus)
+    // body is f, where x is variable slot `slot` (after the variables of the enclosing expression), the
+    // Optimizer optimizes it on its own and compiles it when it is evaluated many times per call.
+    // args are the bounds or the point, evaluated with the enclosing variables
+    record CalculusCall(String name, Node body, int slot, List<Node> args) implements Node {
+        public double eval(double[] vars) {
+            double a = args.get(0).eval(vars);
+            double b = args.size() > 1 ? args.get(1).eval(vars) : Double.NaN;
+            enterCall(name, 1);
+            return switch (name) {
+                case "integrate" -> Calculus.integrate(body, vars, slot, a, b);
+                case "deriv" -> Calculus.derivative(body, vars, slot, a);
+                default -> Calculus.root(body, vars, slot, a, b);
+            };
+        }
+    }
+
+    // ================== Matrices ===================
+    // Node whose value is a Matrix, typed while parsing: matrices only turn into a number through the
+    // functions returning one (det), so eval fails. They are not shared by the Optimizer
+    interface MatrixNode extends Node {
+
+        Matrix evalMatrix(double[] vars);
+
+        default double eval(double[] vars) {
+            throw new RuntimeException("A matrix can't be used as a number");
+        }
+    }
+
+    // Matrix literal [[1,2],[3,4]], entries in row-major order
+    record MatrixLiteral(int rows, int cols, List<Node> entries) implements MatrixNode {
+        public Matrix evalMatrix(double[] vars) {
+            double[] data = new double[entries.size()];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = entries.get(i).eval(vars);
+            }
+            return new Matrix(rows, cols, data);
+        }
+    }
+
+    // Value of a user matrix variable
+    record MatrixValue(Matrix value) implements MatrixNode {
+        public Matrix evalMatrix(double[] vars) {
+            return value;
+        }
+    }
+
+    // Arithmetic with at least one matrix operand: matrix + - * matrix, number * matrix, matrix * / number
+    record MatrixOp(char op, Node left, Node right) implements MatrixNode {
+        public Matrix evalMatrix(double[] vars) {
+            if (!(left instanceof MatrixNode a)) {
+                return ((MatrixNode) right).evalMatrix(vars).scale(left.eval(vars));
+            }
+            Matrix x = a.evalMatrix(vars);
+            if (!(right instanceof MatrixNode b)) {
+                double factor = right.eval(vars);
+                return x.scale(op == '/' ? 1 / factor : factor);
+            }
+            Matrix y = b.evalMatrix(vars);
+            return switch (op) {
+                case '+' -> x.plus(y);
+                case '-' -> x.minus(y);
+                default -> x.times(y);
+            };
+        }
+    }
+
+    // Functions of matrices returning a matrix: inv, transpose, solve
+    record MatrixCall(String name, Function<Matrix[], Matrix> op, List<Node> args) implements MatrixNode {
+        public Matrix evalMatrix(double[] vars) {
+            Matrix[] values = new Matrix[args.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = ((MatrixNode) args.get(i)).evalMatrix(vars);
+            }
+            enterCall(name, 1);
+            return op.apply(values);
+        }
+    }
+
+    // Functions of a matrix returning a number: det
+    record MatrixScalarCall(String name, ToDoubleFunction<Matrix> op, Node arg) implements Node {
+        public double eval(double[] vars) {
+            Matrix value = ((MatrixNode) arg).evalMatrix(vars);
+            enterCall(name, 1);
+            return op.applyAsDouble(value);
+        }
+    }
+
+    // Boolean-returning functions like prime, palindrome, armstrong (1 = true, 0 = false)
+    // exactTest is the precision mode version, null when the double test is used for both
+    record BooleanCall(String name, DoublePredicate test, Predicate<Number> exactTest, Node arg) implements Node {
+        public double eval(double[] vars) {
+            enterCall(name, 1);
+            return test.test(arg.eval(vars)) ? 1 : 0;
+        }
+
+        public Number evalPrecise(MathContext mc) {
+            enterCall(name, 1);
+            Number x = arg.evalPrecise(mc);
+            boolean result = exactTest != null ? exactTest.test(x) : test.test(x.doubleValue());
+            return result ? 1L : 0L;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+// Optimization pass between parsing and evaluation
+// 1. Identities are simplified: x*1, 1*x, x/1, x^1, x+0, 0+x, x-0
+// 2. Constant subtrees are folded into their double value, computed once by the first evaluation in
+//    double (precision mode still evaluates the original subtree, see Node.Constant). Subtrees that
+//    fail are not remembered, so the error (or warning) happens at every evaluation
+// 3. Structurally identical subtrees are hash-consed into a single node, and the ones used more
+//    than once are computed once per evaluation into a temporary slot (the root becomes a Let)
+// Every function is pure (prime, palindrome.. included) and can be folded and shared; only
+// statistics over data files are never folded, the file is read again at every evaluation.
+// The function of x of integrate, deriv and solve is optimized on its own, with its own temporaries
+package calculator;
+
+import calculator.Node.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.UnaryOperator;
+
+final class Optimizer {
+
+    // Canonical node of every distinct subtree, keyed on its kind, attributes and canonical children
+    private final Map<List<Object>, Node> canonical = new HashMap<>();
+    private final Map<Node, Integer> ids = new IdentityHashMap<>();
+
+    private Optimizer() {
+    }
+
+    // Optimize a parsed tree, variableCount is the number of variable slots of the expression
+    // A matrix-valued root keeps its type: it is simplified and folded, but nothing is shared
+    static Node optimize(Node root, int variableCount) {
+        Optimizer optimizer = new Optimizer();
+        Node interned = optimizer.intern(root);
+        return interned instanceof MatrixNode ? interned : optimizer.shareCommon(interned, variableCount);
+    }
+
+    // ================== Simplification, folding and hash-consing ===================
+    private Node intern(Node node) {
+        Node x = withChildren(node, this::intern);
+        if (x instanceof BinaryOp b) {
+            x = simplify(b);
+        }
+        if (x instanceof CalculusCall c) {
+            x = new CalculusCall(c.name(), optimizeBody(c), c.slot(), c.args());
+        }
+        x = fold(x);
+        Node existing = canonical.putIfAbsent(key(x), x);
+        if (existing != null) {
+            return existing;
+        }
+        ids.put(x, ids.size());
+        return x;
+    }
+
+    // Structural key of a node whose children are already canonical
+    private List<Object> key(Node node) {
+        return switch (node) {
+            case Num n -> List.of("num", Double.doubleToLongBits(n.value()), String.valueOf(n.text()));
+            case Var v -> List.of("var", v.slot());
+            case FileArg f -> List.of("file", f.path());
+            case Constant c -> List.of("const", key(c.source())); // The source itself is not interned (see id)
+            case Negate n -> List.of("neg", id(n.operand()));
+            case BinaryOp b -> List.of("op", b.op(), id(b.left()), id(b.right()));
+            case UnaryCall c -> List.of("unary", c.name(), id(c.arg()));
+            case MultiCall c -> List.of("multi", c.name(), ids(c.args()));
+            case StatCall c -> List.of("stat", c.name(), ids(c.args()));
+            case BooleanCall c -> List.of("bool", c.name(), id(c.arg()));
+            default -> List.of(node); // Not produced by the parser, never shared
+        };
+    }
+
+    // Canonical nodes have their own id; any other node (the source of a user variable) gets a new one,
+    // so it is only equal to itself
+    private int id(Node node) {
+        return ids.computeIfAbsent(node, n -> ids.size());
+    }
+
+    private List<Integer> ids(List<Node> nodes) {
+        List<Integer> result = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            result.add(id(node));
+        }
+        return result;
+    }
+
+    private static Node simplify(BinaryOp b) {
+        Node left = b.left(), right = b.right();
+        switch (b.op()) {
+            case '*' -> {
+                if (isExactly(right, 1)) {
+                    return left;
+                }
+                if (isExactly(left, 1)) {
+                    return right;
+                }
+            }
+            case '/', '^' -> {
+                if (isExactly(right, 1)) {
+                    return left;
+                }
+            }
+            case '+' -> {
+                if (isExactly(right, 0)) {
+                    return left;
+                }
+                if (isExactly(left, 0)) {
+                    return right;
+                }
+            }
+            default -> {
+                if (isExactly(right, 0)) {
+                    return left;
+                }
+            }
+        }
+        return b;
+    }
+
+    // Literal whose exact value is the given number (in precision mode too)
+    private static boolean isExactly(Node node, double value) {
+        return node instanceof Num n && n.text() == null && n.value() == value;
+    }
+
+    // Replace a node whose children are all constants by its value
+    private static Node fold(Node node) {
+        boolean constant = switch (node) {
+            case Negate n -> isConstant(n.operand());
+            case BinaryOp b -> isConstant(b.left()) && isConstant(b.right());
+            case UnaryCall c -> isConstant(c.arg());
+            case MultiCall c -> c.args().stream().allMatch(Optimizer::isConstant);
+            case StatCall c -> c.args().stream().allMatch(Optimizer::isConstant);
+            case BooleanCall c -> isConstant(c.arg());
+            case CalculusCall c -> c.args().stream().allMatch(Optimizer::isConstant)
+                    && !usesVariable(c.body(), slot -> slot < c.slot()); // f only depends on x
+            default -> false;
+        };
+        return constant ? new Constant(node) : node;
+    }
+
+    private static boolean isConstant(Node node) {
+        return node instanceof Num || node instanceof Constant;
+    }
+
+    // The function of a calculus call is optimized on its own (its temporaries follow x). integrate and
+    // solve evaluate it thousands of times per call, so it is compiled to bytecode right away (unless
+    // compiling is disabled, see CompiledExpression.COMPILE_THRESHOLD)
+    private static Node optimizeBody(CalculusCall c) {
+        if (c.body() instanceof Compiled) {
+            return c.body(); // Already optimized
+        }
+        Node body = optimize(c.body(), c.slot() + 1);
+        if (c.name().equals("deriv") || isConstant(body) || CompiledExpression.COMPILE_THRESHOLD == 0) {
+            return body; // deriv walks the tree (see Calculus)
+        }
+        try {
+            return new Compiled(body, BytecodeCompiler.compile(body));
+        } catch (RuntimeException | LinkageError ex) {
+            return body; // Too large, or rejected by the JVM: interpreted
+        }
+    }
+
+    // ================== Common subexpressions ===================
+    // Count the uses of every canonical node, then move the shared ones into temporaries
+    private Node shareCommon(Node root, int variableCount) {
+        Map<Node, Integer> uses = new IdentityHashMap<>();
+        countUses(root, uses);
+        List<Node> temps = new ArrayList<>();
+        Node body = replaceShared(root, uses, new IdentityHashMap<>(), temps, variableCount);
+        return temps.isEmpty() ? root : new Let(variableCount, List.copyOf(temps), body);
+    }
+
+    private static void countUses(Node node, Map<Node, Integer> uses) {
+        for (Node child : children(node)) {
+            if (uses.merge(child, 1, Integer::sum) == 1) {
+                countUses(child, uses);
+            }
+        }
+    }
+
+    // Rebuild the tree with every shared subtree replaced by a Temp, children before parents so
+    // that a temporary only uses the ones defined before it
+    private static Node replaceShared(Node node, Map<Node, Integer> uses, Map<Node, Node> done, List<Node> temps, int firstSlot) {
+        Node previous = done.get(node);
+        if (previous != null) {
+            return previous;
+        }
+        Node x = withChildren(node, child -> replaceShared(child, uses, done, temps, firstSlot));
+        if (uses.getOrDefault(node, 0) > 1 && children(node).length > 0 && !(node instanceof MatrixNode)) { // Temporaries hold numbers
+            temps.add(x);
+            x = new Temp(firstSlot + temps.size() - 1, temps.size() - 1, x);
+        }
+        done.put(node, x);
+        return x;
+    }
+
+    // ================== Tree rewriting ===================
+    // Expand a call of a user function: its body with every parameter (variable slot i) replaced by
+    // argument i. Arguments used several times are shared again by the optimizer. The x of a calculus
+    // call in the body (a slot after the parameters) moves to its slot in the caller, which has slots
+    static Node inline(Node body, List<Node> args, int slots) {
+        return switch (body) {
+            case Var v when v.slot() < args.size() -> args.get(v.slot());
+            case Var v -> new Var(v.name(), v.slot() - args.size() + slots);
+            case CalculusCall c -> new CalculusCall(c.name(), inline(c.body(), args, slots), c.slot() - args.size() + slots,
+                    transformAll(c.args(), arg -> inline(arg, args, slots)));
+            default -> withChildren(body, child -> inline(child, args, slots));
+        };
+    }
+
+    // Whether a variable whose slot passes the test is used, in calculus functions and temporaries too
+    static boolean usesVariable(Node node, IntPredicate slots) {
+        return switch (node) {
+            case Var v -> slots.test(v.slot());
+            case Temp t -> slots.test(t.slot());
+            case Compiled c -> usesVariable(c.source(), slots);
+            case Let let -> let.temps().stream().anyMatch(temp -> usesVariable(temp, slots)) || usesVariable(let.body(), slots);
+            case CalculusCall c -> usesVariable(c.body(), slots) || c.args().stream().anyMatch(arg -> usesVariable(arg, slots));
+            default -> Arrays.stream(children(node)).anyMatch(child -> usesVariable(child, slots));
+        };
+    }
+
+    // The same node with every child transformed, leaves (and folded constants) are returned as they are
+    // The function of a calculus call is not a child, it is optimized separately (see optimizeBody)
+    static Node withChildren(Node node, UnaryOperator<Node> transform) {
+        return switch (node) {
+            case Negate n -> new Negate(transform.apply(n.operand()));
+            case BinaryOp b -> new BinaryOp(b.op(), transform.apply(b.left()), transform.apply(b.right()));
+            case UnaryCall c -> new UnaryCall(c.name(), c.op(), c.exact(), transform.apply(c.arg()), c.roundSmall());
+            case MultiCall c -> new MultiCall(c.name(), c.op(), c.exact(), transformAll(c.args(), transform));
+            case StatCall c -> new StatCall(c.name(), c.result(), c.exact(), c.quantile(), c.percentileArg(), transformAll(c.args(), transform));
+            case BooleanCall c -> new BooleanCall(c.name(), c.test(), c.exactTest(), transform.apply(c.arg()));
+            case MatrixLiteral m -> new MatrixLiteral(m.rows(), m.cols(), transformAll(m.entries(), transform));
+            case MatrixOp m -> new MatrixOp(m.op(), transform.apply(m.left()), transform.apply(m.right()));
+            case MatrixCall c -> new MatrixCall(c.name(), c.op(), transformAll(c.args(), transform));
+            case MatrixScalarCall c -> new MatrixScalarCall(c.name(), c.op(), transform.apply(c.arg()));
+            case CalculusCall c -> new CalculusCall(c.name(), c.body(), c.slot(), transformAll(c.args(), transform));
+            default -> node;
+        };
+    }
+
+    private static List<Node> transformAll(List<Node> nodes, UnaryOperator<Node> transform) {
+        List<Node> result = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            result.add(transform.apply(node));
+        }
+        return result;
+    }
+
+    // Children of a node, none for leaves and folded constants
+    static Node[] children(Node node) {
+        return switch (node) {
+            case Negate n -> new Node[]{n.operand()};
+            case BinaryOp b -> new Node[]{b.left(), b.right()};
+            case UnaryCall c -> new Node[]{c.arg()};
+            case MultiCall c -> c.args().toArray(Node[]::new);
+            case StatCall c -> c.args().toArray(Node[]::new);
+            case BooleanCall c -> new Node[]{c.arg()};
+            case MatrixLiteral m -> m.entries().toArray(Node[]::new);
+            case MatrixOp m -> new Node[]{m.left(), m.right()};
+            case MatrixCall c -> c.args().toArray(Node[]::new);
+            case MatrixScalarCall c -> new Node[]{c.arg()};
+            case CalculusCall c -> c.args().toArray(Node[]::new); // Not the function, it has its own variable
+            default -> new Node[0];
+        };
+    }
+}
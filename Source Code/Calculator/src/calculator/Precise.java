@@ -0,0 +1,462 @@
+// Arbitrary-precision arithmetic for the precision mode of the evaluator
+// Values stay Long while every operand is an integer and the result fits (the fast path),
+// become BigInteger only when a long operation would overflow, and BigDecimal rounded to the
+// chosen MathContext as soon as a fraction is involved.
+// With the EXACT context (the fractions mode) literals and + - * / and integer powers give exact
+// Fractions instead; BigDecimal then only comes from functions without an exact form (sqrt(2), sin),
+// it is rounded to 16 digits and makes the rest of the computation approximate as well
+package calculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+final class Precise {
+
+    private static final long MAX_POWER_BITS = 1L << 24; // Refuse integer powers with more result bits
+    private static final int PARALLEL_FORMAT_BITS = 1 << 16; // Integers formatted by parallel divide and conquer
+    private static final int LEAF_DIGITS = 18; // Digits converted from one long
+    private static final double LOG10_2 = 0.30102999566398120;
+
+    // Fractions mode: no rounding at all (see Fraction)
+    static final MathContext EXACT = MathContext.UNLIMITED;
+
+    // Exact counterpart of a calculator function
+    @FunctionalInterface
+    interface Function {
+        Number apply(Number[] args, MathContext mc);
+    }
+
+    private Precise() {
+    }
+
+    // ================== Conversions ===================
+    // Exact value of a numeric literal as typed, integers (also 1e3) stay integers
+    static Number literal(String text, MathContext mc) {
+        return exactIn(mc, literal(text));
+    }
+
+    static Number literal(double value, MathContext mc) {
+        if (mc == EXACT && value != Math.rint(value)) {
+            Number x = decimalFraction(value);
+            if (x != null) {
+                return x;
+            }
+        }
+        return exactIn(mc, literal(value));
+    }
+
+    // The literal m / 10^k with the fewest decimals whose double is value, found without its decimal
+    // string (the fractions mode evaluates every literal at every evaluation). Two decimals of at most
+    // 15 significant digits never round to the same double, so this is the literal as typed; null when
+    // no such decimal exists
+    private static Number decimalFraction(double value) {
+        double scale = 1;
+        for (int k = 0; k <= 15; k++, scale *= 10) {
+            double m = Math.rint(value * scale);
+            if (Math.abs(m) >= 0x1p53) {
+                return null;
+            }
+            if (m / scale == value) {
+                return Fraction.of((long) m, (long) scale);
+            }
+        }
+        return null;
+    }
+
+    // A decimal literal is the fraction it stands for in the fractions mode
+    private static Number exactIn(MathContext mc, Number x) {
+        return mc == EXACT && x instanceof BigDecimal d ? Fraction.valueOf(d) : x;
+    }
+
+    private static Number literal(String text) {
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            return text.length() < 19 ? (Number) Long.parseLong(text) : normalize(new BigInteger(text));
+        }
+        return integerIfWhole(new BigDecimal(text));
+    }
+
+    // Value of a literal with at most 15 significant digits, which its double represents exactly
+    // (the shortest decimal of the double is the literal)
+    private static Number literal(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 0x1p53) {
+            return (long) value;
+        }
+        return integerIfWhole(BigDecimal.valueOf(value));
+    }
+
+    private static Number integerIfWhole(BigDecimal x) {
+        return x.stripTrailingZeros().scale() <= 0 ? normalize(x.toBigIntegerExact()) : x;
+    }
+
+    // Result of a function without an exact form, whole values below 2^53 stay on the long fast path
+    static Number fromDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new ArithmeticException("Not a finite number: " + value);
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 0x1p53) {
+            return (long) value;
+        }
+        return BigDecimal.valueOf(value);
+    }
+
+    static boolean isInteger(Number x) {
+        return x instanceof Long || x instanceof BigInteger;
+    }
+
+    // Integer or Fraction: no rounding happened
+    static boolean isExact(Number x) {
+        return isInteger(x) || x instanceof Fraction;
+    }
+
+    // Exact operands of which at least one is a Fraction
+    private static boolean isFraction(Number a, Number b) {
+        return (a instanceof Fraction || b instanceof Fraction) && isExact(a) && isExact(b);
+    }
+
+    // Context of the BigDecimal operations, the approximate part of the fractions mode uses 16 digits
+    private static MathContext decimal(MathContext mc) {
+        return mc.getPrecision() == 0 ? MathContext.DECIMAL64 : mc;
+    }
+
+    static BigInteger toBigInteger(Number x) {
+        if (x instanceof Long l) {
+            return BigInteger.valueOf(l);
+        }
+        if (x instanceof BigInteger b) {
+            return b;
+        }
+        if (x instanceof Fraction) {
+            throw new ArithmeticException("Not an integer: " + x); // Fractions are never whole
+        }
+        return ((BigDecimal) x).toBigIntegerExact(); // Throws for fractions
+    }
+
+    static BigDecimal toBigDecimal(Number x) {
+        if (x instanceof Long l) {
+            return BigDecimal.valueOf(l);
+        }
+        if (x instanceof BigInteger b) {
+            return new BigDecimal(b);
+        }
+        if (x instanceof Fraction f) {
+            return f.toBigDecimal(MathContext.DECIMAL128);
+        }
+        return (BigDecimal) x;
+    }
+
+    // Back to the long fast path whenever the value fits
+    static Number normalize(BigInteger x) {
+        return x.bitLength() < 64 ? (Number) x.longValue() : x;
+    }
+
+    // Result text shown in the display
+    static String format(Number x) {
+        if (x instanceof BigInteger b && b.bitLength() > PARALLEL_FORMAT_BITS) {
+            return toDecimal(b);
+        }
+        if (isInteger(x) || x instanceof Fraction) {
+            return x.toString(); // A Fraction is shown as num/den
+        }
+        BigDecimal stripped = ((BigDecimal) x).stripTrailingZeros();
+        return stripped.scale() <= 0 ? stripped.toPlainString() : stripped.toString();
+    }
+
+    // ================== Decimal conversion ===================
+    // Decimal digits of a huge integer (100000! has 456,574): divide and conquer by 10^(18 * 2^k), the
+    // quotient and the remainder of every large division are converted in parallel (fork-join common
+    // pool) straight into one char array, the leaves are 18-digit longs
+    private static String toDecimal(BigInteger x) {
+        BigInteger magnitude = x.abs();
+        List<BigInteger> powers = new ArrayList<>(); // powers[k] = 10^(18 * 2^k)
+        powers.add(BigInteger.TEN.pow(LEAF_DIGITS));
+        long digits = (long) (magnitude.bitLength() * LOG10_2) + 1;
+        while ((long) LEAF_DIGITS << powers.size() < digits) {
+            BigInteger last = powers.get(powers.size() - 1);
+            powers.add(last.multiply(last));
+        }
+        char[] out = new char[LEAF_DIGITS << powers.size()];
+        writeDigits(magnitude, powers.size() - 1, powers, out, 0);
+        int start = 0;
+        while (start < out.length - 1 && out[start] == '0') {
+            start++;
+        }
+        return (x.signum() < 0 ? "-" : "") + new String(out, start, out.length - start);
+    }
+
+    // Write x < 10^(18 * 2^(level + 1)) as exactly that many digits (leading zeros included) at offset
+    private static void writeDigits(BigInteger x, int level, List<BigInteger> powers, char[] out, int offset) {
+        if (level < 0) {
+            long value = x.longValue();
+            for (int i = offset + LEAF_DIGITS - 1; i >= offset; i--) {
+                out[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            return;
+        }
+        Evaluator.checkCancelled();
+        BigInteger[] split = x.divideAndRemainder(powers.get(level));
+        int low = offset + (LEAF_DIGITS << level);
+        if (x.bitLength() > PARALLEL_FORMAT_BITS) {
+            ForkJoinTask<?> high = ForkJoinTask.adapt(() -> writeDigits(split[0], level - 1, powers, out, offset)).fork();
+            writeDigits(split[1], level - 1, powers, out, low);
+            high.join();
+        } else {
+            writeDigits(split[0], level - 1, powers, out, offset);
+            writeDigits(split[1], level - 1, powers, out, low);
+        }
+    }
+
+    // ================== Operators ===================
+    static Number negate(Number x) {
+        if (x instanceof Long l && l != Long.MIN_VALUE) {
+            return -l;
+        }
+        if (isInteger(x)) {
+            return normalize(toBigInteger(x).negate());
+        }
+        if (x instanceof Fraction) {
+            return Fraction.negate(x);
+        }
+        return ((BigDecimal) x).negate();
+    }
+
+    static Number binary(char op, Number a, Number b, MathContext mc) {
+        return switch (op) {
+            case '+' -> add(a, b, mc);
+            case '-' -> subtract(a, b, mc);
+            case '*' -> multiply(a, b, mc);
+            case '/' -> divide(a, b, mc);
+            default -> pow(a, b, mc);
+        };
+    }
+
+    static Number add(Number a, Number b, MathContext mc) {
+        if (a instanceof Long x && b instanceof Long y) {
+            long r = x + y;
+            // Overflow iff both operands have the sign opposite to the result
+            if (((x ^ r) & (y ^ r)) >= 0) {
+                return r;
+            }
+        }
+        if (isInteger(a) && isInteger(b)) {
+            return normalize(toBigInteger(a).add(toBigInteger(b)));
+        }
+        if (isFraction(a, b)) {
+            return Fraction.add(a, b);
+        }
+        return toBigDecimal(a).add(toBigDecimal(b), decimal(mc));
+    }
+
+    static Number subtract(Number a, Number b, MathContext mc) {
+        return add(a, negate(b), mc);
+    }
+
+    static Number multiply(Number a, Number b, MathContext mc) {
+        if (a instanceof Long x && b instanceof Long y) {
+            long hi = Math.multiplyHigh(x, y);
+            long lo = x * y;
+            if ((hi == 0 && lo >= 0) || (hi == -1 && lo < 0)) {
+                return lo;
+            }
+        }
+        if (isInteger(a) && isInteger(b)) {
+            return normalize(toBigInteger(a).multiply(toBigInteger(b)));
+        }
+        if (isFraction(a, b)) {
+            return Fraction.multiply(a, b);
+        }
+        return toBigDecimal(a).multiply(toBigDecimal(b), decimal(mc));
+    }
+
+    // Integer division stays an integer when it is exact, or gives a Fraction in the fractions mode
+    static Number divide(Number a, Number b, MathContext mc) {
+        if (a instanceof Long x && b instanceof Long y && y != 0 && !(x == Long.MIN_VALUE && y == -1)) {
+            if (x % y == 0) {
+                return x / y;
+            }
+            if (mc == EXACT) {
+                return Fraction.of(x, y);
+            }
+        }
+        if (isInteger(a) && isInteger(b)) {
+            BigInteger[] qr = toBigInteger(a).divideAndRemainder(toBigInteger(b));
+            if (qr[1].signum() == 0) {
+                return normalize(qr[0]);
+            }
+        }
+        if (isExact(a) && isExact(b) && (mc == EXACT || isFraction(a, b))) {
+            return Fraction.divide(a, b);
+        }
+        return toBigDecimal(a).divide(toBigDecimal(b), decimal(mc));
+    }
+
+    static Number pow(Number base, Number exponent, MathContext mc) {
+        if (exponent instanceof Fraction f && isExact(base)) {
+            // Exact when the base is a perfect power: 4^(1/2) = 2, (8/27)^(2/3) = 4/9
+            Number root = Fraction.root(base, f.denominator());
+            if (root != null) {
+                return pow(root, normalize(f.numerator()), mc);
+            }
+        }
+        if (!isInteger(exponent)) {
+            BigDecimal e = exponent instanceof Fraction f ? f.toBigDecimal(decimal(mc)) : (BigDecimal) exponent;
+            if (e.stripTrailingZeros().scale() > 0) {
+                // Fractional exponents have no exact form, use double precision
+                return fromDouble(Math.pow(toBigDecimal(base).doubleValue(), e.doubleValue()));
+            }
+            exponent = e.toBigIntegerExact();
+        }
+        BigInteger e = toBigInteger(exponent);
+        if (e.bitLength() > 31) {
+            throw new ArithmeticException("Exponent too large: " + e);
+        }
+        int n = e.intValue();
+        if (isInteger(base) && n >= 0) {
+            BigInteger b = toBigInteger(base);
+            if ((long) b.bitLength() * n > MAX_POWER_BITS) {
+                throw new ArithmeticException("Result too large");
+            }
+            return normalize(b.pow(n));
+        }
+        if (isExact(base) && (mc == EXACT || base instanceof Fraction)) {
+            Number x = n < 0 ? Fraction.reciprocal(base) : base;
+            if (bits(x) * Math.abs((long) n) > MAX_POWER_BITS) {
+                throw new ArithmeticException("Result too large");
+            }
+            return Fraction.pow(x, Math.abs(n));
+        }
+        return toBigDecimal(base).pow(n, decimal(mc)); // Negative exponents divide, rounded to mc
+    }
+
+    // Size of an exact value, numerator and denominator together
+    private static long bits(Number x) {
+        return x instanceof Fraction f ? f.bits() : toBigInteger(x).bitLength() + 1L;
+    }
+
+    private static int compare(Number a, Number b) {
+        return isFraction(a, b) ? Fraction.compare(a, b) : toBigDecimal(a).compareTo(toBigDecimal(b));
+    }
+
+    // ================== Functions ===================
+    static Number sqrt(Number[] args, MathContext mc) {
+        if (args[0] instanceof Fraction f) {
+            Number root = Fraction.sqrt(f);
+            if (root != null) {
+                return root;
+            }
+        }
+        BigDecimal x = toBigDecimal(args[0]);
+        BigDecimal root = x.sqrt(decimal(mc));
+        // Perfect squares of integers stay integers
+        if (isInteger(args[0]) && root.stripTrailingZeros().scale() <= 0) {
+            return normalize(root.toBigIntegerExact());
+        }
+        return root;
+    }
+
+    static Number square(Number[] args, MathContext mc) {
+        return multiply(args[0], args[0], mc);
+    }
+
+    static Number cube(Number[] args, MathContext mc) {
+        return multiply(multiply(args[0], args[0], mc), args[0], mc);
+    }
+
+    // Same rounding as Math.round: halves go towards positive infinity
+    static Number round(Number[] args, MathContext mc) {
+        if (isInteger(args[0])) {
+            return args[0];
+        }
+        if (args[0] instanceof Fraction f) {
+            return Fraction.floor(Fraction.add(f, Fraction.of(1, 2)));
+        }
+        return normalize(toBigDecimal(args[0]).add(new BigDecimal("0.5")).setScale(0, RoundingMode.FLOOR).toBigIntegerExact());
+    }
+
+    static Number ceil(Number[] args, MathContext mc) {
+        if (args[0] instanceof Fraction f) {
+            return negate(Fraction.floor(Fraction.negate(f)));
+        }
+        return isInteger(args[0]) ? args[0] : normalize(toBigDecimal(args[0]).setScale(0, RoundingMode.CEILING).toBigIntegerExact());
+    }
+
+    static Number floor(Number[] args, MathContext mc) {
+        if (args[0] instanceof Fraction f) {
+            return Fraction.floor(f);
+        }
+        return isInteger(args[0]) ? args[0] : normalize(toBigDecimal(args[0]).setScale(0, RoundingMode.FLOOR).toBigIntegerExact());
+    }
+
+    static Number average(Number[] args, MathContext mc) {
+        if (args.length == 0) {
+            return 0L;
+        }
+        return divide(sum(args, mc), (long) args.length, mc);
+    }
+
+    static Number sum(Number[] args, MathContext mc) {
+        Number sum = 0L;
+        for (Number x : args) {
+            sum = add(sum, x, mc);
+        }
+        return sum;
+    }
+
+    static Number min(Number[] args, MathContext mc) {
+        Number best = args.length == 0 ? 0L : args[0];
+        for (Number x : args) {
+            if (compare(x, best) < 0) {
+                best = x;
+            }
+        }
+        return best;
+    }
+
+    static Number max(Number[] args, MathContext mc) {
+        Number best = args.length == 0 ? 0L : args[0];
+        for (Number x : args) {
+            if (compare(x, best) > 0) {
+                best = x;
+            }
+        }
+        return best;
+    }
+
+    // GCD of any number of integers: binary GCD on longs, BigInteger.gcd (hybrid binary) beyond
+    static Number gcd(Number[] args, MathContext mc) {
+        Number result = 0L;
+        for (Number x : args) {
+            Number value = isInteger(x) ? x : toBigInteger(x);
+            if (result instanceof Long a && value instanceof Long b && a != Long.MIN_VALUE && b != Long.MIN_VALUE) {
+                result = Evaluator.computeGCD(a, b);
+            } else {
+                result = normalize(toBigInteger(result).gcd(toBigInteger(value)));
+            }
+        }
+        return result;
+    }
+
+    // LCM of any number of integers, lcm(a, b) = |a| / gcd(a, b) * |b|
+    static Number lcm(Number[] args, MathContext mc) {
+        if (args.length == 0) {
+            return 0L;
+        }
+        Number result = 1L;
+        for (Number x : args) {
+            Number value = isInteger(x) ? x : toBigInteger(x);
+            BigInteger a = toBigInteger(result);
+            BigInteger b = toBigInteger(value).abs();
+            if (a.signum() == 0 || b.signum() == 0) {
+                return 0L;
+            }
+            Number g = gcd(new Number[]{result, value}, mc);
+            result = multiply(divide(result, g, mc), normalize(b), mc);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,391 @@
+// Prime number engine used by the Validation functions
+// Small numbers are answered from a lazily grown, cached sieve; any other 64-bit number is tested
+// with deterministic Miller-Rabin (Montgomery arithmetic, no BigInteger), larger BigIntegers
+// with probabilistic testing. Prime counting uses the sieve or the Lucy-Hedgehog method, ranges far from
+// zero are sieved segment by segment in parallel
+package calculator;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+public final class Primes {
+
+    private static final int INITIAL_SIEVE_LIMIT = 1 << 16;
+    private static final int MAX_SIEVE_LIMIT = 1 << 28; // 16 MB of bits at most
+    private static final int SEGMENT_SIZE = 1 << 18; // Numbers sieved per segment
+    private static final long MAX_PRIME_PI = 10_000_000_000_000L; // Keeps Lucy-Hedgehog tables under ~50 MB
+    private static final long MAX_RANGE = 1L << 53; // Sieved ranges end below, their base primes fit the sieve
+
+    // Bases making Miller-Rabin deterministic for every 64-bit number (Jim Sinclair's set)
+    private static final long[] BASES = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+
+    // Immutable snapshot of the sieve: bit k of words is set when 2k + 1 is prime, for 2k + 1 < limit
+    private record Sieve(long limit, long[] words) {
+        boolean isOddPrime(long n) {
+            long k = n >>> 1;
+            return (words[(int) (k >>> 6)] & (1L << k)) != 0;
+        }
+    }
+
+    private static volatile Sieve sieve = grow(null, INITIAL_SIEVE_LIMIT);
+
+    private Primes() {
+    }
+
+    // ================== Primality ===================
+    public static boolean isPrime(long n) {
+        if (n < 2) {
+            return false;
+        }
+        if ((n & 1) == 0) {
+            return n == 2;
+        }
+        Sieve s = sieve;
+        if (n < s.limit()) {
+            return s.isOddPrime(n);
+        }
+        // Cheap trial division before the more expensive test
+        for (long p = 3; p < 64; p += 2) {
+            if (n % p == 0) {
+                return n == p;
+            }
+        }
+        return millerRabin(n);
+    }
+
+    public static boolean isPrime(BigInteger n) {
+        if (n.bitLength() < 64) {
+            return isPrime(n.longValue());
+        }
+        return n.isProbablePrime(64); // Error probability below 2^-64
+    }
+
+    // Smallest prime greater than n
+    public static long nextPrime(long n) {
+        if (n < 2) {
+            return 2;
+        }
+        for (long candidate = (n + 1) | 1; candidate > 0; candidate += 2) {
+            if (isPrime(candidate)) {
+                return candidate;
+            }
+            Evaluator.checkCancelled();
+        }
+        throw new ArithmeticException("No 64-bit prime after " + n);
+    }
+
+    // ================== Prime counting ===================
+    // Number of primes less than or equal to n
+    public static long primePi(long n) {
+        if (n < 2) {
+            return 0;
+        }
+        if (n < MAX_SIEVE_LIMIT) {
+            return countFromSieve(sieveFor(n), n);
+        }
+        if (n > MAX_PRIME_PI) {
+            throw new ArithmeticException("primepi is limited to " + MAX_PRIME_PI);
+        }
+        return lucyHedgehog(n);
+    }
+
+    // Number of primes in [a, b]. A range narrow compared to b^(3/4) (the cost of primePi) is sieved:
+    // about 10 ns a number against two primePi, for 10^6 numbers around 10^12 ~10 ms instead of ~4 s
+    public static long countPrimes(long a, long b) {
+        if (b < a) {
+            return 0;
+        }
+        if (b >= MAX_SIEVE_LIMIT && b - a < Math.pow(b, 0.75) / 4) {
+            int[] base = basePrimes(b);
+            return LongStream.rangeClosed(Math.max(a, 0) / SEGMENT_SIZE, b / SEGMENT_SIZE).parallel()
+                    .map(segment -> sieveSegment(segment, a, b, base, null)).sum();
+        }
+        return primePi(b) - primePi(Math.max(a, 1) - 1);
+    }
+
+    // Pass every prime of [a, b] to sink in increasing order. Segments are sieved in parallel a batch at
+    // a time, so the first primes come right away and memory stays bounded however long the range is
+    public static void forEachPrime(long a, long b, LongConsumer sink) {
+        if (b < a) {
+            return;
+        }
+        int[] base = basePrimes(b);
+        long batch = 4L * ForkJoinPool.getCommonPoolParallelism();
+        for (long first = Math.max(a, 0) / SEGMENT_SIZE; first <= b / SEGMENT_SIZE; first += batch) {
+            List<long[]> primes = LongStream.rangeClosed(first, Math.min(b / SEGMENT_SIZE, first + batch - 1)).parallel()
+                    .mapToObj(segment -> {
+                        LongStream.Builder builder = LongStream.builder();
+                        sieveSegment(segment, a, b, base, builder);
+                        return builder.build().toArray();
+                    }).toList();
+            for (long[] segment : primes) {
+                for (long p : segment) {
+                    sink.accept(p);
+                }
+            }
+        }
+    }
+
+    // ================== Segmented sieve ===================
+    // Numbers of [a, b] in segments of SEGMENT_SIZE, each one sieved with the odd primes up to sqrt(b)
+    private static int[] basePrimes(long b) {
+        if (b > MAX_RANGE) {
+            throw new ArithmeticException("Prime ranges are limited to " + MAX_RANGE);
+        }
+        return oddPrimesUpTo((int) isqrt(b) + 1);
+    }
+
+    // Count the primes of segment number segment that are in [a, b], passing them to primes (if not null)
+    private static long sieveSegment(long segment, long a, long b, int[] base, LongStream.Builder primes) {
+        Evaluator.checkCancelled();
+        long from = Math.max(Math.max(a, 2), segment * SEGMENT_SIZE);
+        long to = Math.min(b, segment * SEGMENT_SIZE + SEGMENT_SIZE - 1);
+        if (from > to) {
+            return 0;
+        }
+        long count = 0;
+        if (from == 2) {
+            count++;
+            if (primes != null) {
+                primes.accept(2);
+            }
+            from = 3;
+        }
+        from |= 1;
+        if (from > to) {
+            return count;
+        }
+        // Bit i stands for the odd number from + 2i
+        int size = (int) ((to - from) / 2 + 1);
+        long[] composite = new long[(size + 63) >>> 6];
+        for (long p : base) {
+            if (p * p > to) {
+                break;
+            }
+            long start = Math.max(p * p, (from + p - 1) / p * p);
+            if ((start & 1) == 0) {
+                start += p;
+            }
+            for (long i = (start - from) >>> 1; i < size; i += p) {
+                composite[(int) (i >>> 6)] |= 1L << i;
+            }
+        }
+        for (int w = 0; w < composite.length; w++) {
+            long word = ~composite[w];
+            if (w == composite.length - 1 && (size & 63) != 0) {
+                word &= -1L >>> (64 - (size & 63)); // Past the end of the segment
+            }
+            if (primes == null) {
+                count += Long.bitCount(word);
+                continue;
+            }
+            for (; word != 0; word &= word - 1) {
+                primes.accept(from + 2 * (((long) w << 6) + Long.numberOfTrailingZeros(word)));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long countFromSieve(Sieve s, long n) {
+        long lastBit = (n - 1) >>> 1; // Highest k with 2k + 1 <= n
+        int lastWord = (int) (lastBit >>> 6);
+        long count = 1; // The prime 2
+        for (int i = 0; i < lastWord; i++) {
+            count += Long.bitCount(s.words()[i]);
+        }
+        long mask = -1L >>> (63 - (lastBit & 63));
+        return count + Long.bitCount(s.words()[lastWord] & mask);
+    }
+
+    // Lucy-Hedgehog prime counting in O(n^(3/4)) time and O(sqrt(n)) memory
+    // small[v] and large[i] hold the number of integers in [2, v] and [2, n / i] not yet sieved out
+    private static long lucyHedgehog(long n) {
+        int r = (int) isqrt(n);
+        long[] small = new long[r + 1];
+        long[] large = new long[r + 1];
+        for (int v = 1; v <= r; v++) {
+            small[v] = v - 1;
+            large[v] = n / v - 1;
+        }
+        for (int p = 2; p <= r; p++) {
+            if (small[p] == small[p - 1]) {
+                continue; // p is not prime
+            }
+            Evaluator.checkCancelled();
+            long primesBelow = small[p - 1];
+            long square = (long) p * p;
+            int limit = (int) Math.min(r, n / square);
+            for (int i = 1; i <= limit; i++) {
+                long d = (long) i * p;
+                large[i] -= (d <= r ? large[(int) d] : small[(int) (n / d)]) - primesBelow;
+            }
+            for (int v = r; v >= square; v--) {
+                small[v] -= small[v / p] - primesBelow;
+            }
+        }
+        return large[1];
+    }
+
+    // Odd primes up to n (below the sieve limit) in increasing order, for prime factorizations
+    static int[] oddPrimesUpTo(int n) {
+        if (n < 3) {
+            return new int[0];
+        }
+        if (n >= MAX_SIEVE_LIMIT) {
+            throw new ArithmeticException("Too large for the sieve: " + n);
+        }
+        Sieve s = sieveFor(n);
+        int[] primes = new int[(int) countFromSieve(s, n) - 1];
+        int count = 0;
+        long[] words = s.words();
+        for (int i = 0; count < primes.length; i++) {
+            for (long word = words[i]; word != 0 && count < primes.length; word &= word - 1) {
+                primes[count++] = (int) ((((long) i << 6) + Long.numberOfTrailingZeros(word)) * 2 + 1);
+            }
+        }
+        return primes;
+    }
+
+    // ================== Sieve ===================
+    // Return a sieve covering n, growing the cached one if needed
+    private static Sieve sieveFor(long n) {
+        Sieve s = sieve;
+        if (n < s.limit()) {
+            return s;
+        }
+        synchronized (Primes.class) {
+            s = sieve;
+            if (n >= s.limit()) {
+                s = grow(s, Math.min(MAX_SIEVE_LIMIT, Math.max(2 * s.limit(), Long.highestOneBit(n) << 1)));
+                sieve = s;
+            }
+            return s;
+        }
+    }
+
+    // Extend the sieve to newLimit (a power of two), sieving only the new part segment by segment
+    // with the base primes of the previous sieve, which always reach past sqrt(newLimit)
+    private static Sieve grow(Sieve old, long newLimit) {
+        long[] words = new long[(int) (newLimit >>> 7)];
+        long from;
+        if (old == null) {
+            from = 0;
+        } else {
+            System.arraycopy(old.words(), 0, words, 0, old.words().length);
+            from = old.limit();
+        }
+        Arrays.fill(words, (int) (from >>> 7), words.length, -1L);
+        if (old == null) {
+            words[0] &= ~1L; // 1 is not prime
+        }
+
+        for (long segment = from; segment < newLimit; segment += SEGMENT_SIZE) {
+            long end = Math.min(newLimit, segment + SEGMENT_SIZE);
+            for (long p = 3; p * p < end; p += 2) {
+                // The first sieve bootstraps from its own (already final) lower part
+                boolean prime = old != null && p < old.limit() ? old.isOddPrime(p) : isOddPrimeIn(words, p);
+                if (!prime) {
+                    continue;
+                }
+                // Start at the first odd multiple of p inside the segment, but not below p^2
+                long start = Math.max(p * p, (segment + p - 1) / p * p);
+                if ((start & 1) == 0) {
+                    start += p;
+                }
+                for (long m = start; m < end; m += 2 * p) {
+                    long k = m >>> 1;
+                    words[(int) (k >>> 6)] &= ~(1L << k);
+                }
+            }
+        }
+        return new Sieve(newLimit, words);
+    }
+
+    private static boolean isOddPrimeIn(long[] words, long n) {
+        long k = n >>> 1;
+        return (words[(int) (k >>> 6)] & (1L << k)) != 0;
+    }
+
+    // ================== Miller-Rabin ===================
+    // Deterministic Miller-Rabin for odd n > 64, using Montgomery multiplication modulo n
+    private static boolean millerRabin(long n) {
+        // Inverse of n modulo 2^64 by Newton iteration (each step doubles the correct bits)
+        long nInv = n;
+        for (int i = 0; i < 5; i++) {
+            nInv *= 2 - n * nInv;
+        }
+        long one = Long.remainderUnsigned(-1L, n) + 1; // 2^64 mod n, i.e. 1 in Montgomery form
+        long minusOne = n - one;
+        long r2 = one; // 2^128 mod n, used to convert into Montgomery form
+        for (int i = 0; i < 64; i++) {
+            r2 = addMod(r2, r2, n);
+        }
+
+        int s = Long.numberOfTrailingZeros(n - 1);
+        long d = (n - 1) >>> s;
+        nextBase:
+        for (long base : BASES) {
+            long a = base % n;
+            if (a == 0) {
+                continue;
+            }
+            long x = montPow(montMul(a, r2, n, nInv), d, one, n, nInv);
+            if (x == one || x == minusOne) {
+                continue;
+            }
+            for (int i = 1; i < s; i++) {
+                x = montMul(x, x, n, nInv);
+                if (x == minusOne) {
+                    continue nextBase;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static long montPow(long base, long exponent, long one, long n, long nInv) {
+        long result = one;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) {
+                result = montMul(result, base, n, nInv);
+            }
+            base = montMul(base, base, n, nInv);
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    // a * b / 2^64 mod n for a, b < n < 2^63 (Montgomery reduction)
+    private static long montMul(long a, long b, long n, long nInv) {
+        long hi = Math.multiplyHigh(a, b);
+        long m = a * b * nInv;
+        long t = hi - unsignedMultiplyHigh(m, n);
+        return t < 0 ? t + n : t;
+    }
+
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    private static long addMod(long a, long b, long n) {
+        long sum = a + b; // a, b < n < 2^63, so the sum never overflows 64 unsigned bits
+        return Long.compareUnsigned(sum, n) >= 0 ? sum - n : sum;
+    }
+
+    private static long isqrt(long n) {
+        long r = (long) Math.sqrt((double) n);
+        while (r * r > n) {
+            r--;
+        }
+        while ((r + 1) * (r + 1) <= n) {
+            r++;
+        }
+        return r;
+    }
+}
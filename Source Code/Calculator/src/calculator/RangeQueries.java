@@ -0,0 +1,235 @@
+// Range versions of the Validation functions, over [a, b] with a and b up to 2^53
+// - countprime (or primes): see Primes, a range far from zero is sieved segment by segment in parallel
+// - palindromes: counted in closed form. The palindromes of length L up to x are the halves (first
+//   (L + 1) / 2 digits) below the half of x, plus one if the mirror of that half is not above x.
+//   They are listed by mirroring the halves in increasing order
+// - armstrongs: whether a number is an Armstrong number only depends on the multiset of its digits, so
+//   every multiset of L digits (C(L + 9, 9), 2 million for L = 16) is tried once instead of the
+//   9 * 10^(L-1) numbers: its sum of L-th powers is an Armstrong number when it has those same digits.
+//   A length is searched in parallel (one task per number of nines) the first time it is needed
+// Digit arithmetic is integer only, the powers come from the POWERS table.
+// Counts are the values of armstrongs(a, b) and palindromes(a, b); the numbers themselves are streamed
+// one by one to a consumer (see list, used by the "#list" command of EvaluationServer)
+package calculator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+final class RangeQueries {
+
+    static final long MAX = 1L << 53; // Largest bound, every integer up to it is an exact double
+    private static final int MAX_DIGITS = 19; // Digits of Long.MAX_VALUE
+    private static final long[] TENS = new long[MAX_DIGITS]; // TENS[k] = 10^k
+    private static final long[][] POWERS = new long[10][MAX_DIGITS + 1]; // POWERS[d][k] = d^k, 9^19 still fits
+    private static final AtomicReferenceArray<long[]> ARMSTRONGS = new AtomicReferenceArray<>(17); // By length, sorted
+
+    static {
+        TENS[0] = 1;
+        for (int k = 1; k < MAX_DIGITS; k++) {
+            TENS[k] = TENS[k - 1] * 10;
+        }
+        for (int d = 0; d < 10; d++) {
+            POWERS[d][0] = 1;
+            for (int k = 1; k <= MAX_DIGITS; k++) {
+                POWERS[d][k] = POWERS[d][k - 1] * d;
+            }
+        }
+    }
+
+    private RangeQueries() {
+    }
+
+    // ================== Evaluator functions ===================
+    static double palindromes(double[] args) {
+        long[] range = range("palindromes", args);
+        return palindromesUpTo(range[1]) - palindromesUpTo(range[0] - 1);
+    }
+
+    static double armstrongs(double[] args) {
+        long[] range = range("armstrongs", args);
+        long[] count = new long[1];
+        forEachArmstrong(range[0], range[1], n -> count[0]++);
+        return count[0];
+    }
+
+    // Bounds of a range: whole numbers up to 2^53, a negative start counts from 0
+    private static long[] range(String name, double[] args) {
+        for (double value : args) {
+            if (value != Math.rint(value) || Math.abs(value) > MAX) {
+                throw new ArithmeticException(name + " needs whole numbers up to 2^53, not " + value);
+            }
+        }
+        return new long[]{Math.max(0, (long) args[0]), (long) args[1]};
+    }
+
+    // Pass the primes, palindromes or Armstrong numbers of [a, b] to sink in increasing order
+    static void list(String kind, long a, long b, LongConsumer sink) {
+        checkList(kind, a, b);
+        switch (kind) {
+            case "primes" -> Primes.forEachPrime(a, b, sink);
+            case "palindromes" -> forEachPalindrome(Math.max(a, 0), b, sink);
+            default -> forEachArmstrong(Math.max(a, 0), b, sink);
+        }
+    }
+
+    static void checkList(String kind, long a, long b) {
+        if (!kind.equals("primes") && !kind.equals("palindromes") && !kind.equals("armstrongs")) {
+            throw new IllegalArgumentException("Unknown list " + kind + ", expected primes, palindromes or armstrongs");
+        }
+        if (b > MAX) {
+            throw new ArithmeticException(kind + " are listed up to 2^53");
+        }
+    }
+
+    // ================== Single numbers ===================
+    // Whether the digits of n >= 0 read the same backwards: the second half is reversed until it
+    // reaches the first one, so nothing overflows
+    static boolean isPalindrome(long n) {
+        if (n < 0 || (n % 10 == 0 && n != 0)) {
+            return false;
+        }
+        long reversed = 0;
+        while (n > reversed) {
+            reversed = reversed * 10 + n % 10;
+            n /= 10;
+        }
+        return n == reversed || n == reversed / 10; // Even or odd number of digits
+    }
+
+    // Whether n >= 0 is the sum of its digits raised to the number of digits
+    static boolean isArmstrong(long n) {
+        if (n < 0) {
+            return false;
+        }
+        int digits = digits(n);
+        long sum = 0;
+        for (long rest = n; rest != 0; rest /= 10) {
+            long power = POWERS[(int) (rest % 10)][digits];
+            if (sum > n - power) {
+                return false; // Already too large, and sum + power could overflow
+            }
+            sum += power;
+        }
+        return sum == n;
+    }
+
+    private static int digits(long n) {
+        int digits = 1;
+        while (digits < MAX_DIGITS && n >= TENS[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    // ================== Palindromes ===================
+    // Number of palindromes in [0, x]
+    static long palindromesUpTo(long x) {
+        if (x < 10) {
+            return Math.max(0, x + 1);
+        }
+        int length = digits(x);
+        long count = 10; // 0 .. 9
+        for (int l = 2; l < length; l++) {
+            count += 9 * TENS[(l + 1) / 2 - 1];
+        }
+        int half = (length + 1) / 2;
+        long first = x / TENS[length - half];
+        count += first - TENS[half - 1];
+        return mirror(first, length) <= x ? count + 1 : count;
+    }
+
+    private static void forEachPalindrome(long a, long b, LongConsumer sink) {
+        if (b < a) {
+            return;
+        }
+        for (int length = digits(a); length <= digits(b); length++) {
+            int half = (length + 1) / 2;
+            long first = length == digits(a) ? a / TENS[length - half] : TENS[half - 1];
+            for (; first < TENS[half]; first++) {
+                long palindrome = mirror(first, length);
+                if (palindrome > b) {
+                    return;
+                }
+                if (palindrome >= a) {
+                    sink.accept(palindrome);
+                }
+            }
+        }
+    }
+
+    // The palindrome of the given length whose first digits are half
+    private static long mirror(long half, int length) {
+        long result = half;
+        for (long rest = length % 2 == 1 ? half / 10 : half; rest != 0; rest /= 10) {
+            result = result * 10 + rest % 10;
+        }
+        return result;
+    }
+
+    // ================== Armstrong numbers ===================
+    private static void forEachArmstrong(long a, long b, LongConsumer sink) {
+        if (b < a) {
+            return;
+        }
+        for (int length = digits(a); length <= digits(b); length++) {
+            for (long n : armstrongsOfLength(length)) {
+                if (n >= a && n <= b) {
+                    sink.accept(n);
+                }
+            }
+        }
+    }
+
+    // Armstrong numbers with the given number of digits (0 is the one with one digit and no other)
+    private static long[] armstrongsOfLength(int length) {
+        long[] found = ARMSTRONGS.get(length);
+        if (found == null) {
+            // Racing threads compute the same array
+            found = IntStream.rangeClosed(0, length).parallel().mapToObj(nines -> {
+                LongStream.Builder builder = LongStream.builder();
+                int[] counts = new int[10];
+                counts[9] = nines;
+                search(length, 8, length - nines, nines * POWERS[9][length], counts, builder);
+                return builder.build();
+            }).flatMapToLong(numbers -> numbers).sorted().toArray();
+            ARMSTRONGS.set(length, found);
+        }
+        return found;
+    }
+
+    // Share the remaining digits among the digits 0 .. digit, sum is the sum of the powers so far
+    private static void search(int length, int digit, int remaining, long sum, int[] counts, LongStream.Builder found) {
+        if (digit == 0) {
+            counts[0] = remaining;
+            if (hasDigits(sum, length, counts)) {
+                found.accept(sum);
+            }
+            return;
+        }
+        for (int count = 0; count <= remaining; count++) {
+            long next = sum + count * POWERS[digit][length];
+            if (next >= TENS[length]) {
+                break; // Too many digits, and more of this digit only adds to it
+            }
+            counts[digit] = count;
+            search(length, digit - 1, remaining - count, next, counts, found);
+        }
+        counts[digit] = 0;
+    }
+
+    // Whether n has exactly length digits, counts[d] of them equal to d
+    private static boolean hasDigits(long n, int length, int[] counts) {
+        if (digits(n) != length) {
+            return false;
+        }
+        int[] seen = new int[10];
+        for (int i = 0; i < length; i++) {
+            seen[(int) (n % 10)]++;
+            n /= 10;
+        }
+        return Arrays.equals(seen, counts);
+    }
+}
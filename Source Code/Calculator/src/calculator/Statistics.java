@@ -0,0 +1,238 @@
+// Single-pass statistics accumulator behind the Statistical functions
+// Values are added one at a time into primitive accumulators: count, compensated sum, min, max,
+// and mean/variance with Welford's algorithm. Median and percentiles are exact while the values
+// fit in memory (up to EXACT_LIMIT) and estimated with the P-square algorithm beyond,
+// so datasets of any size can be streamed from a file without materializing them
+package calculator;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public final class Statistics {
+
+    private static final int EXACT_LIMIT = 1 << 20; // Values kept for exact quantiles (8 MB)
+    private static final long WINDOW_SIZE = 64L << 20; // Bytes of a data file mapped at a time
+
+    private long count;
+    private double sum, compensation; // Neumaier compensated sum
+    private double mean, m2; // Welford: running mean and sum of squared differences
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    // Quantile tracking, only when a quantile was requested (NaN otherwise)
+    private final double quantile;
+    private double[] values; // Exact values, dropped once there are more than EXACT_LIMIT
+    private final P2Quantile estimator;
+
+    public Statistics() {
+        this(Double.NaN);
+    }
+
+    // quantile in [0, 1], e.g. 0.5 for the median
+    public Statistics(double quantile) {
+        if (!Double.isNaN(quantile) && (quantile < 0 || quantile > 1)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        this.quantile = quantile;
+        this.values = Double.isNaN(quantile) ? null : new double[16];
+        this.estimator = Double.isNaN(quantile) ? null : new P2Quantile(quantile);
+    }
+
+    public void add(double x) {
+        count++;
+
+        // Compensated summation keeps the low-order bits lost by each addition
+        double t = sum + x;
+        compensation += Math.abs(sum) >= Math.abs(x) ? (sum - t) + x : (x - t) + sum;
+        sum = t;
+
+        double delta = x - mean;
+        mean += delta / count;
+        m2 += delta * (x - mean);
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+
+        if (estimator != null) {
+            estimator.add(x);
+            if (values != null) {
+                if (count > EXACT_LIMIT) {
+                    values = null; // Too many values, continue with the estimate only
+                } else {
+                    if (count > values.length) {
+                        values = Arrays.copyOf(values, values.length * 2);
+                    }
+                    values[(int) count - 1] = x;
+                }
+            }
+        }
+    }
+
+    // Stream every number of a text file (separated by commas, spaces or new lines) into the accumulator
+    public void addFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            long size = channel.size();
+            byte[] token = new byte[64];
+            int length = 0;
+            for (long start = 0; start < size; start += WINDOW_SIZE) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+                while (window.hasRemaining()) {
+                    byte b = window.get();
+                    if (b == ',' || b == ';' || b <= ' ') {
+                        if (length > 0) {
+                            add(Double.parseDouble(new String(token, 0, length, StandardCharsets.US_ASCII)));
+                            length = 0;
+                        }
+                    } else {
+                        if (length == token.length) {
+                            throw new NumberFormatException("Value too long in " + file);
+                        }
+                        token[length++] = b;
+                    }
+                }
+                Evaluator.checkCancelled();
+            }
+            if (length > 0) {
+                add(Double.parseDouble(new String(token, 0, length, StandardCharsets.US_ASCII)));
+            }
+        }
+    }
+
+    // ================== Results ===================
+    public long count() {
+        return count;
+    }
+
+    public double sum() {
+        return sum + compensation;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : mean;
+    }
+
+    public double min() {
+        return count == 0 ? 0 : min;
+    }
+
+    public double max() {
+        return count == 0 ? 0 : max;
+    }
+
+    // Sample variance (divides by n - 1), undefined for less than two values
+    public double variance() {
+        if (count < 2) {
+            throw new IllegalArgumentException("The sample variance needs at least 2 values");
+        }
+        return m2 / (count - 1);
+    }
+
+    public double stddev() {
+        return Math.sqrt(variance());
+    }
+
+    // The requested quantile, exact (linear interpolation between closest ranks) or estimated
+    public double quantile() {
+        if (estimator == null) {
+            throw new IllegalStateException("No quantile requested");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (values == null) {
+            return estimator.value();
+        }
+        int n = (int) count;
+        double rank = quantile * (n - 1);
+        int lower = (int) Math.floor(rank);
+        double[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        if (lower + 1 >= n) {
+            return sorted[n - 1];
+        }
+        return sorted[lower] + (rank - lower) * (sorted[lower + 1] - sorted[lower]);
+    }
+
+    // P-square quantile estimator (Jain & Chlamtac): five markers, constant memory
+    private static final class P2Quantile {
+
+        private final double p;
+        private final double[] heights = new double[5]; // Marker heights
+        private final double[] positions = {1, 2, 3, 4, 5}; // Actual marker positions
+        private final double[] desired; // Desired marker positions
+        private final double[] increments; // Desired position increments
+        private int count;
+
+        P2Quantile(double p) {
+            this.p = p;
+            desired = new double[]{1, 1 + 2 * p, 1 + 4 * p, 3 + 2 * p, 5};
+            increments = new double[]{0, p / 2, p, (1 + p) / 2, 1};
+        }
+
+        void add(double x) {
+            if (count < 5) {
+                heights[count++] = x;
+                if (count == 5) {
+                    Arrays.sort(heights);
+                }
+                return;
+            }
+            count++;
+
+            // Find the cell of x, extending the extreme markers if needed
+            int k;
+            if (x < heights[0]) {
+                heights[0] = x;
+                k = 0;
+            } else if (x >= heights[4]) {
+                heights[4] = Math.max(heights[4], x);
+                k = 3;
+            } else {
+                k = 0;
+                while (x >= heights[k + 1]) {
+                    k++;
+                }
+            }
+            for (int i = k + 1; i < 5; i++) {
+                positions[i]++;
+            }
+            for (int i = 0; i < 5; i++) {
+                desired[i] += increments[i];
+            }
+
+            // Adjust the three middle markers with a parabolic (or linear) prediction
+            for (int i = 1; i <= 3; i++) {
+                double d = desired[i] - positions[i];
+                if ((d >= 1 && positions[i + 1] - positions[i] > 1) || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+                    int s = d >= 0 ? 1 : -1;
+                    double h = parabolic(i, s);
+                    if (heights[i - 1] < h && h < heights[i + 1]) {
+                        heights[i] = h;
+                    } else {
+                        heights[i] += s * (heights[i + s] - heights[i]) / (positions[i + s] - positions[i]);
+                    }
+                    positions[i] += s;
+                }
+            }
+        }
+
+        private double parabolic(int i, int s) {
+            return heights[i] + s / (positions[i + 1] - positions[i - 1])
+                    * ((positions[i] - positions[i - 1] + s) * (heights[i + 1] - heights[i]) / (positions[i + 1] - positions[i])
+                    + (positions[i + 1] - positions[i] - s) * (heights[i] - heights[i - 1]) / (positions[i] - positions[i - 1]));
+        }
+
+        double value() {
+            if (count < 5) {
+                // Not enough values for the markers yet, use the closest rank
+                double[] sorted = Arrays.copyOf(heights, count);
+                Arrays.sort(sorted);
+                return sorted[(int) Math.round(p * (count - 1))];
+            }
+            return heights[2];
+        }
+    }
+}
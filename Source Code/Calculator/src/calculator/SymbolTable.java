@@ -0,0 +1,133 @@
+// User-defined variables and functions: r = 5, f(x) = x^2 + 3x
+// Names are resolved when an expression is compiled, never while it is evaluated: a variable becomes a
+// Constant of its value, and a call of a user function is expanded inline with the arguments in place
+// of the parameters (see Optimizer.inline), so the optimizer folds and shares across calls and
+// precision mode evaluates the body exactly.
+// A variable holds the value of its expression when it was defined (so r = r + 1 works), a function
+// keeps using the current definitions of the symbols in its body: every symbol lists the ones it uses,
+// and redefining a symbol recompiles the functions depending on it. The listeners (the caches of the
+// evaluators sharing the table) are then told which names changed, to drop only what depends on them.
+// The Evaluator parses the definitions and updates the table while holding its lock
+package calculator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public final class SymbolTable {
+
+    // A user symbol: a variable when params is empty and tree is the compiled expression of its value
+    // (a MatrixValue for a matrix, value is then NaN),
+    // otherwise a function whose tree is the parsed body (parameter i is the variable of slot i)
+    // definition is the text after '=', uses the symbols the tree depends on (none for variables)
+    record Symbol(String name, List<String> params, String definition, Node tree, double value, Set<String> uses) {
+
+        boolean isFunction() {
+            return !params.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            if (isFunction()) {
+                return name + "(" + String.join(",", params) + ") = " + definition;
+            }
+            return name + " = " + (tree instanceof Node.MatrixValue matrix ? matrix.value() : value);
+        }
+    }
+
+    private final Map<String, Symbol> symbols = new LinkedHashMap<>(); // In definition order
+    private final List<Consumer<Set<String>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile long version; // Incremented by every change
+
+    synchronized Symbol get(String name) {
+        return symbols.get(name);
+    }
+
+    // Every symbol, in definition order
+    synchronized List<Symbol> all() {
+        return List.copyOf(symbols.values());
+    }
+
+    long version() {
+        return version;
+    }
+
+    // Called with the names whose definition changed
+    void addListener(Consumer<Set<String>> listener) {
+        listeners.add(listener);
+    }
+
+    // ================== Updates (caller holds the lock) ===================
+    // Store a symbol, returning the one it replaces (null if new)
+    Symbol put(Symbol symbol) {
+        return symbols.put(symbol.name(), symbol);
+    }
+
+    // Undo put when a redefinition fails halfway
+    void restore(String name, Symbol previous) {
+        if (previous == null) {
+            symbols.remove(name);
+        } else {
+            symbols.put(name, previous);
+        }
+    }
+
+    // Whether a symbol using the given ones would (indirectly) use name
+    boolean reaches(Set<String> uses, String name) {
+        for (String used : uses) {
+            Symbol symbol = symbols.get(used);
+            if (used.equals(name) || symbol != null && reaches(symbol.uses(), name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Symbols depending on name directly or indirectly, each one after the symbols it uses
+    List<Symbol> dependents(String name) {
+        Set<String> found = new LinkedHashSet<>();
+        collectDependents(name, found);
+        Set<String> ordered = new LinkedHashSet<>();
+        for (String dependent : found) {
+            order(dependent, found, ordered);
+        }
+        List<Symbol> result = new ArrayList<>();
+        for (String dependent : ordered) {
+            result.add(symbols.get(dependent));
+        }
+        return result;
+    }
+
+    private void collectDependents(String name, Set<String> found) {
+        for (Symbol symbol : symbols.values()) {
+            if (symbol.uses().contains(name) && found.add(symbol.name())) {
+                collectDependents(symbol.name(), found);
+            }
+        }
+    }
+
+    private void order(String name, Set<String> among, Set<String> ordered) {
+        if (ordered.contains(name)) {
+            return;
+        }
+        for (String used : symbols.get(name).uses()) {
+            if (among.contains(used)) {
+                order(used, among, ordered);
+            }
+        }
+        ordered.add(name);
+    }
+
+    // Publish a change once every symbol involved is stored
+    void changed(Set<String> names) {
+        version++;
+        for (Consumer<Set<String>> listener : listeners) {
+            listener.accept(names);
+        }
+    }
+}
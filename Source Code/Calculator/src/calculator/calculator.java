@@ -11,28 +11,78 @@ import javafx.scene.image.Image;
 import javafx.scene.layout.StackPane;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.regex.Pattern;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
 import javafx.application.Platform;
-import javafx.scene.control.Alert.AlertType;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.stage.StageStyle;
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
+import javafx.util.Duration;
 
 public class calculator extends Application {
 
     // Field for displaying input and results
     private TextField display = new TextField();
-    // Side panel for advanced operations
+    // Side panel for advanced operations, built the first time it is shown
     private VBox advancedPanel = new VBox(15);
+    private final FlowPane symbolButtons = new FlowPane(); // User symbols, in the advanced panel
     private boolean advancedVisible = false; // Panel visibility state
-    private ScrollPane scrollPane; // For scrolling inside the panel
+    private ScrollPane scrollPane; // For scrolling inside the panel, null until the panel is built
+    private StackPane root; // Calculator, with the side panel on top once built
     private double lastAnswer = 0; // Stores the last result
     private boolean isDarkMode = false; // Theme state
+    // Theme stylesheets. JavaFX drops a parsed stylesheet as soon as no node uses it, so an invisible
+    // node keeps the themes used so far: toggling the theme again restyles without parsing the CSS
+    private static final String LIGHT_THEME = calculator.class.getResource("light.css").toExternalForm();
+    private static final String DARK_THEME = calculator.class.getResource("Dark.css").toExternalForm();
+    private final Region themeCache = new Region();
+    // Expression evaluator, compiled expressions cache capacity set with -Dcalculator.cacheSize
+    private final SymbolTable symbols = new SymbolTable(); // User variables and functions, shared with the preview
+    private final Evaluator evaluator = new Evaluator(Integer.getInteger("calculator.cacheSize", 256), symbols);
+
+    // Background evaluation, so heavy expressions never freeze the window
+    // Time budget per evaluation set with -Dcalculator.timeoutMillis
+    private final long evaluationTimeout = Long.getLong("calculator.timeoutMillis", 10_000);
+    private final ExecutorService evaluationExecutor = Executors.newCachedThreadPool(calculator::evaluationThread);
+    private final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(calculator::evaluationThread);
+    private FutureTask<String> pendingEvaluation; // Evaluation in progress, null when idle (FX thread only)
+    private ScheduledFuture<?> pendingTimeout;
+    private final ProgressIndicator busyIndicator = new ProgressIndicator(); // Shown in the display while evaluating
+    private MathContext precision = null; // Precision mode (BigDecimal digits or Precise.EXACT), null = standard double evaluation
+    private boolean complex = false; // Complex mode (see Complex), sqrt(-1) = i
+    private static final int RESULT_CHUNK = 16_384; // Characters of a long result added to the display per frame
+    private static final Pattern FRACTION = Pattern.compile("-?\\d+/\\d+"); // Result of the fractions mode
+    private static final Pattern COMPLEX = Pattern.compile("-?(?:[\\d.E-]+ [+-] )?[\\d.E-]*i"); // Non-real result of the complex mode
+    private static final Pattern BOOLEAN_CALL = Pattern.compile("\\b(palindrome|armstrong|prime)\\("); // Results shown as True/false
+    private AnimationTimer resultRenderer; // Showing a long result, see showResult
+
+    // Live result preview shown under the display while typing, computed in the background once
+    // typing pauses. It has its own evaluator, so partial expressions don't fill the main cache, and a
+    // short time budget set with -Dcalculator.previewTimeoutMillis (a heavy preview is just not shown)
+    private final long previewTimeout = Long.getLong("calculator.previewTimeoutMillis", 500);
+    private final Label preview = new Label();
+    private final PauseTransition previewDelay = new PauseTransition(Duration.millis(150));
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(calculator::evaluationThread);
+    private final IncrementalPreview incrementalPreview = new IncrementalPreview(new Evaluator(64, symbols)); // Preview thread only
+    private Future<?> pendingPreview;
+
+    // Calculation history, persisted in ~/.calculator/history.log (or -Dcalculator.history=<file>)
+    private final History history = openHistory();
+    private HistoryView historyView; // Created the first time it is shown
 
     @Override
     public void start(Stage primaryStage) {
@@ -41,6 +91,20 @@ public class calculator extends Application {
         display.setMinHeight(50);
         display.setStyle("-fx-font-size: 18;");
 
+        // Busy indicator on the right side of the display
+        busyIndicator.setMaxSize(30, 30);
+        busyIndicator.setVisible(false);
+        StackPane displayArea = new StackPane(display, busyIndicator);
+        StackPane.setAlignment(busyIndicator, Pos.CENTER_RIGHT);
+        StackPane.setMargin(busyIndicator, new Insets(0, 10, 0, 0));
+
+        // Result preview, refreshed after every change of the display
+        preview.getStyleClass().add("preview");
+        preview.setMaxWidth(Double.MAX_VALUE);
+        preview.setAlignment(Pos.CENTER_RIGHT);
+        previewDelay.setOnFinished(e -> updatePreview());
+        display.textProperty().addListener((obs, oldText, newText) -> previewDelay.playFromStart());
+
         // Create basic operation buttons
         GridPane basicButtons = createBasicButtons();
 
@@ -49,33 +113,17 @@ public class calculator extends Application {
         toggleAdvanced.getStyleClass().add("toggleAdvanced");
         toggleAdvanced.setOnAction(e -> toggleAdvancedPanel());
 
-        // Setup advanced operations inside the panel
-        createAdvancedButtons();
-
-        //Setup the side panel
-        advancedPanel.setPadding(new Insets(10));
-        advancedPanel.getStyleClass().add("advanced");
-        advancedPanel.setTranslateX(300);
-        advancedPanel.setPrefWidth(300);
-        //advancedPanel = false;
-
-        //Setup scrollPane the side panel
-        scrollPane = new ScrollPane(advancedPanel);
-        scrollPane.setFitToWidth(true);
-        scrollPane.setPrefWidth(300);
-        scrollPane.setMouseTransparent(false);
-        scrollPane.setTranslateX(300);
-        scrollPane.setVisible(false);
-        scrollPane.setStyle("-fx-background: transparent; -fx-background-color: transparent;");
-
         // Container for theme toggle button
         StackPane theme = new StackPane();
 
         // Main layout of the calculator
-        VBox calculatorLayout = new VBox(10, display, basicButtons, toggleAdvanced, theme);
+        VBox calculatorLayout = new VBox(10, displayArea, preview, basicButtons, toggleAdvanced, theme);
         calculatorLayout.setAlignment(Pos.CENTER);
         calculatorLayout.setPadding(new Insets(10));
-        StackPane root = new StackPane(calculatorLayout, scrollPane);
+        themeCache.setVisible(false);
+        themeCache.setManaged(false);
+        themeCache.getStylesheets().add(LIGHT_THEME);
+        root = new StackPane(calculatorLayout, themeCache);
 
         Scene scene = new Scene(root);
 
@@ -95,19 +143,49 @@ public class calculator extends Application {
         StackPane.setAlignment(toggleTheme, Pos.TOP_RIGHT);
         theme.getChildren().add(toggleTheme);
 
+        // Precision mode selector: standard double, exact fractions (0.1+0.2 = 3/10), exact integers with
+        // a chosen number of decimal digits, or complex numbers in double precision (sqrt(-1) = i)
+        ComboBox<String> precisionBox = new ComboBox<>();
+        precisionBox.getItems().addAll("Double", "Fractions", "34 digits", "50 digits", "100 digits", "1000 digits", "Complex");
+        precisionBox.setValue("Double");
+        precisionBox.setStyle("-fx-font-size: 10;");
+        precisionBox.setOnAction(e -> {
+            String choice = precisionBox.getValue();
+            complex = choice.equals("Complex");
+            precision = switch (choice) {
+                case "Double", "Complex" -> null;
+                case "Fractions" -> Precise.EXACT;
+                default -> new MathContext(Integer.parseInt(choice.split(" ")[0]));
+            };
+            updatePreview();
+            display.getScene().getRoot().requestFocus();
+        });
+        StackPane.setAlignment(precisionBox, Pos.TOP_LEFT);
+        theme.getChildren().add(precisionBox);
+
+        // Button to open the history window
+        Button showHistory = new Button("History");
+        showHistory.setStyle("-fx-font-size: 10;-fx-min-width: 60px;-fx-min-height: 20px;");
+        showHistory.setOnAction(e -> {
+            if (historyView == null) {
+                historyView = new HistoryView(history, scene, display::setText, display::appendText);
+            }
+            historyView.show();
+        });
+        StackPane.setAlignment(showHistory, Pos.TOP_CENTER);
+        theme.getChildren().add(showHistory);
+
         // Button to toggle setOnAction...
         toggleTheme.setOnAction(e -> {
             isDarkMode = !isDarkMode;
-            scene.getStylesheets().clear();
-            if (isDarkMode) {
-                scene.getStylesheets().add(getClass().getResource("Dark.css").toExternalForm());
-
-            } else {
-                scene.getStylesheets().add(getClass().getResource("light.css").toExternalForm());
+            String next = isDarkMode ? DARK_THEME : LIGHT_THEME;
+            if (!themeCache.getStylesheets().contains(next)) {
+                themeCache.getStylesheets().add(next);
             }
+            scene.getStylesheets().set(0, next); // One change, so the scene is restyled once
         });
         // Load default theme (light)
-        scene.getStylesheets().add(getClass().getResource("light.css").toExternalForm());
+        scene.getStylesheets().add(LIGHT_THEME);
 
         //Prevent closing the window with the "✖" button
         primaryStage.setOnCloseRequest(evnt -> {
@@ -168,8 +246,8 @@ public class calculator extends Application {
                 case DIVIDE, SLASH -> handleInput("/");
 
                 default -> {
-                    // Allow typing dot, comma, or math operators
-                    if (".,*/+-".contains(key)) {
+                    // Allow typing dot, comma, math operators, or the brackets of Ans[n]
+                    if (!key.isEmpty() && ".,*/+-[]".contains(key)) {
                         handleInput(key);
                     }
 
@@ -188,13 +266,38 @@ public class calculator extends Application {
         primaryStage.setTitle("JavaFX Calculator");
         primaryStage.setScene(scene);
         primaryStage.setHeight(700);
-        primaryStage.getIcons().add(new Image(String.valueOf(getClass().getResource("icon.png"))));
+        primaryStage.getIcons().add(new Image(String.valueOf(getClass().getResource("icon.png")), true)); // Decoded in the background
         primaryStage.setResizable(false);
         primaryStage.show();
+
+        if (Boolean.getBoolean("calculator.exitAfterFirstFrame")) {
+            exitAfterFirstFrame(scene);
+        }
+    }
+
+    // Startup measurement (startup-time.sh, and the class list of build-image.sh): print the time from
+    // the process start to the first frame, then exit
+    private static void exitAfterFirstFrame(Scene scene) {
+        Runnable[] firstPulse = new Runnable[1];
+        firstPulse[0] = () -> {
+            scene.removePostLayoutPulseListener(firstPulse[0]);
+            // Runs once the pulse, rendering included, is over
+            Platform.runLater(() -> {
+                long start = ProcessHandle.current().info().startInstant()
+                        .map(Instant::toEpochMilli)
+                        .orElse(ManagementFactory.getRuntimeMXBean().getStartTime());
+                System.err.println("First frame after " + (System.currentTimeMillis() - start) + " ms");
+                Platform.exit();
+            });
+        };
+        scene.addPostLayoutPulseListener(firstPulse[0]);
     }
 
     // Toggle side panel visibility
     private void toggleAdvancedPanel() {
+        if (scrollPane == null) {
+            buildAdvancedPanel();
+        }
         if (advancedVisible) {
             hideAdvancedPanel();
         } else {
@@ -249,6 +352,28 @@ public class calculator extends Application {
     }
 
     // ================== advanced operation on the side panel (expression.. ) ===================
+    // Build the side panel, kept out of the startup: most sessions never open it
+    private void buildAdvancedPanel() {
+        //Setup the side panel
+        advancedPanel.setPadding(new Insets(10));
+        advancedPanel.getStyleClass().add("advanced");
+        advancedPanel.setTranslateX(300);
+        advancedPanel.setPrefWidth(300);
+
+        //Setup scrollPane the side panel
+        scrollPane = new ScrollPane(advancedPanel);
+        scrollPane.setFitToWidth(true);
+        scrollPane.setPrefWidth(300);
+        scrollPane.setMouseTransparent(false);
+        scrollPane.setTranslateX(300);
+        scrollPane.setVisible(false);
+        scrollPane.setStyle("-fx-background: transparent; -fx-background-color: transparent;");
+        root.getChildren().add(scrollPane);
+
+        // Setup advanced operations inside the panel
+        createAdvancedButtons();
+    }
+
     // Create advanced operation buttons on the side panel
     private void createAdvancedButtons() {
         advancedPanel.getChildren().clear();
@@ -267,9 +392,14 @@ public class calculator extends Application {
         operations.put("Root Operations", Arrays.asList("sqrt", "cbrt"));
         operations.put("Exponential Power", Arrays.asList("square", "cube"));
         operations.put("Approximation", Arrays.asList("round", "ceil", "floor"));
-        operations.put("Statistical", Arrays.asList("avg", "min", "max"));
-        operations.put("Validation", Arrays.asList("prime", "palindrome", "armstrong"));
+        operations.put("Statistical", Arrays.asList("avg", "min", "max", "sum", "count", "median", "var", "stddev", "percentile"));
+        operations.put("Validation", Arrays.asList("prime", "palindrome", "armstrong", "nextprime", "primepi", "primes",
+                "countprime", "armstrongs", "palindromes")); // Counts over a range: countprime(a, b)
         operations.put("Number Theory", Arrays.asList("GCD", "LCM"));
+        operations.put("Linear Algebra", Arrays.asList("det", "inv", "transpose", "solve"));
+        operations.put("Combinatorics", Arrays.asList("factorial", "nCr", "nPr", "fib")); // factorial(n) is also n!
+        operations.put("Calculus", Arrays.asList("integrate", "deriv", "root")); // Functions of x: integrate(x^2, 0, 3)
+        operations.put("Complex", Arrays.asList("re", "im", "abs", "arg", "conj", "polar")); // With i in the complex mode: 3 + 4i
 
         // For each entry in the 'operations' map, which holds a category title and a list of operation names
         for (Map.Entry<String, List<String>> entry : operations.entrySet()) {
@@ -304,40 +434,58 @@ public class calculator extends Application {
             }
             advancedPanel.getChildren().addAll(sectionLabel, buttonsPane);
         }
+
+        // User variables and functions: a definition field, then one button per symbol
+        Label symbolsLabel = new Label("Variables & Functions");
+        symbolsLabel.getStyleClass().add("section");
+        TextField definition = new TextField();
+        definition.setPromptText("r = 5   or   f(x) = x^2 + 3x");
+        definition.setOnAction(e -> {
+            if (pendingEvaluation == null && Evaluator.isDefinition(definition.getText())) {
+                evaluateInBackground(definition.getText());
+                definition.clear();
+                hideAdvancedPanel();
+            }
+        });
+        symbolButtons.setHgap(5);
+        symbolButtons.setVgap(5);
+        advancedPanel.getChildren().addAll(symbolsLabel, definition, symbolButtons);
+        showSymbols();
+    }
+
+    // One button per user symbol, appending its name (and "(" for functions) to the display
+    private void showSymbols() {
+        if (scrollPane == null) {
+            return; // Shown when the panel is built
+        }
+        symbolButtons.getChildren().clear();
+        for (SymbolTable.Symbol symbol : symbols.all()) {
+            Button button = new Button(symbol.isFunction() ? symbol.name() + "()" : symbol.name());
+            button.setPrefWidth(80);
+            button.setTooltip(new Tooltip(symbol.toString()));
+            button.setOnAction(e -> {
+                display.appendText(symbol.isFunction() ? symbol.name() + "(" : symbol.name());
+                hideAdvancedPanel();
+            });
+            button.getStyleClass().add("adv-button");
+            symbolButtons.getChildren().add(button);
+        }
     }
 
     // This method handles user input from calculator buttons
     private void handleInput(String input) {
-        if (input.equals("=")) {
-            try {
-
-                // Get the expression from the display
-                String expression = display.getText();
-
-                // Check if the expression contains boolean logic operations
-                boolean conBoolfunc
-                        = expression.contains("palindrome(")
-                        || expression.contains("armstrong")
-                        || expression.contains("prime");
-
-                // Evaluate the expression
-                String result = String.valueOf(eval(display.getText()));
-                lastAnswer = Double.parseDouble(result);  // Store result for future use
-                display.setText(result);
-
-                // If it's a boolean logic function, display true or false
-                if (conBoolfunc && (result.equals("1.0") || result.equals("1"))) {
-                    display.setText("True");
-                } else if (conBoolfunc && (result.equals("0.0") || result.equals("0"))) {
-                    display.setText("false");
-                } else {
-                    display.setText(result);
-                }
-
-            } catch (Exception ex) {
-                // Show error on exception
-                display.setText("Error:");
+        if (pendingEvaluation != null) {
+            // While evaluating only Clear (cancels the evaluation) and Exit are accepted
+            if (input.equals("C")) {
+                cancelEvaluation("");
+            } else if (input.equals("Exit")) {
+                Platform.exit();
             }
+            return;
+        }
+
+        if (input.equals("=")) {
+            evaluateInBackground(display.getText());
         } else if (input.equals("C")) {
             // Clear the display
             display.clear();
@@ -395,378 +543,272 @@ public class calculator extends Application {
         }
     }
 
-    // ================== Expression Evaluation Functions ===================
-    // Preprocess the expression to convert percentages into valid mathematical expressions
-    private String PreprocessExpression(String expr) {
-        return expr.replaceAll("(\\d+(\\.\\d+)?)%", "($1/100)");
-    }
-
-    //advanced expressions buttons on the side panel
-    // The main evaluation function for mathematical expressions
-    // It applies all supported functions and parses the final expression manually
-    private double eval(String expr) {
-        expr = PreprocessExpression(expr);
-
-        expr = handleInverseTrigFunctions(expr);
-
-        // Apply unary functions like sin, cos, log, etc.
-        expr = applyFunc(expr, "sin", x -> Math.sin(Math.toRadians(x)));
-        expr = applyFunc(expr, "cos", x -> Math.cos(Math.toRadians(x)));
-        expr = applyFunc(expr, "tan", x -> Math.tan(Math.toRadians(x)));
-        expr = applyFunc(expr, "sqrt", Math::sqrt);
-        expr = applyFunc(expr, "log", Math::log10);
-        expr = applyFunc(expr, "ln", Math::log);
-        expr = applyFunc(expr, "exp", Math::exp);
-        expr = applyFunc(expr, "sqrt", Math::sqrt);
-        expr = applyFunc(expr, "cbrt", Math::cbrt);
-        expr = applyFunc(expr, "square", x -> Math.pow(x, 2));
-        expr = applyFunc(expr, "cube", x -> Math.pow(x, 3));
-        expr = applyFunc(expr, "round", x -> (double) Math.round(x));
-        expr = applyFunc(expr, "ceil", Math::ceil);
-        expr = applyFunc(expr, "floor", Math::floor);
-
-        // Apply multi-value functions like avg, min, max, etc
-        expr = applyMultiFunc(expr, "avg", this::average);
-        expr = applyMultiFunc(expr, "min", this::min);
-        expr = applyMultiFunc(expr, "max", this::max);
-        expr = applyMultiFunc(expr, "GCD", this::GCD);
-        expr = applyMultiFunc(expr, "LCM", this::LCM);
-
-        // Apply boolean functions returning true/false
-        expr = applyBooleanFunc(expr, "palindrome", this::isPalindrome);
-        expr = applyBooleanFunc(expr, "armstrong", this::isArmstrong);
-        expr = applyBooleanFunc(expr, "prime", this::isPrime);
-
-        // Begin manual parsing of mathematical expression
-        String finalExpr = expr;
-
-        return new Object() {
-            int pos = -1, ch; // pos = current position, ch = current character
-            String expr = finalExpr;
-
-            // Advance to next character
-            void nextChar() {
-                ch = (++pos < expr.length()) ? expr.charAt(pos) : -1;
+    // ================== Background evaluation ===================
+    // Evaluate the expression on a worker thread, the result is posted back to the FX thread
+    private void evaluateInBackground(String expression) {
+        MathContext mc = precision;
+        boolean complexMode = complex;
+        long started = System.nanoTime();
+
+        // A preview still running would compete with the evaluation for the same cores
+        previewDelay.stop();
+        if (pendingPreview != null) {
+            pendingPreview.cancel(true);
+        }
+        FutureTask<String> task = new FutureTask<>(() -> {
+            String expanded = history.expand(expression); // Ans[n] references
+            if (Evaluator.isDefinition(expanded)) {
+                return evaluator.define(expanded);
             }
-
-            // Consume current character if it matches expected one
-            boolean eat(int charToEat) {
-                while (ch == ' ') {
-                    nextChar();
-                }
-                if (ch == charToEat) {
-                    nextChar();
-                    return true;
-                }
-                return false;
+            if (evaluator.isMatrix(expanded)) {
+                return evaluator.evalMatrix(expanded).toString(); // Matrices are always in double precision
             }
-
-            // Entry point for parsing
-            double parse() {
-                nextChar();
-                double x = parseExpression();
-                if (pos < expr.length()) {
-                    throw new RuntimeException("Unexpected: " + (char) ch);
-                }
-                return x;
+            if (complexMode) {
+                return evaluator.evalComplex(expanded).toString();
             }
-
-            // Parse expressions with '+' and '-'
-            double parseExpression() {
-                double x = parseTerm();
-                while (true) {
-                    if (eat('+')) {
-                        x += parseTerm();
-                    } else if (eat('-')) {
-                        x -= parseTerm();
-                    } else {
-                        return x;
-                    }
-                }
+            if (mc != null) {
+                return Precise.format(evaluator.evalPrecise(expanded, mc));
             }
-
-            // Parse terms with '*' and '/'
-            double parseTerm() {
-                double x = parseFactor();
-                while (true) {
-                    if (eat('*')) {
-                        x *= parseFactor();
-                    } else if (eat('/')) {
-                        x /= parseFactor();
-                    } else {
-                        return x;
-                    }
-                }
+            double value = evaluator.eval(expanded);
+            return Double.isInfinite(value) ? exactResult(expanded, value) : String.valueOf(value);
+        }) {
+            @Override
+            protected void done() {
+                Platform.runLater(() -> showEvaluationResult(this, expression, System.nanoTime() - started));
             }
-
-            // Parse numbers, parenthesis, unary signs, and power '^'
-            double parseFactor() {
-                //Parse numbers
-                if (eat('+')) {
-                    return parseFactor();
-                }
-                if (eat('-')) {
-                    return -parseFactor();
-                }
-                double x;
-
-                // Parse parenthesis
-                int startPos = pos;
-                if (eat('(')) {
-                    x = parseExpression();
-                    eat(')');
-
-                    // Parse unary signs .
-                } else if ((ch >= '0' && ch <= '9') || ch == '.') {
-                    while ((ch >= '0' && ch <= '9') || ch == '.') {
-                        nextChar();
-                    }
-                    x = Double.parseDouble(expr.substring(startPos, pos));
-                } else {
-                    throw new RuntimeException("Unexpected: " + (char) ch);
-                }
-
-                // Handle exponentiation
-                if (eat('^')) {
-                    double exponent = parseFactor();
-                    x = Math.pow(x, exponent);
-                }
-                return x;
+        };
+        pendingEvaluation = task;
+        busyIndicator.setVisible(true);
+        evaluationExecutor.execute(task);
+
+        // Stop the evaluation once its time budget is used up
+        pendingTimeout = timeoutScheduler.schedule(() -> Platform.runLater(() -> {
+            if (pendingEvaluation == task) {
+                cancelEvaluation("Timeout");
             }
-
-        }.parse();
+        }), evaluationTimeout, TimeUnit.MILLISECONDS);
     }
 
-    // ================== Helper functions to apply math functions in expression ===================
-    // Unary functions (take one argument only)
-    // Function to apply single-argument functions such as sin, cos, sqrt..
-    private String applyFunc(String expr, String name, DoubleUnaryOperator op) {
-        while (expr.contains(name + "(")) {
-
-            // Extract the part inside the function parentheses
-            int start = expr.indexOf(name + "(") + name.length() + 1;
-            int end = expr.indexOf(")", start);
-
-            // Exit if closing parenthesis is not found
-            if (end == -1) {
-                break;
-            }
-            String innerExpr = expr.substring(start, end);// Expression inside the parentheses
-            double val;
-            try {
-                val = eval(innerExpr.trim());// Evaluate the inner expression to get a number
-            } catch (Exception ex) {
-                return "Error"; // If evaluation fails
-            }
-            double res;
-            try {
-                res = op.applyAsDouble(val);// Apply the mathematical function
-
-                // Round very small results to zero
-                if (Math.abs(res) < 1e-10) {
-                    res = 0;
-                }
-                String full = name + "(" + innerExpr + ")";
-                expr = expr.replace(full, Double.toString(res));
-            } catch (Exception ex) {
-                return "Error";
-            }
+    // A result beyond the double range is computed exactly when it has an exact form (100000!, fib(10000)),
+    // it stays infinite otherwise (1/0, exp(1000))
+    private String exactResult(String expression, double value) {
+        try {
+            return Precise.format(evaluator.evalPrecise(expression, MathContext.DECIMAL64));
+        } catch (CancellationException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            return String.valueOf(value);
         }
-        return expr;
     }
 
-    // Multi-value functions (like avg, min)
-    // Function to apply multi-argument functions (comma-separated) such as avg, min, max
-    private String applyMultiFunc(String expr, String name, Function<String, Double> op) {
-        while (expr.contains(name + "(")) {
-            int start = expr.indexOf(name + "(") + name.length() + 1;
-            int end = expr.indexOf(")", start);
-            if (end == -1) {
-                break;
-            }
-            String args = expr.substring(start, end);// Extract the arguments
-            double res = op.apply(args);// Apply the function to the arguments
-            String full = name + "(" + args + ")";
-            expr = expr.replace(full, Double.toString(res));
+    // Show the outcome of a finished evaluation and record it in the history (runs on the FX thread)
+    private void showEvaluationResult(FutureTask<String> task, String expression, long duration) {
+        // Ignore evaluations that were cancelled or replaced meanwhile
+        if (task != pendingEvaluation || task.isCancelled()) {
+            return;
         }
-        return expr;
-    }
-
-    // Boolean functions (return true/false like prime or palindrome)
-    // Function to apply boolean-returning functions like prime, palindrome, armstrong
-    private String applyBooleanFunc(String expr, String name, Function<Double, Boolean> func) {
-        while (expr.contains(name + "(")) {
-            int start = expr.indexOf(name + "(") + name.length() + 1;
-            int end = expr.indexOf(")", start);
-            if (end == -1) {
-                break;
+        endEvaluation();
+        try {
+            // Check if the expression contains boolean logic operations (not the range counts like countprime)
+            boolean conBoolfunc = BOOLEAN_CALL.matcher(expression).find();
+
+            String result = task.get();
+            boolean fraction = FRACTION.matcher(result).matches();
+            if (COMPLEX.matcher(result).matches()) {
+                // Not a real number: recorded with its real part, the last answer stays the last real one
+                display.setText(result);
+                record(expression, result, History.Kind.COMPLEX, realPart(result), duration);
+                return;
             }
-            String inner = expr.substring(start, end).trim();
-            double value;
-            try {
-                value = Double.parseDouble(inner);// Convert input to a number
-            } catch (Exception e) {
-                return "Error";
+            if (!fraction && !isNumber(result)) {
+                // Definition of a user variable or function
+                display.setText(result);
+                record(expression, result, History.Kind.TEXT, Double.NaN, duration);
+                showSymbols();
+                return;
             }
-            boolean result;
-            try {
-                result = func.apply(value);
-            } catch (Exception e) {
-                return "Error";
+            lastAnswer = fraction ? fractionValue(result) : Double.parseDouble(result);  // Store result for future use
+            record(expression, result, History.Kind.NUMBER, lastAnswer, duration);
+
+            // If it's a boolean logic function, display true or false
+            if (conBoolfunc && (result.equals("1.0") || result.equals("1"))) {
+                display.setText("True");
+            } else if (conBoolfunc && (result.equals("0.0") || result.equals("0"))) {
+                display.setText("false");
+            } else {
+                showResult(result);
             }
-            String full = name + "(" + inner + ")";
-
-            expr = expr.replace(full, result ? "1" : "0");
-        }
-        return expr;
-    }
-
-    //
-    // ================== Handle Inverse Trigonometric Functions  ================================
-    // 
-    //* This method processes all inverse trigonometric functions (asin, acos, atan)
-    //* by detecting them in the expression, evaluating their arguments, and replacing
-    //* them with their calculated degree result.
-    private String handleInverseTrigFunctions(String expr) {
-        expr = applySafeFunc(expr, "asin", x -> Math.toDegrees(Math.asin(x)));
-        expr = applySafeFunc(expr, "acos", x -> Math.toDegrees(Math.acos(x)));
-        expr = applySafeFunc(expr, "atan", x -> Math.toDegrees(Math.atan(x)));
-        return expr;
-    }
 
-    //* A safer version of applyFunc that supports nested expressions inside a function.
-    //* It finds the matching closing parenthesis, evaluates the inner content,
-    //* applies the function, and replaces it in the original expression.
-    private String applySafeFunc(String expr, String name, DoubleUnaryOperator op) {
-        while (expr.contains(name + "(")) {
-            int startIndex = expr.indexOf(name + "(");
-            int openParen = startIndex + name.length() + 1;
-            int closeParen = findMatchingParenthesis(expr, openParen - 1);
-            if (closeParen == -1) {
-                break;
-            }
-            String innerExpr = expr.substring(openParen, closeParen);
-            double val;
-            try {
-                val = eval(innerExpr.trim());
-            } catch (Exception ex) {
-                throw new RuntimeException("Invalid " + name + " input: " + innerExpr);
+        } catch (ExecutionException ex) {
+            record(expression, "Error", History.Kind.ERROR, Double.NaN, duration);
+            if (ex.getCause() instanceof Evaluator.WarningException warning) {
+                // Invalid input for a validation function, warn the user once evaluation is over
+                display.setText("false");
+                showWarning(warning.getMessage());
+            } else if (ex.getCause() instanceof History.ReferenceException reference) {
+                // Ans[n] of an entry without a usable result, tell why
+                display.setText("Error:");
+                showWarning(reference.getMessage());
+            } else {
+                // Show error on exception
+                display.setText("Error:");
             }
-            double result = op.applyAsDouble(val);
-            String full = expr.substring(startIndex, closeParen + 1);
-            expr = expr.replace(full, Double.toString(result));
+        } catch (InterruptedException ex) {
+            display.setText("Error:");
         }
-        return expr;
     }
 
-    //* Utility method to find the matching closing parenthesis in an expression
-    //* given the index of an opening parenthesis.
-    private int findMatchingParenthesis(String expr, int openIndex) {
-        int count = 0;
-        for (int i = openIndex; i < expr.length(); i++) {
-            if (expr.charAt(i) == '(') {
-                count++;
-            } else if (expr.charAt(i) == ')') {
-                count--;
-                if (count == 0) {
-                    return i;
+    // Show a result in the display. A very long one (100000! has 456,574 digits) grows by one chunk per
+    // frame: the leading digits show at once and the window stays responsive. Editing the display stops it
+    private void showResult(String text) {
+        if (resultRenderer != null) {
+            resultRenderer.stop();
+            resultRenderer = null;
+        }
+        if (text.length() <= RESULT_CHUNK) {
+            display.setText(text);
+            return;
+        }
+        display.setText(text.substring(0, RESULT_CHUNK));
+        resultRenderer = new AnimationTimer() {
+            private int shown = RESULT_CHUNK;
+
+            @Override
+            public void handle(long now) {
+                if (display.getLength() != shown) {
+                    stop(); // Edited meanwhile
+                    return;
+                }
+                int end = Math.min(text.length(), shown + RESULT_CHUNK);
+                display.appendText(text.substring(shown, end));
+                shown = end;
+                if (shown == text.length()) {
+                    stop();
                 }
             }
-        }
-        return -1;
+        };
+        resultRenderer.start();
     }
 
-    // ================== Scientific Operation Functions ===================
-    // Calculate the average of numbers separated by commas
-    private double average(String input) {
-        return Arrays.stream(input.split(",")).mapToDouble(Double::parseDouble).average().orElse(0);
+    // ================== History ===================
+    private static History openHistory() {
+        Path file = Path.of(System.getProperty("calculator.history",
+                Path.of(System.getProperty("user.home"), ".calculator", "history.log").toString()));
+        try {
+            return History.open(file);
+        } catch (IOException ex) {
+            System.err.println("History not saved: " + ex.getMessage());
+            return History.inMemory();
+        }
     }
 
-    // Calculate the minimum number
-    private double min(String input) {
-        return Arrays.stream(input.split(",")).mapToDouble(Double::parseDouble).min().orElse(0);
+    private void record(String expression, String result, History.Kind kind, double value, long duration) {
+        try {
+            history.append(expression, result, kind, value, duration);
+        } catch (IllegalStateException ex) {
+            System.err.println("History not saved: " + ex.getMessage());
+            return;
+        }
+        if (historyView != null) {
+            historyView.added();
+        }
     }
 
-    // Calculate the maximum number
-    private double max(String input) {
-        return Arrays.stream(input.split(",")).mapToDouble(Double::parseDouble).max().orElse(0);
+    // Write the history to disk when the application exits
+    @Override
+    public void stop() throws IOException {
+        history.close();
     }
 
-    // Calculate the Greatest Common Divisor (GCD)
-    private double GCD(String input) {
-        String[] parts = input.split(",");
-        int a = Integer.parseInt(parts[0].trim());
-        int b = Integer.parseInt(parts[1].trim());
-        return computeGCD(a, b);
+    // Interrupt the running evaluation (evaluation checks for it cooperatively) and show the message
+    private void cancelEvaluation(String message) {
+        if (pendingEvaluation != null) {
+            pendingEvaluation.cancel(true);
+            endEvaluation();
+        }
+        display.setText(message);
     }
 
-    // Calculate the Least Common Multiple (LCM)
-    private double LCM(String input) {
-        String[] parts = input.split(",");
-        int a = Integer.parseInt(parts[0].trim());
-        int b = Integer.parseInt(parts[1].trim());
-        return computeLCM(a, b);
+    private void endEvaluation() {
+        pendingEvaluation = null;
+        pendingTimeout.cancel(false);
+        busyIndicator.setVisible(false);
     }
 
-    // Euclidean algorithm for computing GCD
-    private int computeGCD(int a, int b) {
-        while (b != 0) {
-            int temp = b;
-            b = a % b;
-            a = temp;
+    // Preview the value of the expression being typed, replacing any preview still running
+    // Nothing is shown for plain numbers, expressions that are not complete yet, data files
+    // (reading them is too slow for a preview), definitions and in the precision and complex modes
+    private void updatePreview() {
+        String text = display.getText();
+        if (pendingPreview != null) {
+            pendingPreview.cancel(true);
         }
-        return Math.abs(a);
+        if (precision != null || complex || pendingEvaluation != null || text.isBlank() || text.indexOf('"') >= 0 || isNumber(text)
+                || Evaluator.isDefinition(text)) {
+            preview.setText("");
+            return;
+        }
+        Future<?> task = previewExecutor.submit(() -> {
+            String value;
+            try {
+                value = "= " + incrementalPreview.update(history.expand(text));
+            } catch (RuntimeException | StackOverflowError ex) {
+                value = ""; // Cancelled (timeout included) or not a complete expression
+            }
+            String shown = value;
+            Platform.runLater(() -> {
+                if (text.equals(display.getText())) {
+                    preview.setText(shown);
+                }
+            });
+        });
+        pendingPreview = task;
+        timeoutScheduler.schedule(() -> task.cancel(true), previewTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    // Value of a "num/den" result of the fractions mode
+    private static double fractionValue(String text) {
+        int slash = text.indexOf('/');
+        return new BigDecimal(text.substring(0, slash)).divide(new BigDecimal(text.substring(slash + 1)), MathContext.DECIMAL64).doubleValue();
     }
 
-    // Compute LCM using GCD
-    private int computeLCM(int a, int b) {
-        return Math.abs(a * b) / computeGCD(a, b);
+    // Real part of a "re + imi" result of the complex mode, 0 for "imi"
+    private static double realPart(String text) {
+        int sign = Math.max(text.indexOf(" + "), text.indexOf(" - "));
+        return sign < 0 ? 0 : Double.parseDouble(text.substring(0, sign));
     }
 
-    // Check if a number is a Palindrome (reads the same forward and backward)
-    private boolean isPalindrome(double number) {
-        String str = String.valueOf((int) number);
-        if (str.length() < 3) {
-
-            // Show warning alert if number has less than 3 digits
-            Alert alert = new Alert(AlertType.WARNING);
-            alert.setTitle("ﺗﻨﺒﻴﻪ");
-            alert.setHeaderText(null);
-            alert.setContentText("A number of 3 or more digits must be entered for the Palindrome operation");
-            alert.showAndWait();
+    private static boolean isNumber(String text) {
+        try {
+            Double.parseDouble(text);
+            return true;
+        } catch (NumberFormatException ex) {
             return false;
         }
-        return str.equals(new StringBuilder(str).reverse().toString());
     }
 
-    // Check if number is Armstrong number
-    private boolean isArmstrong(double number) {
-        int n = (int) number;
-        int temp = n, sum = 0, digits = String.valueOf(n).length();
-        while (temp != 0) {
-            int digit = temp % 10;
-            sum += Math.pow(digit, digits);// Raise each digit to the power of number of digits
-            temp /= 10;
-        }
-        return sum == n;
+    // Daemon worker threads with a large stack, so deeply nested expressions can be evaluated
+    // and the application still exits while an evaluation is running
+    private static Thread evaluationThread(Runnable task) {
+        Thread thread = new Thread(null, task, "calculator-evaluation", 64L << 20);
+        thread.setDaemon(true);
+        return thread;
     }
 
-    // Check if number is Prime
-    private boolean isPrime(double number) {
-        int n = (int) number;
-        if (n < 2) {
-            return false;
-        }
-        for (int i = 2; i <= Math.sqrt(n); i++) {
-            if (n % i == 0) {
-                return false;
-            }
-        }
-        return true;
+    // Show a warning raised while evaluating an expression under the display, in place of the preview
+    // (no dialog, nothing waits for the user). The next change of the display replaces it
+    private void showWarning(String message) {
+        previewDelay.stop();
+        preview.setText("⚠ " + message);
     }
 
     // Entry point of the JavaFX application
-    public static void main(String[] args) {
+    // --server [port | socket path] runs the headless evaluation service instead (JavaFX is not started)
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--server")) {
+            EvaluationServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         launch(args);
     }
 
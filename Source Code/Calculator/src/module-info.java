@@ -1,6 +1,10 @@
 module Calculator {
 	requires javafx.controls;
 	requires javafx.graphics;
+	requires java.management;
+	requires jdk.attach;
+	requires jdk.jfr;
 	
+	exports calculator to java.management;
 	opens calculator to javafx.graphics, javafx.fxml;
 }
@@ -0,0 +1,18 @@
+#!/bin/sh
+# Startup benchmark: time from the process start to the first frame of the calculator, over cold starts
+#   ./startup-time.sh [runs] [command]    default: 10 runs of the image of build-image.sh
+#   ./startup-time.sh 10 java --module-path "$JAVAFX_MODS" --add-modules javafx.controls -jar Calculator.jar
+set -e
+cd "$(dirname "$0")"
+RUNS="${1:-10}"
+[ $# -gt 0 ] && shift
+[ $# -eq 0 ] && set -- build/image/bin/calculator
+
+# The calculator prints "First frame after <n> ms" and exits when started with this property
+i=0
+while [ "$i" -lt "$RUNS" ]; do
+    JAVA_TOOL_OPTIONS="-Dcalculator.exitAfterFirstFrame=true" "$@" 2>&1 | sed -n 's/^First frame after \([0-9]*\) ms$/\1/p'
+    i=$((i + 1))
+done | sort -n | awk '{ t[NR] = $1 } END {
+    if (NR == 0) { print "No first frame measured"; exit 1 }
+    printf "%d runs, first frame after: min %d ms, median %d ms, max %d ms\n", NR, t[1], t[int((NR + 1) / 2)], t[NR] }'